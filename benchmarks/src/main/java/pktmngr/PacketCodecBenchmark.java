@@ -0,0 +1,95 @@
+package pktmngr;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Encoding and decoding of single packets: the DatagramPacket API the
+ * applications use (create(), getACK(), getData()) and the ByteBuffer one
+ * the connections use on every packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+	@Param({"0", "64", "1024", "8192"})
+	public int payloadSize;
+
+	private String stringData;
+	private InetAddress address;
+	private DatagramPacket packet;
+
+	private ByteBuffer data;
+	private ByteBuffer encoded;
+	private ByteBuffer dst;
+	private int[] sackBlocks;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		char[] chars = new char[payloadSize];
+		Arrays.fill(chars, 'x');
+		stringData = new String(chars);
+		address = InetAddress.getLoopbackAddress();
+		packet = PacketManager.create((byte)0, 1000, 2000, stringData, address, 25565);
+
+		data = ByteBuffer.allocateDirect(payloadSize);
+		encoded = ByteBuffer.allocateDirect(PacketManager.MAX_HEADER_LENGTH + payloadSize);
+		dst = ByteBuffer.allocateDirect(payloadSize);
+		// a few holes, as during loss recovery
+		sackBlocks = new int[] {2002, 2005, 2007, 2010, 2020, 2021};
+		PacketManager.encode(encoded, (byte)0, 1000, 2000, 100, sackBlocks, 3, data);
+		encoded.flip();
+	}
+
+	@Benchmark
+	public DatagramPacket create() {
+		return PacketManager.create((byte)0, 1000, 2000, stringData, address, 25565);
+	}
+
+	@Benchmark
+	public int getAck() {
+		return PacketManager.getACK(packet);
+	}
+
+	@Benchmark
+	public String getData() {
+		return PacketManager.getData(packet);
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		encoded.clear();
+		PacketManager.encode(encoded, (byte)0, 1000, 2000, 100, sackBlocks, 3, data);
+		return encoded;
+	}
+
+	@Benchmark
+	public int decode() {
+		int sum = PacketManager.getSeq(encoded) + PacketManager.getACK(encoded) + PacketManager.getWindow(encoded);
+		for (int i = 0; i < PacketManager.getSackBlockCount(encoded); ++i) {
+			sum += PacketManager.getSackBlockEnd(encoded, i) - PacketManager.getSackBlockStart(encoded, i);
+		}
+		dst.clear();
+		return sum + PacketManager.getData(encoded, 0, dst);
+	}
+}
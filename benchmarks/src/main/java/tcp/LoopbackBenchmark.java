@@ -0,0 +1,136 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A TCPSocket and a TCPServerSocket over the loopback interface, swept over
+ * the server's loss rate, the message size and the window size of both
+ * sides:
+ *
+ *		throughput:	messages per second the client gets acked, the server
+ *					only reads them (bytes per second = score * payloadSize)
+ *		latency:	round trip of a message the server echoes back
+ *
+ * The loss rate applies to the datagrams the server receives, i.e. to the
+ * client's data on the way there.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	@State(Scope.Benchmark)
+	public abstract static class Loopback {
+		@Param({"0", "0.01", "0.05"})
+		public double lossRate;
+
+		@Param({"1024", "65536", "1048576"})
+		public int payloadSize;
+
+		@Param({"16", "100", "1000"})
+		public int windowSize;
+
+		TCPServerSocket server;
+		TCPSocket client;
+		ByteBuffer payload;
+		ByteBuffer reply;
+		private Thread serverThread;
+
+		@Setup(Level.Trial)
+		public void open() throws Exception {
+			server = new TCPServerSocket(lossRate);
+			server.setWindowSize(windowSize);
+			server.listen(0);
+			serverThread = new Thread(() -> {
+				try {
+					server.serve(this::handle);
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}, "LoopbackBenchmark-server");
+			serverThread.setDaemon(true);
+			serverThread.start();
+
+			client = new TCPSocket();
+			client.setWindowSize(windowSize);
+			client.connect("localhost", server.getLocalPort());
+			payload = ByteBuffer.allocateDirect(payloadSize);
+			reply = ByteBuffer.allocateDirect(payloadSize);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws Exception {
+			client.disconnect();
+			server.close();
+			serverThread.join();
+		}
+
+		// serves the client until it shuts its output down
+		abstract void handle(TCPConnection connection) throws Exception;
+	}
+
+	public static class Sink extends Loopback {
+		@Override
+		void handle(TCPConnection connection) throws Exception {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			while (connection.receive(buffer) >= 0) {
+				buffer.clear();
+			}
+		}
+	}
+
+	public static class Echo extends Loopback {
+		@Override
+		void handle(TCPConnection connection) throws Exception {
+			ByteBuffer message = ByteBuffer.allocateDirect(payloadSize);
+			while (true) {
+				message.clear();
+				while (message.hasRemaining()) {
+					if (connection.receive(message) < 0) {
+						return;
+					}
+				}
+				message.flip();
+				connection.send(message);
+			}
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void throughput(Sink sink) throws TCPException {
+		sink.client.send(sink.payload);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int latency(Echo echo) throws Exception {
+		echo.client.send(echo.payload);
+		ByteBuffer reply = echo.reply;
+		reply.clear();
+		while (reply.hasRemaining()) {
+			if (echo.client.receive(reply) < 0) {
+				throw new TCPException("Server has closed the connection.");
+			}
+		}
+		return reply.position();
+	}
+}
@@ -0,0 +1,82 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pktmngr.PacketManager;
+
+/*
+ * Receive window of a connection (what the server did in receive() before
+ * connections had a ReceiveWindow): a window full of packets arrives in
+ * order, or every second packet first and the holes after, with the
+ * cumulative ACK and the SACK blocks computed after each packet the way
+ * the connection answers them. Times are per packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveWindowBenchmark {
+	private static final int PACKETS = 1024;
+
+	@Param({"64", "1024"})
+	public int windowSize;
+
+	private ReceiveWindow window;
+	private ByteBuffer packet;
+	private int[] sackBlocks;
+
+	@Setup
+	public void setup() {
+		window = new ReceiveWindow(windowSize, 0);
+		packet = ByteBuffer.allocate(PacketManager.HEADER_LENGTH);
+		sackBlocks = new int[2 * PacketManager.MAX_SACK_BLOCKS];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public void inOrder(Blackhole blackhole) {
+		for (int i = 0; i < PACKETS; ++i) {
+			int seq = window.getBase();
+			window.put(seq, packet);
+			blackhole.consume(window.getNextExpected());
+			blackhole.consume(window.collectSackBlocks(window.getNextExpected(), sackBlocks, PacketManager.MAX_SACK_BLOCKS));
+			blackhole.consume(window.poll());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public void outOfOrder(Blackhole blackhole) {
+		for (int done = 0; done < PACKETS; done += windowSize) {
+			int base = window.getBase();
+			// odd packets first: every one of them leaves a hole behind
+			for (int pass = 1; pass >= 0; --pass) {
+				for (int i = pass; i < windowSize; i += 2) {
+					window.put(base + i, packet);
+					blackhole.consume(window.getNextExpected());
+					blackhole.consume(window.collectSackBlocks(window.getNextExpected(), sackBlocks, PacketManager.MAX_SACK_BLOCKS));
+				}
+			}
+			while (window.isFirstBuffered()) {
+				blackhole.consume(window.poll());
+			}
+		}
+	}
+}
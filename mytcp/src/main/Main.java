@@ -1,15 +1,8 @@
 package main;
 
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.DatagramPacket;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 
-import pktmngr.PacketManager;
 import tcp.TCPException;
 import tcp.TCPServerSocket;
 import tcp.TCPSocket;
@@ -31,13 +24,8 @@ public class Main {
 		socket.connect("localhost", 25565);
 		System.out.println("Client connected!");
 
-		// read whole file
-		String text = new String(
-			Files.readAllBytes(Paths.get(fileToSend)),
-			StandardCharsets.UTF_8
-		);
-		
-		socket.send(text);
+		// send the file as is, it is never read into memory as a whole
+		socket.sendFile(Paths.get(fileToSend));
 		
 		// disconnect from server
 		socket.disconnect();
@@ -57,32 +45,14 @@ public class Main {
 		// set the socket to listen on the port 25565
 		socket.listen(25565);
 
-		// buffer packet
-		DatagramPacket pkt = new DatagramPacket(new byte[1024], 1024);
-		while (true) {
-			// accept incoming connection
-			socket.accept();
-			
-			// writers
-			FileOutputStream fos = new FileOutputStream(fileToReceiveInto);
-			OutputStreamWriter osw = new OutputStreamWriter(fos, "UTF-8");
-			BufferedWriter out = new BufferedWriter(osw);
-			
-			pkt = socket.receive();
-			while (socket.isConnected()) {
-				// extract data (text) from the buffer packet
-				String data = PacketManager.getData(pkt);
-			    out.write(data);
-			    
-			    pkt = socket.receive();
-			}
-
-			// close writers
-			out.close();
-			fos.close();
+		// serve every client on a thread of its own (a virtual one where
+		// the runtime has them), each client gets a file of its own
+		socket.serve(connection -> {
+			// write everything the client sends until it shuts its output down
+			connection.receiveFile(Paths.get(fileToReceiveInto + "." + connection.getRemotePort()));
 
 			System.out.println("closed connection");
-		}
+		});
 		
 	}
 	
@@ -3,101 +3,426 @@ package pktmngr;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 public class PacketManager {
-	
+
 	/*
-	 * Structure of the my TCP packet: 
+	 * Structure of the my TCP packet:
 	 *
-	 * +---+---+-----+---+---+-----+---+---+-----+------+
-	 * | 0 | 1 | ... | 4 | 5 | ... | 8 | 9 | ... | 1023 |
-	 * +---+---+-----+---+---+-----+---+---+-----+------+
-	 *   ^  \________ __/ \________ __/ \___________ __/
-	 *   |           V             V                V
-	 *  flag        ACK      dataLength           data
+	 * +------+-------+-------+--------+------------+------------+--------------+-----+
+	 * |  0   | 1..4  | 5..8  | 9..12  |     13     |   14..17   | 18..17 + 8*K | ... |
+	 * +------+-------+-------+--------+------------+------------+--------------+-----+
+	 *   flag    SEQ     ACK    window   sackBlocks   dataLength    SACK blocks   data
+	 *                                      = K          = N                    (N bytes)
 	 *
 	 * Flag byte meanings:
 	 *		0 - refular packet
 	 *		1 - SYN packet
 	 *		2 - FIN packet
-	 * 
-	 * ACK field used by server to tell client WHICH PACKET IT WANTS TO RECEIVE
-	 * ACK field used by client to tell server WHICH PACKET HE SENT
+	 *		3 - parity packet (forward error correction)
+	 *		16 - regular packet which data is compressed
+	 *
+	 * Both sides send and receive, each one numbers the packets it sends
+	 * starting from its own ISN.
+	 *
+	 * SEQ field tells WHICH PACKET THE SENDER SENT. Packets with data and FIN
+	 * packets take one number each. A packet without data (a plain ACK) takes
+	 * none, it carries the number of the next packet the sender will send.
+	 *
+	 * ACK field tells WHICH PACKET THE SENDER WANTS TO RECEIVE from the other
+	 * side. Every packet carries it, so ACKs ride on data packets whenever
+	 * there are some to send; the first SYN sets it to 0.
+	 *
+	 * Window field tells HOW MANY PACKETS, starting from the one in the ACK
+	 * field, THE SENDER CAN BUFFER. The other side never has more packets in
+	 * flight than that.
+	 *
+	 * SACK blocks tell WHICH PACKETS AFTER THE ONE IN THE ACK FIELD THE SENDER
+	 * HAS ALREADY BUFFERED. Each block is a pair of 4-byte packet numbers
+	 * [start, end): packets start, ..., end - 1 are buffered. Blocks go in
+	 * ascending order, there are at most MAX_SACK_BLOCKS of them.
+	 *
+	 * A datagram is exactly as long as the header, the SACK blocks and the
+	 * data; N can be anything from 0 up to the maximum segment size (MSS) the
+	 * sides agreed on. The client proposes its MSS in the data of its SYN
+	 * packet (as a 4-byte integer), the server answers with a SYN packet of
+	 * its own that carries its ISN in the SEQ field, the client's ISN + 1 in
+	 * the ACK field and the agreed (smaller) MSS in the data.
+	 *
+	 * A SYN packet may carry a second 4-byte integer after the MSS: the number
+	 * of packets per parity group the side proposes (0 for no forward error
+	 * correction). The groups are used if both sides propose them, the smaller
+	 * size is agreed on. Then each side follows the packets of every group with
+	 * a parity packet: SEQ is the number of the first packet of the group, it
+	 * takes no number itself, and its data is the XOR of the group's data (see
+	 * tcp.ParityEncoder). A parity packet carries at most MAX_SACK_BLOCKS - 1
+	 * SACK blocks, so it is not longer than a full data packet.
+	 *
+	 * Two more integers may follow: 1 if the side proposes compression (0
+	 * if not), and the Adler-32 of its preset dictionary (0 without one).
+	 * Compression is used if both sides propose it with the same dictionary.
+	 * Then the data of packets with flag 16 is a piece of one raw deflate
+	 * stream per direction (see tcp.Compressor), the other data packets
+	 * carry data as it is.
+	 *
+	 * The fifth integer is about fast open: -1 if the side does not do it,
+	 * otherwise the length of the resumption token that follows (0 if the
+	 * client has none yet and asks for one). The server answers with a token
+	 * for the client if it does fast open too (see tcp.ResumptionTokens). A
+	 * client's SYN with a token may carry data after it: the data of the
+	 * client's first packet, number ISN + 1. If the token is valid, the
+	 * server takes the data and acks it in its SYN (ACK field ISN + 2),
+	 * otherwise the client sends the packet again after the handshake.
+	 *
+	 * All integers are big-endian. Every field can be read and written
+	 * in place, either in a byte[] slice (starting at some offset) or in a
+	 * ByteBuffer (starting at its position), so no intermediate arrays are
+	 * needed on the send and receive paths.
 	*/
 
+	// length of the header without SACK blocks
+	public static final int HEADER_LENGTH = 18;
+
+	public static final int SACK_BLOCK_LENGTH = 8;
+
+	public static final int MAX_SACK_BLOCKS = 8;
+
+	// the integers a SYN packet carries before the token, and the longest token
+	public static final int SYN_OPTIONS_LENGTH = 20;
+	public static final int MAX_TOKEN_LENGTH = 16;
+
+	// length of the header with all SACK blocks
+	public static final int MAX_HEADER_LENGTH = HEADER_LENGTH + MAX_SACK_BLOCKS * SACK_BLOCK_LENGTH;
+
+	// largest payload of a UDP datagram over IPv4
+	public static final int MAX_PACKET_SIZE = 65507;
+
+	// any packet may carry SACK blocks along with its data
+	public static final int MAX_DATA_LENGTH = MAX_PACKET_SIZE - MAX_HEADER_LENGTH;
+
+	// MSS used when nothing else is configured: the whole datagram fits in 1024 bytes
+	public static final int DEFAULT_DATA_LENGTH = 1024 - MAX_HEADER_LENGTH;
+
+	/*
+	 * Longest packet of a connection with the given MSS: the longest header
+	 * with the MSS of data, or with the integers and the token of a SYN.
+	 */
+	public static int maxPacketLength(int segmentSize) {
+		return MAX_HEADER_LENGTH + Math.max(segmentSize, SYN_OPTIONS_LENGTH + MAX_TOKEN_LENGTH);
+	}
+
+	private static final int FLAG_OFFSET = 0;
+	private static final int SEQ_OFFSET = 1;
+	private static final int ACK_OFFSET = 5;
+	private static final int WINDOW_OFFSET = 9;
+	private static final int SACK_BLOCKS_OFFSET = 13;
+	private static final int DATA_LENGTH_OFFSET = 14;
+
+	/*
+	 * Writes a packet into buf starting at off and returns the number of bytes
+	 * the packet occupies.
+	 */
+	public static int encode(
+			byte[] buf,
+			int off,
+			byte flag,
+			int seq,
+			int ack,
+			int window,
+			byte[] data,
+			int dataOff,
+			int dataLength
+	) {
+		checkDataLength(dataLength);
+
+		buf[off + FLAG_OFFSET] = flag;
+		putInt(buf, off + SEQ_OFFSET, seq);
+		putInt(buf, off + ACK_OFFSET, ack);
+		putInt(buf, off + WINDOW_OFFSET, window);
+		buf[off + SACK_BLOCKS_OFFSET] = 0;
+		putInt(buf, off + DATA_LENGTH_OFFSET, dataLength);
+		System.arraycopy(data, dataOff, buf, off + HEADER_LENGTH, dataLength);
+
+		return HEADER_LENGTH + dataLength;
+	}
+
+	/*
+	 * Writes a packet into dst at its position, using the remaining bytes of
+	 * data as the payload. dst position is advanced past the packet, data
+	 * position is left untouched. Returns the number of bytes written.
+	 */
+	public static int encode(ByteBuffer dst, byte flag, int seq, int ack, int window, ByteBuffer data) {
+		return encode(dst, flag, seq, ack, window, null, 0, data);
+	}
+
+	/*
+	 * Same as above, with sackBlockCount SACK blocks taken from sackBlocks:
+	 * block i is [sackBlocks[2 * i], sackBlocks[2 * i + 1]).
+	 */
+	public static int encode(
+			ByteBuffer dst,
+			byte flag,
+			int seq,
+			int ack,
+			int window,
+			int[] sackBlocks,
+			int sackBlockCount,
+			ByteBuffer data
+	) {
+		int dataLength = data.remaining();
+		checkDataLength(dataLength);
+		if (sackBlockCount > MAX_SACK_BLOCKS) {
+			throw new IllegalArgumentException("More than " + MAX_SACK_BLOCKS + " SACK blocks");
+		}
+
+		dst.put(flag);
+		dst.putInt(seq);
+		dst.putInt(ack);
+		dst.putInt(window);
+		dst.put((byte)sackBlockCount);
+		dst.putInt(dataLength);
+		for (int i = 0; i < 2 * sackBlockCount; ++i) {
+			dst.putInt(sackBlocks[i]);
+		}
+
+		int dataPosition = data.position();
+		dst.put(data);
+		data.position(dataPosition);
+
+		return HEADER_LENGTH + sackBlockCount * SACK_BLOCK_LENGTH + dataLength;
+	}
+
 	public static DatagramPacket create(
 			byte flag,
+			int seq,
 			int ack,
 			String data,
 			InetAddress address,
 			int port
 	) {
-		byte[] packetBuffer = new byte[1024];
-
-		// set flag
-		packetBuffer[0] = flag;
-		
-		// set ack
-		byte[] ackAsBytes = ByteBuffer.allocate(4).putInt(ack).array();
-		for (int i = 0; i < 4; ++i) {
-			packetBuffer[1 + i] = ackAsBytes[i];
-		}
-		
-		// set dataLength
-		byte[] dataLengthAsBytes = ByteBuffer.allocate(4).putInt(data.length()).array();
-		for (int i = 0; i < 4; ++i) {
-			packetBuffer[5 + i] = dataLengthAsBytes[i];
-		}
-		
-		// set data
 		byte[] dataAsBytes = data.getBytes();
-		for (int i = 0; i < data.length(); ++i) {
-			packetBuffer[9 + i] = dataAsBytes[i];
-		}
-		
-		return new DatagramPacket(packetBuffer, 1024, address, port);
+		byte[] packetBuffer = new byte[HEADER_LENGTH + dataAsBytes.length];
+
+		int length = encode(packetBuffer, 0, flag, seq, ack, 0, dataAsBytes, 0, dataAsBytes.length);
+
+		return new DatagramPacket(packetBuffer, length, address, port);
 	}
-	
+
+	public static byte getFlag(byte[] buf, int off) {
+		return buf[off + FLAG_OFFSET];
+	}
+
+	public static byte getFlag(ByteBuffer pkt) {
+		return pkt.get(pkt.position() + FLAG_OFFSET);
+	}
+
 	public static boolean isSynPacket(DatagramPacket pkt) {
-		byte[] packetDataAsBytes = pkt.getData();
-		if (packetDataAsBytes[0] == 1) {
-			return true;
-		}
-		return false;
+		return getFlag(pkt.getData(), pkt.getOffset()) == 1;
 	}
 
 	public static boolean isFinPacket(DatagramPacket pkt) {
-		byte[] packetDataAsBytes = pkt.getData();
-		if (packetDataAsBytes[0] == 2) {
-			return true;
+		return getFlag(pkt.getData(), pkt.getOffset()) == 2;
+	}
+
+	public static boolean isSynPacket(ByteBuffer pkt) {
+		return getFlag(pkt) == 1;
+	}
+
+	public static boolean isFinPacket(ByteBuffer pkt) {
+		return getFlag(pkt) == 2;
+	}
+
+	public static boolean isParityPacket(ByteBuffer pkt) {
+		return getFlag(pkt) == 3;
+	}
+
+	public static boolean isCompressedPacket(ByteBuffer pkt) {
+		return getFlag(pkt) == 16;
+	}
+
+	/*
+	 * Whether the packet takes a packet number: a packet with data (compressed
+	 * or not) or a FIN packet, not a plain ACK or a parity packet.
+	 */
+	public static boolean takesSequenceNumber(ByteBuffer pkt) {
+		byte flag = getFlag(pkt);
+		return flag == 2 || ((flag == 0 || flag == 16) && getDataLength(pkt) > 0);
+	}
+
+	/*
+	 * Whether the datagram (from its position to its limit) is a whole
+	 * packet: a known flag, a full header, at most MAX_SACK_BLOCKS SACK
+	 * blocks and exactly the data the header announces. Nothing else may be
+	 * read from a datagram that is not.
+	 */
+	public static boolean isWellFormed(ByteBuffer datagram) {
+		int length = datagram.remaining();
+		if (length < HEADER_LENGTH) {
+			return false;
+		}
+		byte flag = getFlag(datagram);
+		if (flag != 0 && flag != 1 && flag != 2 && flag != 3 && flag != 16) {
+			return false;
 		}
-		return false;
+		int sackBlockCount = getSackBlockCount(datagram);
+		if (sackBlockCount < 0 || sackBlockCount > MAX_SACK_BLOCKS) {
+			return false;
+		}
+		return getDataLength(datagram) == length - HEADER_LENGTH - sackBlockCount * SACK_BLOCK_LENGTH;
 	}
-	
+
+	public static int getSeq(byte[] buf, int off) {
+		return getInt(buf, off + SEQ_OFFSET);
+	}
+
+	public static int getSeq(ByteBuffer pkt) {
+		return pkt.getInt(pkt.position() + SEQ_OFFSET);
+	}
+
+	public static int getSeq(DatagramPacket pkt) {
+		return getSeq(pkt.getData(), pkt.getOffset());
+	}
+
+	public static int getACK(byte[] buf, int off) {
+		return getInt(buf, off + ACK_OFFSET);
+	}
+
+	public static int getACK(ByteBuffer pkt) {
+		return pkt.getInt(pkt.position() + ACK_OFFSET);
+	}
+
 	public static int getACK(DatagramPacket pkt) {
-		byte[] packetDataAsBytes = pkt.getData();
+		return getACK(pkt.getData(), pkt.getOffset());
+	}
+
+	public static int getWindow(byte[] buf, int off) {
+		return getInt(buf, off + WINDOW_OFFSET);
+	}
+
+	public static int getWindow(ByteBuffer pkt) {
+		return pkt.getInt(pkt.position() + WINDOW_OFFSET);
+	}
+
+	public static int getWindow(DatagramPacket pkt) {
+		return getWindow(pkt.getData(), pkt.getOffset());
+	}
+
+	public static int getSackBlockCount(byte[] buf, int off) {
+		return buf[off + SACK_BLOCKS_OFFSET];
+	}
+
+	public static int getSackBlockCount(ByteBuffer pkt) {
+		return pkt.get(pkt.position() + SACK_BLOCKS_OFFSET);
+	}
+
+	public static int getSackBlockCount(DatagramPacket pkt) {
+		return getSackBlockCount(pkt.getData(), pkt.getOffset());
+	}
+
+	// first packet number of the i-th SACK block
+	public static int getSackBlockStart(DatagramPacket pkt, int i) {
+		return getInt(pkt.getData(), pkt.getOffset() + HEADER_LENGTH + i * SACK_BLOCK_LENGTH);
+	}
+
+	// packet number right after the i-th SACK block
+	public static int getSackBlockEnd(DatagramPacket pkt, int i) {
+		return getInt(pkt.getData(), pkt.getOffset() + HEADER_LENGTH + i * SACK_BLOCK_LENGTH + 4);
+	}
+
+	public static int getSackBlockStart(ByteBuffer pkt, int i) {
+		return pkt.getInt(pkt.position() + HEADER_LENGTH + i * SACK_BLOCK_LENGTH);
+	}
+
+	public static int getSackBlockEnd(ByteBuffer pkt, int i) {
+		return pkt.getInt(pkt.position() + HEADER_LENGTH + i * SACK_BLOCK_LENGTH + 4);
+	}
+
+	public static int getDataLength(byte[] buf, int off) {
+		return getInt(buf, off + DATA_LENGTH_OFFSET);
+	}
+
+	public static int getDataLength(ByteBuffer pkt) {
+		return pkt.getInt(pkt.position() + DATA_LENGTH_OFFSET);
+	}
+
+	public static int getDataLength(DatagramPacket pkt) {
+		return getDataLength(pkt.getData(), pkt.getOffset());
+	}
 
-		byte[] ackAsBytes = Arrays.copyOfRange(packetDataAsBytes, 1, 5);
-		ByteBuffer wrapped = ByteBuffer.wrap(ackAsBytes);
+	/*
+	 * Copies at most len bytes of the packet data, starting from the
+	 * from-th byte of the data, into dst. Returns the number of copied bytes.
+	 */
+	public static int getData(DatagramPacket pkt, int from, byte[] dst, int dstOff, int len) {
+		int count = Math.min(len, getDataLength(pkt) - from);
+		System.arraycopy(pkt.getData(), getDataOffset(pkt) + from, dst, dstOff, count);
+		return count;
+	}
 
-		return wrapped.getInt();
+	/*
+	 * Same as above, but copies into the remaining space of dst and advances
+	 * its position.
+	 */
+	public static int getData(DatagramPacket pkt, int from, ByteBuffer dst) {
+		int count = Math.min(dst.remaining(), getDataLength(pkt) - from);
+		dst.put(pkt.getData(), getDataOffset(pkt) + from, count);
+		return count;
 	}
-	
+
+	/*
+	 * Reads the from-th..(from+3)-th bytes of the packet data as an integer
+	 * (e.g. the MSS carried by SYN packets).
+	 */
+	public static int getIntData(DatagramPacket pkt, int from) {
+		return getInt(pkt.getData(), getDataOffset(pkt) + from);
+	}
+
 	public static String getData(DatagramPacket pkt) {
-		byte[] packetDataAsBytes = pkt.getData();
+		return new String(pkt.getData(), getDataOffset(pkt), getDataLength(pkt));
+	}
 
-		byte[] dataLengthAsBytes = Arrays.copyOfRange(packetDataAsBytes, 5, 9);
-		ByteBuffer wrapped = ByteBuffer.wrap(dataLengthAsBytes);
-		int dataLength = wrapped.getInt();
+	/*
+	 * Same as the ones above for a packet held in a ByteBuffer (starting at
+	 * its position). The packet buffer is left as it was.
+	 */
+	public static int getData(ByteBuffer pkt, int from, ByteBuffer dst) {
+		int count = Math.min(dst.remaining(), getDataLength(pkt) - from);
+		int position = pkt.position();
+		int limit = pkt.limit();
+		int begin = getDataOffset(pkt) + from;
+		pkt.limit(begin + count).position(begin);
+		dst.put(pkt);
+		pkt.limit(limit).position(position);
+		return count;
+	}
 
-		byte[] dataAsBytes = Arrays.copyOfRange(packetDataAsBytes, 9, 9 + dataLength);
+	public static int getIntData(ByteBuffer pkt, int from) {
+		return pkt.getInt(getDataOffset(pkt) + from);
+	}
 
-		return new String(dataAsBytes);
-		
+	public static String getData(ByteBuffer pkt) {
+		byte[] data = new byte[getDataLength(pkt)];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = pkt.get(getDataOffset(pkt) + i);
+		}
+		return new String(data);
 	}
-	
+
+	// index of the first data byte in pkt.getData()
+	private static int getDataOffset(DatagramPacket pkt) {
+		return pkt.getOffset() + HEADER_LENGTH + getSackBlockCount(pkt) * SACK_BLOCK_LENGTH;
+	}
+
+	// index of the first data byte in pkt (the data can be used in place)
+	public static int getDataOffset(ByteBuffer pkt) {
+		return pkt.position() + HEADER_LENGTH + getSackBlockCount(pkt) * SACK_BLOCK_LENGTH;
+	}
+
 	public static void printData(DatagramPacket pkt, String pktName) {
+		printData(ByteBuffer.wrap(pkt.getData(), pkt.getOffset(), pkt.getLength()), pktName);
+	}
+
+	public static void printData(ByteBuffer pkt, String pktName) {
 
 		System.out.printf(String.format("Packet \"%s\":%n", pktName));
 
@@ -107,16 +432,39 @@ public class PacketManager {
 			System.out.println("1 (SYN)");
 		}
 		else if (PacketManager.isFinPacket(pkt)){
-			System.out.println("2 (FIN)");	
+			System.out.println("2 (FIN)");
+		}
+		else if (PacketManager.isParityPacket(pkt)) {
+			System.out.println("3 (PARITY)");
+		}
+		else if (PacketManager.isCompressedPacket(pkt)) {
+			System.out.println("16 (COMPRESSED)");
 		}
 		else {
 			System.out.println("0 (REGULAR)");
 		}
-		
+
+		// print seq
+		System.out.print("    SEQ = ");
+		System.out.println(PacketManager.getSeq(pkt));
+
 		// print ack
 		System.out.print("    ACK = ");
 		System.out.println(PacketManager.getACK(pkt));
 
+		// print window
+		System.out.print("    WINDOW = ");
+		System.out.println(PacketManager.getWindow(pkt));
+
+		// print SACK blocks
+		if (PacketManager.getSackBlockCount(pkt) > 0) {
+			System.out.print("    SACK =");
+			for (int i = 0; i < PacketManager.getSackBlockCount(pkt); ++i) {
+				System.out.print(" [" + PacketManager.getSackBlockStart(pkt, i) + ", " + PacketManager.getSackBlockEnd(pkt, i) + ")");
+			}
+			System.out.println();
+		}
+
 		// print data
 		System.out.println("    DATA:");
 		String data = PacketManager.getData(pkt);
@@ -135,4 +483,26 @@ public class PacketManager {
 			System.out.println();
 		}
 	}
+
+	private static void checkDataLength(int dataLength) {
+		if (dataLength > MAX_DATA_LENGTH) {
+			throw new IllegalArgumentException(
+					"Data length " + dataLength + " exceeds " + MAX_DATA_LENGTH + " bytes"
+			);
+		}
+	}
+
+	private static void putInt(byte[] buf, int off, int value) {
+		buf[off]     = (byte)(value >>> 24);
+		buf[off + 1] = (byte)(value >>> 16);
+		buf[off + 2] = (byte)(value >>> 8);
+		buf[off + 3] = (byte)value;
+	}
+
+	private static int getInt(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 24)
+				| ((buf[off + 1] & 0xFF) << 16)
+				| ((buf[off + 2] & 0xFF) << 8)
+				| (buf[off + 3] & 0xFF);
+	}
 }
@@ -0,0 +1,72 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Pool of direct buffers of one size. Buffers are cut out of bigger direct
+ * slabs, so thousands of them cost a few allocateDirect calls. Taking and
+ * releasing a buffer allocates nothing unless the pool is empty, then it
+ * grows by one slab. Buffers are taken by the event loop and released by
+ * the threads that read the data, so the pool is thread-safe.
+ */
+class BufferPool {
+	private static final int BUFFERS_PER_SLAB = 64;
+
+	private final int bufferSize;
+	private final ArrayDeque<ByteBuffer> freeBuffers;
+	private final ReentrantLock lock;
+
+	BufferPool(int bufferSize, int initialBuffers) {
+		this.bufferSize = bufferSize;
+		freeBuffers = new ArrayDeque<ByteBuffer>(initialBuffers);
+		lock = new ReentrantLock();
+		while (freeBuffers.size() < initialBuffers) {
+			grow();
+		}
+	}
+
+	/*
+	 * Returns a cleared buffer of bufferSize bytes.
+	 */
+	ByteBuffer take() {
+		lock.lock();
+		try {
+			if (freeBuffers.isEmpty()) {
+				grow();
+			}
+			ByteBuffer buffer = freeBuffers.poll();
+			buffer.clear();
+			return buffer;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			freeBuffers.add(buffer);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	private void grow() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * BUFFERS_PER_SLAB);
+		for (int i = 0; i < BUFFERS_PER_SLAB; ++i) {
+			slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+			freeBuffers.add(slab.slice());
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/*
+ * Compression of the sending half. The data of all messages goes through
+ * one raw deflate stream, which lives as long as the connection: each
+ * message ends with a sync flush, so the peer can inflate it as soon as its
+ * packets arrive, but later messages still refer back to earlier ones (and
+ * to the preset dictionary, if any). That is what makes short messages
+ * compress, and long ones take fewer packets: the packets carry compressed
+ * bytes, MSS of them each.
+ *
+ * When a piece of data does not get smaller than MAX_RATIO of its size,
+ * the data that follows is sent as it is, not through the stream, until
+ * SKIP_BYTES have gone by; then compression is tried again. Data sent as
+ * it is costs nothing to compress and nothing to inflate.
+ *
+ * Used by the application's threads, one at a time (the connection has a
+ * lock for that). It is closed together with the connection.
+ */
+class Compressor {
+	// large messages are compressed and queued in pieces of this size
+	static final int CHUNK_SIZE = 256 * 1024;
+
+	private static final double MAX_RATIO = 0.9;
+	private static final long SKIP_BYTES = 1024 * 1024;
+
+	private Deflater deflater;
+	// bytes sent as they are since compression last did not pay off
+	private long skipped;
+	private boolean skipping;
+	// close() may come while a piece is compressed
+	private ReentrantLock lock;
+	private boolean closed;
+
+	Compressor(byte[] dictionary) {
+		// no zlib header and checksum, the packets have their own framing
+		deflater = new Deflater(Deflater.BEST_SPEED, true);
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		skipping = false;
+		lock = new ReentrantLock();
+		closed = false;
+	}
+
+	/*
+	 * Returns the remaining bytes of data compressed (a new buffer), or null
+	 * if they are to be sent as they are (or the compressor is closed). data
+	 * is left untouched.
+	 */
+	ByteBuffer compress(ByteBuffer data) {
+		lock.lock();
+		try {
+			// the connection is closed, the data goes nowhere anyway
+			if (closed) {
+				return null;
+			}
+
+			int length = data.remaining();
+			if (skipping) {
+				skipped += length;
+				if (skipped < SKIP_BYTES) {
+					return null;
+				}
+				skipping = false;
+			}
+
+			deflater.setInput(data.duplicate());
+			ByteBuffer out = ByteBuffer.allocate(length / 2 + 64);
+			while (true) {
+				if (!out.hasRemaining()) {
+					ByteBuffer larger = ByteBuffer.allocate(2 * out.capacity());
+					out.flip();
+					larger.put(out);
+					out = larger;
+				}
+				int space = out.remaining();
+				// all output is there once some space is left over
+				if (deflater.deflate(out, Deflater.SYNC_FLUSH) < space) {
+					break;
+				}
+			}
+			out.flip();
+
+			if (out.remaining() > length * MAX_RATIO) {
+				skipping = true;
+				skipped = 0;
+			}
+			return out;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// frees the memory of the deflate stream, once the connection is closed
+	void close() {
+		lock.lock();
+		try {
+			if (!closed) {
+				closed = true;
+				deflater.end();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * What the SYN packets carry to tell the dictionary: Adler-32 of it, 0
+	 * without one. The sides compress only if they have the same one.
+	 */
+	static int dictionaryId(byte[] dictionary) {
+		if (dictionary == null) {
+			return 0;
+		}
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int)adler.getValue();
+	}
+}
@@ -0,0 +1,13 @@
+package tcp;
+
+/*
+ * Code that serves one client of a TCPServerSocket (see serve()). It runs
+ * on a thread of its own, so it can simply block in receive() and send().
+ * The output is shut down and the connection closed when the handler
+ * returns, what it throws goes to the server's tracer.
+ */
+@FunctionalInterface
+public interface ConnectionHandler {
+
+	void handle(TCPConnection connection) throws Exception;
+}
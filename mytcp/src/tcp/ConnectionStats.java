@@ -0,0 +1,240 @@
+package tcp;
+
+/*
+ * Snapshot of the statistics of a connection, see TCPConnection.getStats().
+ * Counters cover the whole life of the connection. Segments are packets:
+ * the ones sent include retransmissions and plain ACKs, the ones received
+ * include duplicates.
+ */
+public class ConnectionStats {
+	private long elapsedNanos;
+
+	private long segmentsSent;
+	private long bytesSent;
+	private long fastRetransmits;
+	private long lossRetransmits;
+	private long timeoutRetransmits;
+	private long bytesRetransmitted;
+	private long windowProbes;
+	private long paritySegmentsSent;
+	private long pacingDelays;
+	private long acksSent;
+	private long bytesAcked;
+	private long duplicateAcksReceived;
+	private long bytesBeforeCompression;
+	private long bytesAfterCompression;
+
+	private long segmentsReceived;
+	private long bytesReceived;
+	private long outOfOrderSegments;
+	private long duplicateSegments;
+	private long segmentsBeyondWindow;
+	private long segmentsRecovered;
+
+	private Histogram rtt;
+	private Histogram sendWindowOccupancy;
+	private Histogram receiveWindowOccupancy;
+
+	ConnectionStats(
+			long elapsedNanos,
+			long segmentsSent,
+			long bytesSent,
+			long fastRetransmits,
+			long lossRetransmits,
+			long timeoutRetransmits,
+			long bytesRetransmitted,
+			long windowProbes,
+			long paritySegmentsSent,
+			long pacingDelays,
+			long acksSent,
+			long bytesAcked,
+			long duplicateAcksReceived,
+			long bytesBeforeCompression,
+			long bytesAfterCompression,
+			long segmentsReceived,
+			long bytesReceived,
+			long outOfOrderSegments,
+			long duplicateSegments,
+			long segmentsBeyondWindow,
+			long segmentsRecovered,
+			Histogram rtt,
+			Histogram sendWindowOccupancy,
+			Histogram receiveWindowOccupancy
+	) {
+		this.elapsedNanos = elapsedNanos;
+		this.segmentsSent = segmentsSent;
+		this.bytesSent = bytesSent;
+		this.fastRetransmits = fastRetransmits;
+		this.lossRetransmits = lossRetransmits;
+		this.timeoutRetransmits = timeoutRetransmits;
+		this.bytesRetransmitted = bytesRetransmitted;
+		this.windowProbes = windowProbes;
+		this.paritySegmentsSent = paritySegmentsSent;
+		this.pacingDelays = pacingDelays;
+		this.acksSent = acksSent;
+		this.bytesAcked = bytesAcked;
+		this.duplicateAcksReceived = duplicateAcksReceived;
+		this.bytesBeforeCompression = bytesBeforeCompression;
+		this.bytesAfterCompression = bytesAfterCompression;
+		this.segmentsReceived = segmentsReceived;
+		this.bytesReceived = bytesReceived;
+		this.outOfOrderSegments = outOfOrderSegments;
+		this.duplicateSegments = duplicateSegments;
+		this.segmentsBeyondWindow = segmentsBeyondWindow;
+		this.segmentsRecovered = segmentsRecovered;
+		this.rtt = rtt;
+		this.sendWindowOccupancy = sendWindowOccupancy;
+		this.receiveWindowOccupancy = receiveWindowOccupancy;
+	}
+
+	// time since the connection was opened, in milliseconds
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	public long getSegmentsSent() {
+		return segmentsSent;
+	}
+
+	// data bytes sent for the first time
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	// retransmissions by cause: 3 duplicate ACKs, SACK loss recovery, timer
+	public long getFastRetransmits() {
+		return fastRetransmits;
+	}
+
+	public long getLossRetransmits() {
+		return lossRetransmits;
+	}
+
+	public long getTimeoutRetransmits() {
+		return timeoutRetransmits;
+	}
+
+	public long getRetransmits() {
+		return fastRetransmits + lossRetransmits + timeoutRetransmits;
+	}
+
+	public long getBytesRetransmitted() {
+		return bytesRetransmitted;
+	}
+
+	// packets sent into a zero window
+	public long getWindowProbes() {
+		return windowProbes;
+	}
+
+	// parity packets sent (forward error correction)
+	public long getParitySegmentsSent() {
+		return paritySegmentsSent;
+	}
+
+	// times the pacer held a packet back
+	public long getPacingDelays() {
+		return pacingDelays;
+	}
+
+	// ACKs sent without data
+	public long getAcksSent() {
+		return acksSent;
+	}
+
+	// data bytes the peer has acked
+	public long getBytesAcked() {
+		return bytesAcked;
+	}
+
+	public long getDuplicateAcksReceived() {
+		return duplicateAcksReceived;
+	}
+
+	// the application's bytes that were compressed, and what they took
+	// compressed (data sent as it is is not counted)
+	public long getBytesBeforeCompression() {
+		return bytesBeforeCompression;
+	}
+
+	public long getBytesAfterCompression() {
+		return bytesAfterCompression;
+	}
+
+	public long getSegmentsReceived() {
+		return segmentsReceived;
+	}
+
+	// data bytes received, every packet counted once
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	// packets that arrived before some packet with a lower number
+	public long getOutOfOrderSegments() {
+		return outOfOrderSegments;
+	}
+
+	// packets that had already been received
+	public long getDuplicateSegments() {
+		return duplicateSegments;
+	}
+
+	// packets that did not fit into the receive window
+	public long getSegmentsBeyondWindow() {
+		return segmentsBeyondWindow;
+	}
+
+	// lost packets rebuilt from parity, without a retransmission
+	public long getSegmentsRecovered() {
+		return segmentsRecovered;
+	}
+
+	// acked and received data bytes per second since the connection was opened
+	public double getSendGoodput() {
+		return (elapsedNanos == 0) ? 0 : bytesAcked * 1e9 / elapsedNanos;
+	}
+
+	public double getReceiveGoodput() {
+		return (elapsedNanos == 0) ? 0 : bytesReceived * 1e9 / elapsedNanos;
+	}
+
+	// RTT samples, in microseconds
+	public Histogram getRtt() {
+		return rtt;
+	}
+
+	// packets in flight whenever new packets were acked
+	public Histogram getSendWindowOccupancy() {
+		return sendWindowOccupancy;
+	}
+
+	// packets buffered in the receive window whenever a new one arrived
+	public Histogram getReceiveWindowOccupancy() {
+		return receiveWindowOccupancy;
+	}
+
+	@Override
+	public String toString() {
+		return "elapsed=" + getElapsedMillis() + "ms"
+				+ " sent=" + segmentsSent + "/" + bytesSent + "B"
+				+ " retransmits=" + getRetransmits()
+				+ " (fast=" + fastRetransmits + " loss=" + lossRetransmits + " timeout=" + timeoutRetransmits + ")"
+				+ " probes=" + windowProbes
+				+ " parity=" + paritySegmentsSent
+				+ " paced=" + pacingDelays
+				+ " acks=" + acksSent
+				+ " acked=" + bytesAcked + "B"
+				+ " dupAcks=" + duplicateAcksReceived
+				+ " compressed=" + bytesBeforeCompression + "->" + bytesAfterCompression + "B"
+				+ " received=" + segmentsReceived + "/" + bytesReceived + "B"
+				+ " outOfOrder=" + outOfOrderSegments
+				+ " duplicates=" + duplicateSegments
+				+ " beyondWindow=" + segmentsBeyondWindow
+				+ " recovered=" + segmentsRecovered
+				+ String.format(" goodput=%.0f/%.0fB/s", getSendGoodput(), getReceiveGoodput())
+				+ " rtt(us)=[" + rtt + "]"
+				+ " inFlight=[" + sendWindowOccupancy + "]"
+				+ " buffered=[" + receiveWindowOccupancy + "]";
+	}
+}
@@ -0,0 +1,90 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import pktmngr.PacketManager;
+
+/*
+ * Inflates the compressed packets of the peer (see Compressor), in order:
+ * they are one deflate stream. The data of a packet may inflate to more
+ * than the reader asks for, then the packet is inflated over several calls.
+ *
+ * Used by the thread that reads the connection. It is closed together with
+ * the connection.
+ */
+class Decompressor {
+	private Inflater inflater;
+	// the packet being inflated, null once it is done
+	private ByteBuffer input;
+	private boolean done;
+	// close() may come while a packet is inflated
+	private ReentrantLock lock;
+	private boolean closed;
+
+	Decompressor(byte[] dictionary) {
+		inflater = new Inflater(true);
+		if (dictionary != null) {
+			inflater.setDictionary(dictionary);
+		}
+		lock = new ReentrantLock();
+		closed = false;
+	}
+
+	/*
+	 * Inflates the data of the compressed packet pkt into the remaining
+	 * space of dst, goes on where the previous call stopped if it is the
+	 * same packet. Returns the number of bytes inflated; isDone() tells if
+	 * the packet has nothing more to give.
+	 */
+	int inflate(ByteBuffer pkt, ByteBuffer dst) throws TCPException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new TCPException("Connection closed.");
+			}
+			if (input != pkt) {
+				ByteBuffer data = pkt.duplicate();
+				int begin = PacketManager.getDataOffset(pkt);
+				data.limit(begin + PacketManager.getDataLength(pkt)).position(begin);
+				inflater.setInput(data);
+				input = pkt;
+			}
+			int count = inflater.inflate(dst);
+			// inflate() stops short of filling dst only when the input is used up
+			done = inflater.needsInput() && dst.hasRemaining();
+			if (done) {
+				// the buffer goes back to the pool, do not mistake it for this packet
+				input = null;
+			}
+			return count;
+		}
+		catch (DataFormatException e) {
+			throw new TCPException("Corrupt compressed data: " + e.getMessage());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isDone() {
+		return done;
+	}
+
+	// frees the memory of the inflate stream, once the connection is closed
+	void close() {
+		lock.lock();
+		try {
+			if (!closed) {
+				closed = true;
+				input = null;
+				inflater.end();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pktmngr.PacketManager;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+import tcp.transport.DatagramTransport;
+
+/*
+ * Event loop of one UDP socket: the server's one, or the one of a client.
+ * A single thread waits on a Selector for datagrams of the non-blocking
+ * channel, for the nearest timer of the connections and for the datagrams
+ * the transport holds back, and runs the connections other threads have
+ * woken up (because the application gave them something to send). The
+ * loop only wakes up for these events. Datagrams go through the
+ * transport both ways.
+ *
+ * Datagrams are received into pooled direct buffers and passed to the
+ * handler of the socket, outgoing packets of all connections are encoded
+ * into one direct buffer, so nothing is allocated per datagram. The timers,
+ * the send buffer and whatever the handler does belong to the loop thread:
+ * a connection closed by another thread is handed over to the loop, which
+ * cancels its timers (the closing thread does it once the loop is gone).
+ * Events of the socket and its connections go to the socket's tracer.
+ *
+ * Datagrams that are no whole packet are dropped before anything reads
+ * them. A connection that throws is aborted on its own, the loop and the
+ * other connections go on.
+ */
+class EventLoop {
+
+	interface Handler {
+		/*
+		 * A datagram of sender is in datagram (from its position to its
+		 * limit). Returns the buffer to receive the next datagram into:
+		 * datagram itself, or a free one if the datagram is kept.
+		 */
+		ByteBuffer handleDatagram(SocketAddress sender, ByteBuffer datagram) throws IOException;
+
+		// the connection is closed and can be forgotten
+		void connectionClosed(TCPConnection connection);
+
+		// the connection of sender, null if there is none
+		TCPConnection findConnection(SocketAddress sender);
+	}
+
+	private static final int TIMER_WHEEL_SIZE = 512;
+
+	private DatagramTransport transport;
+	private Selector selector;
+	private Handler handler;
+	private BufferPool bufferPool;
+	private ByteBuffer recvBuffer;
+	private ByteBuffer sendBuffer;
+	private TimingWheel timers;
+	private Tracer tracer;
+	private boolean traceConnections;
+	private Thread thread;
+	private volatile boolean closed;
+
+	// connections woken up by other threads, in the order they asked
+	private ArrayDeque<TCPConnection> wokenUp;
+	// connections closed by other threads, still to be released
+	private ArrayDeque<TCPConnection> closedByOthers;
+	// the loop thread has finished, closed connections are released at once
+	private boolean stopped;
+	// guards wokenUp, closedByOthers and stopped
+	private ReentrantLock lock;
+	// serializes the releases once the loop thread is gone
+	private ReentrantLock releaseLock;
+
+	EventLoop(
+			String name,
+			DatagramTransport transport,
+			BufferPool bufferPool,
+			int maxPacketSize,
+			Tracer tracer,
+			Handler handler
+	) throws IOException {
+		this.transport = transport;
+		this.bufferPool = bufferPool;
+		this.tracer = tracer;
+		this.handler = handler;
+		traceConnections = tracer.isEnabled(Tracer.Level.CONNECTIONS);
+		recvBuffer = bufferPool.take();
+		sendBuffer = ByteBuffer.allocateDirect(maxPacketSize);
+		timers = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(1), TIMER_WHEEL_SIZE);
+		wokenUp = new ArrayDeque<TCPConnection>();
+		closedByOthers = new ArrayDeque<TCPConnection>();
+		lock = new ReentrantLock();
+		releaseLock = new ReentrantLock();
+		closed = false;
+		stopped = false;
+
+		selector = Selector.open();
+		transport.getChannel().register(selector, SelectionKey.OP_READ);
+
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/*
+	 * Makes the loop call connection.handleWakeup() soon. May be called by
+	 * any thread.
+	 */
+	void wakeup(TCPConnection connection) {
+		lock.lock();
+		try {
+			wokenUp.add(connection);
+		}
+		finally {
+			lock.unlock();
+		}
+		selector.wakeup();
+	}
+
+	/*
+	 * The connection is closed: its timers are cancelled and the handler
+	 * forgets it on the loop thread. May be called by any thread, the
+	 * connection must not be called by the caller afterwards.
+	 */
+	void connectionClosed(TCPConnection connection) {
+		if (Thread.currentThread() == thread) {
+			release(connection);
+			return;
+		}
+		lock.lock();
+		try {
+			if (!stopped) {
+				closedByOthers.add(connection);
+				connection = null;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		if (connection == null) {
+			selector.wakeup();
+			return;
+		}
+		// nobody else touches the timers now but the threads releasing
+		releaseLock.lock();
+		try {
+			release(connection);
+		}
+		finally {
+			releaseLock.unlock();
+		}
+	}
+
+	TimingWheel getTimers() {
+		return timers;
+	}
+
+	Tracer getTracer() {
+		return tracer;
+	}
+
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	// packets are encoded here right before they are sent
+	ByteBuffer getSendBuffer() {
+		return sendBuffer;
+	}
+
+	void send(ByteBuffer packet, SocketAddress target) throws IOException {
+		transport.send(packet, target);
+	}
+
+	/*
+	 * Stops the loop and waits for its thread, connections closed meanwhile
+	 * are released. The transport is left open.
+	 */
+	void close() {
+		closed = true;
+		selector.wakeup();
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+				// done by run() already, unless the thread was never started
+				stop();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+			// nothing to do, the selector is gone anyway
+		}
+	}
+
+	private void run() {
+		while (!closed) {
+			try {
+				// sleep until a datagram arrives, a connection is woken up,
+				// the nearest timer expires or the transport has something due
+				long deadline = Math.min(timers.nextDeadline(), transport.process(System.nanoTime()));
+				if (deadline == Long.MAX_VALUE) {
+					selector.select();
+				}
+				else {
+					long timeout = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+					selector.select(Math.max(1, timeout));
+				}
+				selector.selectedKeys().clear();
+
+				// Event: datagrams received, read all of them
+				while (true) {
+					recvBuffer.clear();
+					SocketAddress sender = transport.receive(recvBuffer);
+					if (sender == null) {
+						break;
+					}
+					recvBuffer.flip();
+					if (!PacketManager.isWellFormed(recvBuffer)) {
+						if (traceConnections) {
+							tracer.connectionEvent(TraceEvent.MALFORMED, sender);
+						}
+						continue;
+					}
+					try {
+						recvBuffer = handler.handleDatagram(sender, recvBuffer);
+					}
+					catch (Exception e) {
+						// the buffer may have been kept before the failure
+						recvBuffer = bufferPool.take();
+						fail(handler.findConnection(sender), sender, e);
+					}
+				}
+
+				// Event: the application has something to send
+				TCPConnection connection;
+				while ((connection = pollWokenUp()) != null) {
+					try {
+						if (!connection.handleWakeup()) {
+							release(connection);
+						}
+					}
+					catch (Exception e) {
+						fail(connection, connection.getRemoteSocketAddress(), e);
+					}
+				}
+
+				// Event: connections closed by the application
+				while ((connection = pollClosed()) != null) {
+					release(connection);
+				}
+
+				// Event: timer timeout
+				long now = System.nanoTime();
+				TimingWheel.Timeout timeout;
+				while ((timeout = timers.poll(now)) != null) {
+					connection = (TCPConnection)timeout.getAttachment();
+					try {
+						if (!connection.handleTimeout(timeout, now)) {
+							release(connection);
+						}
+					}
+					catch (Exception e) {
+						fail(connection, connection.getRemoteSocketAddress(), e);
+					}
+				}
+			}
+			catch (IOException e) {
+				// the selector or the channel failed to receive (a connected
+				// channel reports ICMP errors this way): the connections find
+				// out by their timers
+				continue;
+			}
+		}
+		stop();
+	}
+
+	/*
+	 * The code of the connection threw: only that connection is aborted
+	 * and released, the tracer gets the exception. connection is null if
+	 * the datagram of peer failed before it had one.
+	 */
+	private void fail(TCPConnection connection, SocketAddress peer, Exception e) {
+		if (traceConnections) {
+			tracer.connectionError(peer, e);
+		}
+		if (connection != null) {
+			connection.fail(e);
+			release(connection);
+		}
+	}
+
+	// the loop thread is done, connections closed by now are released
+	private void stop() {
+		lock.lock();
+		try {
+			stopped = true;
+		}
+		finally {
+			lock.unlock();
+		}
+		releaseLock.lock();
+		try {
+			TCPConnection connection;
+			while ((connection = pollClosed()) != null) {
+				release(connection);
+			}
+		}
+		finally {
+			releaseLock.unlock();
+		}
+	}
+
+	// once per connection, however many times it is reported closed
+	private void release(TCPConnection connection) {
+		if (connection.release(closed)) {
+			handler.connectionClosed(connection);
+		}
+	}
+
+	private TCPConnection pollWokenUp() {
+		lock.lock();
+		try {
+			return wokenUp.poll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private TCPConnection pollClosed() {
+		lock.lock();
+		try {
+			return closedByOthers.poll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
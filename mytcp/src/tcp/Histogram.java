@@ -0,0 +1,132 @@
+package tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Distribution of non-negative values (RTT samples, window occupancy).
+ *
+ * Values below 16 have a bucket each, larger ones share a bucket with the
+ * values of the same power of two and the same 3 bits after the highest
+ * one, so a bucket is at most 1/8 of its values wide and 488 buckets cover
+ * every long. Recording is a few atomic increments, no locks: the event
+ * loop records, any thread may read. Percentiles are the lower bound of
+ * the bucket they fall into.
+ */
+public class Histogram {
+	private static final int LINEAR_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+	private AtomicLongArray buckets;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+
+	Histogram() {
+		buckets = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long currentMax;
+		while ((currentMax = max.get()) < value && !max.compareAndSet(currentMax, value)) {
+			// another thread has raised the maximum meanwhile, try again
+		}
+	}
+
+	// a copy that does not change any more
+	Histogram snapshot() {
+		Histogram copy = new Histogram();
+		for (int i = 0; i < BUCKETS; ++i) {
+			copy.buckets.set(i, buckets.get(i));
+		}
+		copy.count.add(count.sum());
+		copy.sum.add(sum.sum());
+		copy.max.set(max.get());
+		return copy;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : (double)sum.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * The value that percentile percent of the values do not exceed (up to
+	 * the bucket width), 0 if nothing is recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			total += buckets.get(i);
+		}
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += buckets.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(lowerBound(i), max.get());
+			}
+		}
+		return 0;
+	}
+
+	public long getMedian() {
+		return getPercentile(50);
+	}
+
+	public long get90thPercentile() {
+		return getPercentile(90);
+	}
+
+	public long get99thPercentile() {
+		return getPercentile(99);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount()
+				+ " mean=" + String.format("%.1f", getMean())
+				+ " p50=" + getMedian()
+				+ " p90=" + get90thPercentile()
+				+ " p99=" + get99thPercentile()
+				+ " max=" + getMax();
+	}
+
+	private static int bucketOf(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long lowerBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+		long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+	}
+}
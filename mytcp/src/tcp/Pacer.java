@@ -0,0 +1,83 @@
+package tcp;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Token bucket that spreads the packets of a sender over time, so that a
+ * window of them does not leave back to back and overflow the socket
+ * buffers and the queues on the way. Tokens are bytes, they accrue at the
+ * pacing rate up to the depth of the bucket: what the rate allows in
+ * BURST_TIME (the loop's timers tick once a millisecond, the packets due
+ * within a tick go together), but at least MIN_BURST packets.
+ *
+ * A packet may go while the bucket is not empty and may take it below
+ * zero; the next one waits until it is filled up again. Nobody spins
+ * waiting: the sender schedules a timer for getNextSendTime().
+ *
+ * A rate of 0 means no pacing. Times are in nanoseconds (System.nanoTime()),
+ * rates in bytes per second.
+ */
+class Pacer {
+	private static final long BURST_TIME = TimeUnit.MILLISECONDS.toNanos(2);
+	private static final int MIN_BURST = 2;
+
+	private int packetSize;
+	private long rate;
+	private double tokens;
+	private long lastRefill;
+
+	Pacer(int packetSize) {
+		this.packetSize = packetSize;
+		rate = 0;
+		tokens = 0;
+	}
+
+	void setRate(long rate, long now) {
+		if (this.rate == 0) {
+			// the bucket starts full
+			tokens = getDepth(rate);
+			lastRefill = now;
+		}
+		else {
+			refill(now);
+			tokens = Math.min(tokens, getDepth(rate));
+		}
+		this.rate = rate;
+	}
+
+	long getRate() {
+		return rate;
+	}
+
+	boolean canSend(long now) {
+		if (rate == 0) {
+			return true;
+		}
+		refill(now);
+		return tokens >= 0;
+	}
+
+	// a packet of bytes bytes is sent, paced or not
+	void packetSent(int bytes) {
+		if (rate != 0) {
+			tokens -= bytes;
+		}
+	}
+
+	// when the bucket is not empty any more
+	long getNextSendTime() {
+		if (rate == 0 || tokens >= 0) {
+			return lastRefill;
+		}
+		return lastRefill + (long)Math.ceil(-tokens * 1e9 / rate);
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(getDepth(rate), tokens + (now - lastRefill) * (rate / 1e9));
+		lastRefill = now;
+	}
+
+	private double getDepth(long rate) {
+		return Math.max(MIN_BURST * packetSize, rate * (BURST_TIME / 1e9));
+	}
+}
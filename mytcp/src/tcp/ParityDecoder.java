@@ -0,0 +1,219 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+
+import pktmngr.PacketManager;
+
+/*
+ * Forward error correction of the receiving half: rebuilds a lost packet
+ * from the parity packet of its group (see ParityEncoder) and the other
+ * packets of the group, without waiting for the peer to retransmit it.
+ *
+ * A parity packet is kept until its group has no lost packets left, or
+ * exactly one: then the lost packet is the XOR of the parity and the other
+ * packets of the group. Those still in the receive window are XORed in
+ * place. The ones already read are gone, so the packets read from the
+ * group the window base is in are XORed into a prefix parity as they are
+ * read; packets are read in order, so that is all of them.
+ *
+ * Kept parity packets are buffers of the pool, like the packets in the
+ * window. The connection calls everything with its lock held.
+ */
+class ParityDecoder {
+	private int groupSize;
+	private int firstSeq;
+	private int segmentSize;
+	private BufferPool bufferPool;
+
+	// parity packet of group i is in slot i % parities.length, or null
+	private ByteBuffer[] parities;
+
+	// XOR of the data (and lengths) of the packets prefixStart, ...,
+	// prefixStart + prefixCount - 1, the ones already read of their group
+	private ByteBuffer prefix;
+	private int prefixStart;
+	private int prefixCount;
+	private int prefixLengths;
+	private int prefixLongest;
+
+	// the rebuilt data, before it goes into a packet
+	private ByteBuffer rebuilt;
+
+	ParityDecoder(int groupSize, int segmentSize, int windowSize, int firstSeq, BufferPool bufferPool) {
+		this.groupSize = groupSize;
+		this.firstSeq = firstSeq;
+		this.segmentSize = segmentSize;
+		this.bufferPool = bufferPool;
+		// the groups the window spans, and the one being read
+		parities = new ByteBuffer[(windowSize + groupSize - 1) / groupSize + 2];
+		prefix = ByteBuffer.allocate(segmentSize);
+		prefixStart = firstSeq;
+		prefixCount = 0;
+		prefixLengths = 0;
+		prefixLongest = 0;
+		rebuilt = ByteBuffer.allocate(segmentSize);
+	}
+
+	/*
+	 * Takes a parity packet of the peer. Returns true if it is kept: the
+	 * caller has to receive into another buffer then.
+	 */
+	boolean addParity(ByteBuffer pkt, ReceiveWindow window) {
+		int start = PacketManager.getSeq(pkt);
+		int dataLength = PacketManager.getDataLength(pkt);
+		if (dataLength < ParityEncoder.PARITY_HEADER_LENGTH
+				|| dataLength > ParityEncoder.PARITY_HEADER_LENGTH + segmentSize
+				|| ParityEncoder.groupStart(start, firstSeq, groupSize) != start) {
+			return false;
+		}
+		int count = PacketManager.getIntData(pkt, 0);
+		// nothing to rebuild: the group is read, or too far ahead
+		if (count < 1 || count > groupSize
+				|| start + count - window.getBase() <= 0
+				|| start - window.getBase() >= window.getSize()) {
+			return false;
+		}
+		int slot = slotOf(start);
+		ByteBuffer kept = parities[slot];
+		if (kept != null && PacketManager.getSeq(kept) == start && getCount(kept) >= count) {
+			// a duplicate, or a parity of fewer packets
+			return false;
+		}
+		bufferPool.release(kept);
+		parities[slot] = pkt;
+		return true;
+	}
+
+	/*
+	 * Rebuilds the lost packet of the group packet number seq belongs to, if
+	 * its parity packet has come and exactly one of the packets it covers is
+	 * missing from the window. Returns the packet (a buffer of the pool,
+	 * with the header of a data packet), or null.
+	 */
+	ByteBuffer recover(int seq, ReceiveWindow window) {
+		int start = ParityEncoder.groupStart(seq, firstSeq, groupSize);
+		int slot = slotOf(start);
+		ByteBuffer parity = parities[slot];
+		if (parity == null || PacketManager.getSeq(parity) != start) {
+			return null;
+		}
+
+		int count = getCount(parity);
+		int base = window.getBase();
+		int missing = 0;
+		int lost = 0;
+		for (int i = 0; i < count; ++i) {
+			int s = start + i;
+			if (s - base < 0) {
+				continue;
+			}
+			if (!window.contains(s)) {
+				// the rest of the group cannot be buffered yet
+				return null;
+			}
+			if (!window.isBuffered(s)) {
+				missing++;
+				lost = s;
+			}
+		}
+		if (missing == 0) {
+			// every packet has come, the parity is of no use any more
+			release(slot);
+			return null;
+		}
+		if (missing > 1 || (base - start > 0 && (prefixStart != start || prefixCount != base - start))) {
+			return null;
+		}
+
+		int longest = PacketManager.getDataLength(parity) - ParityEncoder.PARITY_HEADER_LENGTH;
+		rebuilt.clear();
+		PacketManager.getData(parity, ParityEncoder.PARITY_HEADER_LENGTH, rebuilt);
+		int lengths = PacketManager.getIntData(parity, 4);
+		if (base - start > 0) {
+			if (prefixLongest > longest) {
+				return null;
+			}
+			ParityEncoder.xor(rebuilt, 0, prefix, 0, prefixLongest);
+			lengths ^= prefixLengths;
+		}
+		for (int i = 0; i < count; ++i) {
+			int s = start + i;
+			if (s - base < 0 || s == lost) {
+				continue;
+			}
+			ByteBuffer pkt = window.get(s);
+			int length = PacketManager.getDataLength(pkt);
+			// the packets do not match the parity
+			if (length > longest) {
+				return null;
+			}
+			ParityEncoder.xor(rebuilt, 0, pkt, PacketManager.getDataOffset(pkt), length);
+			lengths ^= ParityEncoder.lengthField(PacketManager.getFlag(pkt), length);
+		}
+		release(slot);
+		byte flag = (byte)(lengths >>> 24);
+		int length = lengths & 0xFFFFFF;
+		if ((flag != 0 && flag != 16) || length < 1 || length > longest) {
+			return null;
+		}
+
+		ByteBuffer pkt = bufferPool.take();
+		rebuilt.limit(length).position(0);
+		PacketManager.encode(pkt, flag, lost, 0, 0, rebuilt);
+		pkt.flip();
+		return pkt;
+	}
+
+	/*
+	 * Called for every packet taken out of the window, in order: adds it to
+	 * the prefix parity of its group.
+	 */
+	void packetRead(ByteBuffer pkt) {
+		int seq = PacketManager.getSeq(pkt);
+		int start = ParityEncoder.groupStart(seq, firstSeq, groupSize);
+		if (seq == start) {
+			ParityEncoder.clear(prefix, 0, prefixLongest);
+			prefixStart = start;
+			prefixCount = 0;
+			prefixLengths = 0;
+			prefixLongest = 0;
+		}
+		if (prefixStart != start || PacketManager.isFinPacket(pkt)) {
+			return;
+		}
+		int length = PacketManager.getDataLength(pkt);
+		ParityEncoder.xor(prefix, 0, pkt, PacketManager.getDataOffset(pkt), length);
+		prefixLengths ^= ParityEncoder.lengthField(PacketManager.getFlag(pkt), length);
+		prefixLongest = Math.max(prefixLongest, length);
+		prefixCount++;
+
+		// every packet the parity covers is read
+		int slot = slotOf(start);
+		ByteBuffer parity = parities[slot];
+		if (parity != null && PacketManager.getSeq(parity) == start && prefixCount >= getCount(parity)) {
+			release(slot);
+		}
+	}
+
+	// gives the kept parity packets back to the pool, the connection is gone
+	void release() {
+		for (int slot = 0; slot < parities.length; ++slot) {
+			if (parities[slot] != null) {
+				release(slot);
+			}
+		}
+	}
+
+	private int slotOf(int start) {
+		return Integer.remainderUnsigned(Integer.divideUnsigned(start - firstSeq, groupSize), parities.length);
+	}
+
+	private void release(int slot) {
+		bufferPool.release(parities[slot]);
+		parities[slot] = null;
+	}
+
+	private static int getCount(ByteBuffer parity) {
+		return PacketManager.getIntData(parity, 0);
+	}
+}
@@ -0,0 +1,137 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Forward error correction of the sending half. Packets are grouped by
+ * number: group i is packets firstSeq + i * groupSize, ..., firstSeq +
+ * (i + 1) * groupSize - 1. The data of the packets of a group is XORed
+ * together (each packet zero-padded to the longest one) into the data of a
+ * parity packet, which the peer uses to rebuild any one lost packet of the
+ * group (see ParityDecoder).
+ *
+ * Data of a parity packet:
+ *
+ *		count (4 bytes):		the parity covers packets SEQ, ..., SEQ + count - 1
+ *		lengths (4):			XOR of (flag << 24 | data length) of these packets
+ *		data (longest length):	XOR of their data
+ *
+ * A parity packet is sent after the last packet of its group, or covering
+ * only the packets sent so far when the sender runs out of queued data: the
+ * last packets of a message are the ones that otherwise wait longest for a
+ * retransmission. Only the first transmission of a packet is added.
+ */
+class ParityEncoder {
+	// largest group size the sides may agree on
+	static final int MAX_GROUP_SIZE = 64;
+
+	// count and lengths before the XORed data
+	static final int PARITY_HEADER_LENGTH = 8;
+
+	private int groupSize;
+	private int firstSeq;
+
+	// parity of packets groupStart, ..., groupStart + count - 1, longest
+	// data bytes long; the first sentCount of them are covered by the last
+	// parity packet sent
+	private ByteBuffer parity;
+	private int groupStart;
+	private int count;
+	private int sentCount;
+	private int lengths;
+	private int longest;
+
+	ParityEncoder(int groupSize, int segmentSize, int firstSeq) {
+		this.groupSize = groupSize;
+		this.firstSeq = firstSeq;
+		parity = ByteBuffer.allocate(PARITY_HEADER_LENGTH + segmentSize);
+		groupStart = firstSeq;
+		count = 0;
+		sentCount = 0;
+		lengths = 0;
+		longest = 0;
+	}
+
+	/*
+	 * Adds the remaining bytes of data as packet number seq with the given
+	 * flag, the packets must be added one after another. The buffer is left
+	 * untouched.
+	 */
+	void add(int seq, byte flag, ByteBuffer data) {
+		if (groupStart(seq, firstSeq, groupSize) == seq) {
+			// a new group, forget the previous one
+			clear(parity, PARITY_HEADER_LENGTH, longest);
+			groupStart = seq;
+			count = 0;
+			sentCount = 0;
+			lengths = 0;
+			longest = 0;
+		}
+		int length = data.remaining();
+		xor(parity, PARITY_HEADER_LENGTH, data, data.position(), length);
+		lengths ^= lengthField(flag, length);
+		longest = Math.max(longest, length);
+		count++;
+	}
+
+	boolean isGroupComplete() {
+		return count == groupSize;
+	}
+
+	// whether some packets of the group are not covered by a parity packet yet
+	boolean hasUncovered() {
+		return count > sentCount;
+	}
+
+	// SEQ of the parity packet: number of the first packet of the group
+	int getGroupStart() {
+		return groupStart;
+	}
+
+	/*
+	 * Returns the data of the parity packet for the packets added so far. It
+	 * stays valid until the next call to add().
+	 */
+	ByteBuffer takeParity() {
+		sentCount = count;
+		parity.putInt(0, count);
+		parity.putInt(4, lengths);
+		ByteBuffer data = parity.duplicate();
+		data.limit(PARITY_HEADER_LENGTH + longest).position(0);
+		return data;
+	}
+
+	// what a packet adds to the lengths: the flag tells if the data is compressed
+	static int lengthField(byte flag, int length) {
+		return (flag << 24) | length;
+	}
+
+	// number of the first packet of the group of packet number seq
+	static int groupStart(int seq, int firstSeq, int groupSize) {
+		return seq - Integer.remainderUnsigned(seq - firstSeq, groupSize);
+	}
+
+	/*
+	 * dst[dstOff, dstOff + length) ^= src[srcOff, srcOff + length), 8 bytes
+	 * at a time. Positions of the buffers are not used or changed.
+	 */
+	static void xor(ByteBuffer dst, int dstOff, ByteBuffer src, int srcOff, int length) {
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			dst.putLong(dstOff + i, dst.getLong(dstOff + i) ^ src.getLong(srcOff + i));
+		}
+		for (; i < length; ++i) {
+			dst.put(dstOff + i, (byte)(dst.get(dstOff + i) ^ src.get(srcOff + i)));
+		}
+	}
+
+	static void clear(ByteBuffer dst, int off, int length) {
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			dst.putLong(off + i, 0);
+		}
+		for (; i < length; ++i) {
+			dst.put(off + i, (byte)0);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Receive window of a connection: packets base, ..., base + size - 1.
+ *
+ * Packets are kept in a circular array, a bitset tells which slots are
+ * buffered. The window slides by moving the head index, so taking the first
+ * packet out costs O(1) whatever the size is. The number of the first
+ * packet that is not buffered (the cumulative ACK) is kept up to date as
+ * packets arrive, each slot is passed over once; SACK blocks are found
+ * 64 slots at a time.
+ *
+ * Packet numbers may wrap around, they are only compared as differences.
+ * Not thread-safe, the connection guards it with its lock.
+ */
+class ReceiveWindow {
+	private final ByteBuffer[] slots;
+	private final long[] buffered;
+	private final int mask;
+	private final int size;
+
+	// number of the packet in slots[head]
+	private int base;
+	private int head;
+	// packets base, ..., base + contiguous - 1 are buffered, the next one is not
+	private int contiguous;
+	private int bufferedCount;
+
+	ReceiveWindow(int size, int base) {
+		// at least one bitset word, a power of two for the index mask
+		int capacity = Math.max(64, Integer.highestOneBit(Math.max(size - 1, 1)) << 1);
+		slots = new ByteBuffer[capacity];
+		buffered = new long[capacity / 64];
+		mask = capacity - 1;
+		this.size = size;
+		this.base = base;
+		head = 0;
+		contiguous = 0;
+		bufferedCount = 0;
+	}
+
+	int getBase() {
+		return base;
+	}
+
+	int getSize() {
+		return size;
+	}
+
+	// number of the first packet that is not buffered
+	int getNextExpected() {
+		return base + contiguous;
+	}
+
+	boolean contains(int seq) {
+		return seq - base >= 0 && seq - base < size;
+	}
+
+	boolean isBuffered(int seq) {
+		int p = (head + seq - base) & mask;
+		return (buffered[p >>> 6] & (1L << p)) != 0;
+	}
+
+	// the packet number seq, which must be buffered; it stays in the window
+	ByteBuffer get(int seq) {
+		return slots[(head + seq - base) & mask];
+	}
+
+	// number of packets buffered, in order or not
+	int getBufferedCount() {
+		return bufferedCount;
+	}
+
+	// whether some packet after the cumulative ACK is buffered
+	boolean hasOutOfOrderPackets() {
+		return bufferedCount > contiguous;
+	}
+
+	// whether the packet number base is buffered
+	boolean isFirstBuffered() {
+		return contiguous > 0;
+	}
+
+	/*
+	 * Buffers pkt as the packet number seq, which must be in the window and
+	 * not buffered yet.
+	 */
+	void put(int seq, ByteBuffer pkt) {
+		int p = (head + seq - base) & mask;
+		slots[p] = pkt;
+		buffered[p >>> 6] |= 1L << p;
+		bufferedCount++;
+		if (seq - base == contiguous) {
+			contiguous = nextOffset(contiguous + 1, false);
+		}
+	}
+
+	/*
+	 * Takes the packet number base out of the window (it must be buffered)
+	 * and slides the window by one.
+	 */
+	ByteBuffer poll() {
+		ByteBuffer pkt = slots[head];
+		slots[head] = null;
+		buffered[head >>> 6] &= ~(1L << head);
+		head = (head + 1) & mask;
+		base++;
+		contiguous--;
+		bufferedCount--;
+		return pkt;
+	}
+
+	/*
+	 * Empties the window once its connection is gone: the buffered packets
+	 * go back to bufferPool. The window stays where it was.
+	 */
+	void release(BufferPool bufferPool) {
+		for (int p = 0; p < slots.length; ++p) {
+			if (slots[p] != null) {
+				bufferPool.release(slots[p]);
+				slots[p] = null;
+			}
+		}
+		Arrays.fill(buffered, 0);
+		contiguous = 0;
+		bufferedCount = 0;
+	}
+
+	/*
+	 * Fills blocks with at most maxBlocks runs of buffered packets after the
+	 * packet number from: block i is [blocks[2 * i], blocks[2 * i + 1]).
+	 * Returns the number of blocks.
+	 */
+	int collectSackBlocks(int from, int[] blocks, int maxBlocks) {
+		int count = 0;
+		int offset = Math.max(from - base, 0);
+		while (count < maxBlocks && offset < size) {
+			offset = nextOffset(offset, true);
+			if (offset == size) {
+				break;
+			}
+			blocks[2 * count] = base + offset;
+			offset = nextOffset(offset, false);
+			blocks[2 * count + 1] = base + offset;
+			count++;
+		}
+		return count;
+	}
+
+	/*
+	 * Returns the first offset from base, not less than offset, which slot is
+	 * buffered (or is not, if isBuffered is false), or size if there is none.
+	 */
+	private int nextOffset(int offset, boolean isBuffered) {
+		while (offset < size) {
+			int p = (head + offset) & mask;
+			long word = buffered[p >>> 6];
+			if (!isBuffered) {
+				word = ~word;
+			}
+			// only the slots at p and after it
+			word &= -1L << p;
+			if (word != 0) {
+				return Math.min(size, offset + Long.numberOfTrailingZeros(word) - (p & 63));
+			}
+			offset += 64 - (p & 63);
+		}
+		return size;
+	}
+}
@@ -0,0 +1,60 @@
+package tcp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Resumption tokens of a server for fast open: the token of a client is
+ * HMAC-SHA256 of its IP address under the server's secret key, cut to
+ * TOKEN_LENGTH bytes. The server keeps nothing per client, a token is
+ * checked by computing it again; only a client that got the server's
+ * answer from its address can have it, so spoofed SYNs cannot make the
+ * server take their data. Servers that share the key accept each other's
+ * tokens, and a new key invalidates all of them.
+ *
+ * Used by the server's event loop only.
+ */
+class ResumptionTokens {
+	static final int TOKEN_LENGTH = 8;
+	private static final int KEY_LENGTH = 32;
+
+	private Mac mac;
+
+	// null for a random key
+	ResumptionTokens(byte[] key) throws TCPException {
+		if (key == null) {
+			key = new byte[KEY_LENGTH];
+			new SecureRandom().nextBytes(key);
+		}
+		try {
+			mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		}
+		catch (GeneralSecurityException e) {
+			throw new TCPException("Cannot create resumption tokens: " + e.getMessage());
+		}
+	}
+
+	byte[] issue(InetAddress client) {
+		byte[] digest = mac.doFinal(client.getAddress());
+		byte[] token = new byte[TOKEN_LENGTH];
+		System.arraycopy(digest, 0, token, 0, TOKEN_LENGTH);
+		return token;
+	}
+
+	// the remaining bytes of token, compared in constant time
+	boolean isValid(InetAddress client, ByteBuffer token) {
+		if (token.remaining() != TOKEN_LENGTH) {
+			return false;
+		}
+		byte[] presented = new byte[TOKEN_LENGTH];
+		token.duplicate().get(presented);
+		return MessageDigest.isEqual(issue(client), presented);
+	}
+}
@@ -0,0 +1,116 @@
+package tcp;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Estimates round trip time and retransmission timeout (RTO) as
+ * described in RFC 6298 (Jacobson's algorithm):
+ *
+ *		first sample R:		SRTT = R, RTTVAR = R / 2
+ *		next samples R:		RTTVAR = 3/4 * RTTVAR + 1/4 * |SRTT - R|
+ *							SRTT = 7/8 * SRTT + 1/8 * R
+ *		RTO = SRTT + max(G, 4 * RTTVAR), bounded by [minRto, maxRto]
+ *
+ * Samples must only be taken from packets that were sent once (Karn's
+ * rule), this is the caller's duty. Every timeout doubles the RTO until a
+ * new sample arrives or until an ACK for new data ends the backoff: the
+ * packets acked right after a loss are exactly the ones that can not be
+ * sampled, so waiting for a sample could keep the RTO doubled for long.
+ *
+ * All times are in nanoseconds.
+ */
+class RttEstimator {
+	// timers are scheduled with millisecond precision
+	private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// RTO used until the first RTT sample and default RTO bounds
+	static final long DEFAULT_INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(500);
+	static final long DEFAULT_MIN_RTO = TimeUnit.MILLISECONDS.toNanos(10);
+	static final long DEFAULT_MAX_RTO = TimeUnit.MILLISECONDS.toNanos(60000);
+
+	private long smoothedRtt;
+	private long rttVariance;
+	private long rto;
+	private long initialRto;
+	private long minRto;
+	private long maxRto;
+	private boolean hasSamples;
+
+	RttEstimator() {
+		this(DEFAULT_INITIAL_RTO, DEFAULT_MIN_RTO, DEFAULT_MAX_RTO);
+	}
+
+	RttEstimator(long initialRto, long minRto, long maxRto) {
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		this.initialRto = initialRto;
+		rto = bound(initialRto);
+		hasSamples = false;
+	}
+
+	void addSample(long rtt) {
+		if (!hasSamples) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+			hasSamples = true;
+		}
+		else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+		rto = computeRto();
+	}
+
+	void backoff() {
+		rto = bound(2 * rto);
+	}
+
+	void resetBackoff() {
+		rto = computeRto();
+	}
+
+	void setMinRto(long minRto) {
+		this.minRto = minRto;
+		rto = bound(rto);
+	}
+
+	void setMaxRto(long maxRto) {
+		this.maxRto = maxRto;
+		rto = bound(rto);
+	}
+
+	long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	long getRttVariance() {
+		return rttVariance;
+	}
+
+	long getRto() {
+		return rto;
+	}
+
+	long getMinRto() {
+		return minRto;
+	}
+
+	long getMaxRto() {
+		return maxRto;
+	}
+
+	boolean hasSamples() {
+		return hasSamples;
+	}
+
+	private long computeRto() {
+		if (!hasSamples) {
+			return bound(initialRto);
+		}
+		return bound(smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance));
+	}
+
+	private long bound(long value) {
+		return Math.max(minRto, Math.min(maxRto, value));
+	}
+}
@@ -0,0 +1,760 @@
+package tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+import pktmngr.PacketManager;
+import tcp.congestion.CongestionControl;
+import tcp.trace.TraceEvent;
+
+/*
+ * Sending half of a connection. The application queues data, it is split
+ * into packets of the agreed MSS numbered one after another; the event loop
+ * of the connection transmits them as the peer's window and the congestion
+ * window allow, and processes the ACK information every packet of the peer
+ * carries: the cumulative ACK, the free window and SACK blocks.
+ *
+ * Every packet in flight has its own retransmission timer on the loop's
+ * timing wheel. A timeout of the oldest packet or 3 duplicate ACKs start
+ * loss recovery.
+ *
+ * Packets are not built up front: a packet is encoded from its piece of the
+ * queued data every time it has to be (re)transmitted. The state of the
+ * packets in flight is kept in circular arrays indexed by packet number,
+ * which grow with the number of packets in flight. Packet numbers may wrap
+ * around, they are only compared as differences.
+ *
+ * New packets and the ones resent in loss recovery are paced (see Pacer):
+ * at the congestion window per RTT (twice that in slow start, so that the
+ * window can still grow), or at most at the configured rate. When the
+ * bucket is empty, the pacing timer continues transmit() later.
+ *
+ * With forward error correction agreed on, a parity packet follows every
+ * group of new packets (see ParityEncoder), so that the peer can rebuild a
+ * lost one without a retransmission.
+ *
+ * Any number of messages may be queued, their packets go back to back.
+ * The future of a message completes once all of its packets are acked (or
+ * the sender fails); the connection completes the futures after releasing
+ * its lock, so that actions depending on them do not run under the lock.
+ *
+ * The connection calls everything with its lock held, queue() from the
+ * application's thread and the rest from the event loop.
+ */
+class Sender {
+
+	/*
+	 * Data of one send call: packets firstSeq, ..., firstSeq + packetCount - 1.
+	 * A FIN packet is a message of its own without data. The flag of data
+	 * packets is 0, or 16 if the data is compressed.
+	 */
+	static class Message {
+		private final ByteBuffer data;
+		private final byte flag;
+		private final int firstSeq;
+		private final int packetCount;
+		private final CompletableFuture<Void> future;
+		private TCPException failure;
+
+		private Message(ByteBuffer data, byte flag, int firstSeq, int packetCount, CompletableFuture<Void> future) {
+			this.data = data;
+			this.flag = flag;
+			this.firstSeq = firstSeq;
+			this.packetCount = packetCount;
+			this.future = future;
+		}
+
+		CompletableFuture<Void> getFuture() {
+			return future;
+		}
+
+		// must not be called with the connection's lock held
+		void complete() {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+			}
+			else {
+				future.complete(null);
+			}
+		}
+
+		private boolean isFin() {
+			return flag == 2;
+		}
+
+		private boolean contains(int seq) {
+			return seq - firstSeq >= 0 && seq - firstSeq < packetCount;
+		}
+	}
+
+	/*
+	 * Packet status meanings:
+	 *		0 - not sent (therefore not acked)
+	 *		1 - sent, not acked
+	 *		3 - sacked (peer buffered the packet, but has not got some
+	 *			packet before it yet)
+	 * Packets before sendBase are acked, their slots are used again.
+	 */
+	private static final byte NOT_SENT = 0;
+	private static final byte SENT = 1;
+	private static final byte SACKED = 3;
+
+	private static final int DUPLICATE_ACK_THRESHOLD = 3;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int PERSIST_TIMER = -3;
+	private static final int PACING_TIMER = -4;
+
+	// pacing rate over the congestion window per RTT, in and after slow start
+	private static final double SLOW_START_PACING_GAIN = 2.0;
+	private static final double PACING_GAIN = 1.25;
+
+	private TCPConnection connection;
+	private TimingWheel timers;
+	private RttEstimator rttEstimator;
+	private CongestionControl congestionControl;
+	private StatsRecorder stats;
+	private int segmentSize;
+	private int triesPerPacket;
+	// null without forward error correction
+	private ParityEncoder parityEncoder;
+
+	// messages that are not acked completely, in the order of their packets,
+	// and the ones which futures are to be completed
+	private ArrayDeque<Message> messages;
+	private ArrayDeque<Message> completed;
+	// the message the last packet was taken from, the next one is most likely in it too
+	private Message lastMessage;
+	private ByteBuffer noData;
+
+	// the first packet that is not acked, the next one to be sent, and the
+	// number the next queued packet gets
+	private int sendBase;
+	private int nextSeq;
+	private int endSeq;
+	// number of packets peer is ready to receive starting from sendBase
+	private int sendWindow;
+	private int duplicateAcks;
+	private TCPException failure;
+
+	// loss recovery lasts until all packets sent before it started are
+	// acked, every lost packet is resent at most once during it
+	private boolean lossRecovery;
+	private int recoveryPoint;
+
+	// The scoreboard of RFC 6675, kept up to date by every ACK instead of
+	// being rebuilt on every transmit(): the number of sacked packets in
+	// flight, the lost packets are the ones not sacked before lossPoint,
+	// which is the DUPLICATE_ACK_THRESHOLD-th sacked packet from the top
+	// (sendBase while there are fewer); sackedAbove counts the sacked
+	// packets from lossPoint on. resentPackets counts the packets resent in
+	// this recovery and not sacked yet, the next one to resend is searched
+	// from retransmitCursor on. All of them only move forward, so a
+	// recovery costs time linear in the packets in flight
+	private int sackedPackets;
+	private int lossPoint;
+	private int sackedAbove;
+	private int resentPackets;
+	private int retransmitCursor;
+
+	// state of packet number seq is at index seq & mask
+	private int mask;
+	private byte[] packetStatus;
+	private byte[] packetSendTry;
+	// when each packet was sent for the first time, and whether it was
+	// sent again: RTT is only sampled on packets sent once (Karn's rule)
+	private long[] packetSendTime;
+	// data bytes of each packet, counted as acked bytes
+	private int[] packetLength;
+	private boolean[] packetRetransmitted;
+	private boolean[] packetResent;
+	// timer i belongs to the packet at index i
+	private TimingWheel.Timeout[] packetTimers;
+	// fires when nothing is in flight and the peer's window is zero
+	private TimingWheel.Timeout persistTimer;
+
+	private Pacer pacer;
+	// fires when the pacer lets the next packet go
+	private TimingWheel.Timeout pacingTimer;
+	// bytes per second, 0 for no limit
+	private long maxPacingRate;
+
+	Sender(
+			TCPConnection connection,
+			TimingWheel timers,
+			RttEstimator rttEstimator,
+			CongestionControl congestionControl,
+			StatsRecorder stats,
+			int segmentSize,
+			int fecGroupSize,
+			int firstSeq,
+			int sendWindow
+	) {
+		this.connection = connection;
+		this.timers = timers;
+		this.rttEstimator = rttEstimator;
+		this.congestionControl = congestionControl;
+		this.stats = stats;
+		this.segmentSize = segmentSize;
+		this.sendWindow = sendWindow;
+		triesPerPacket = 30;
+		sendBase = firstSeq;
+		nextSeq = firstSeq;
+		endSeq = firstSeq;
+		duplicateAcks = 0;
+		lossRecovery = false;
+		lossPoint = firstSeq;
+		retransmitCursor = firstSeq;
+
+		messages = new ArrayDeque<Message>();
+		completed = new ArrayDeque<Message>();
+		noData = ByteBuffer.allocate(0);
+		persistTimer = new TimingWheel.Timeout(PERSIST_TIMER, connection);
+		pacer = new Pacer(PacketManager.HEADER_LENGTH + segmentSize);
+		pacingTimer = new TimingWheel.Timeout(PACING_TIMER, connection);
+		maxPacingRate = 0;
+		if (fecGroupSize > 0) {
+			parityEncoder = new ParityEncoder(fecGroupSize, segmentSize, firstSeq);
+		}
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/*
+	 * Queues the remaining bytes of data (or a FIN packet) to be sent. The
+	 * buffer must not be changed until the future of the message completes.
+	 */
+	Message queue(ByteBuffer data, byte flag) {
+		return queue(data, flag, new CompletableFuture<Void>());
+	}
+
+	// the same, the message completes future (created before the data was queued)
+	Message queue(ByteBuffer data, byte flag, CompletableFuture<Void> future) {
+		int packetCount = 1;
+		if (flag != 2) {
+			packetCount = data.remaining() / segmentSize;
+			if (data.remaining() % segmentSize != 0) {
+				packetCount++;
+			}
+		}
+		Message message = new Message(data.slice(), flag, endSeq, packetCount, future);
+		endSeq += packetCount;
+		messages.add(message);
+		return message;
+	}
+
+	// number of the next packet to be sent, plain ACKs carry it
+	int getNextSeq() {
+		return nextSeq;
+	}
+
+	// number the next queued packet gets
+	int getEndSeq() {
+		return endSeq;
+	}
+
+	// true if the packets before seq are acked
+	boolean isAcked(int seq) {
+		return seq - sendBase <= 0;
+	}
+
+	TCPException getFailure() {
+		return failure;
+	}
+
+	// limits the pacing rate to bytes bytes per second, 0 for no limit
+	void setMaxPacingRate(long bytes) {
+		maxPacingRate = bytes;
+	}
+
+	/*
+	 * Bytes per second the packets are paced at: the congestion window per
+	 * smoothed RTT times the gain, but at most maxPacingRate. Without an
+	 * RTT sample only maxPacingRate applies (0 - not paced).
+	 */
+	long getPacingRate() {
+		long smoothedRtt = rttEstimator.getSmoothedRtt();
+		if (smoothedRtt == 0) {
+			return maxPacingRate;
+		}
+		int window = congestionControl.getCongestionWindow();
+		double gain = (window < congestionControl.getSlowStartThreshold()) ? SLOW_START_PACING_GAIN : PACING_GAIN;
+		long rate = Math.max(1, (long)(gain * window * (PacketManager.HEADER_LENGTH + segmentSize) * 1e9 / smoothedRtt));
+		return (maxPacingRate > 0) ? Math.min(rate, maxPacingRate) : rate;
+	}
+
+	// the next message which future is to be completed, or null
+	Message pollCompleted() {
+		return completed.poll();
+	}
+
+	/*
+	 * Takes the ACK information out of a packet of the peer. Only plain
+	 * ACKs count as duplicate ACKs, a packet with data repeats the last
+	 * ACK anyway: it counts only if its SACK blocks report new packets.
+	 */
+	void handleAck(ByteBuffer pkt, boolean plainAck) throws IOException {
+		int ack = PacketManager.getACK(pkt);
+		int packetsInFlight = nextSeq - sendBase;
+		// an ACK older than sendBase, or for packets never sent, tells nothing
+		if (ack - sendBase < 0 || ack - nextSeq > 0) {
+			return;
+		}
+
+		int previousWindow = sendWindow;
+		sendWindow = PacketManager.getWindow(pkt);
+		// peer is alive, it just has no room for the probes
+		if (sendWindow == 0 && triesPerPacket > 0 && ack != nextSeq) {
+			packetSendTry[ack & mask] = 0;
+		}
+
+		// mark packets the peer has buffered as sacked, they need no
+		// retransmission timers any more
+		int newlySacked = 0;
+		for (int b = 0; b < PacketManager.getSackBlockCount(pkt); ++b) {
+			int start = Math.max(PacketManager.getSackBlockStart(pkt, b) - sendBase, 0);
+			int end = Math.min(PacketManager.getSackBlockEnd(pkt, b) - sendBase, packetsInFlight);
+			for (int i = start; i < end; ++i) {
+				int p = (sendBase + i) & mask;
+				if (packetStatus[p] == SENT) {
+					packetStatus[p] = SACKED;
+					timers.cancel(packetTimers[p]);
+					newlySacked++;
+					sackedPackets++;
+					if (packetResent[p]) {
+						resentPackets--;
+					}
+					if (i >= lossPoint - sendBase) {
+						sackedAbove++;
+					}
+				}
+			}
+		}
+		advanceLossPoint();
+
+		// the same ACK again while packets are in flight: some packet
+		// after sendBase has arrived, but sendBase itself has not
+		boolean duplicate = plainAck ? sendWindow == previousWindow : newlySacked > 0;
+		if (ack == sendBase && packetsInFlight > 0 && duplicate) {
+			duplicateAcks++;
+			stats.duplicateAckReceived();
+			// a loss is reported to congestion control once per recovery
+			if (!lossRecovery || congestionControl.isInRecovery()) {
+				congestionControl.onDuplicateAck(duplicateAcks, packetsInFlight);
+			}
+			// fast retransmit: do not wait for the timer to resend sendBase
+			if (duplicateAcks == DUPLICATE_ACK_THRESHOLD && !lossRecovery) {
+				startRecovery();
+				markResent(sendBase & mask);
+				transmitPacket(sendBase, TraceEvent.FAST_RETRANSMIT);
+			}
+		}
+
+		if (ack != sendBase) {
+			ackPackets(ack, packetsInFlight);
+		}
+	}
+
+	/*
+	 * Sends what loss recovery and the windows allow.
+	 */
+	void transmit() throws IOException {
+		// Event: loss recovery (after 3 duplicate ACKs or a timeout).
+		// A packet is considered lost if the peer has got at least 3
+		// later packets (according to the SACK blocks). While the
+		// estimate of packets in the network (the "pipe" of RFC 6675) is
+		// below the congestion window, lost packets are resent first and
+		// new packets are sent after them
+		while (lossRecovery) {
+			if (getPipe() >= congestionControl.getCongestionWindow()) {
+				break;
+			}
+
+			boolean lost = findLostPacket();
+			boolean canSend = lost || (nextSeq != endSeq && nextSeq - sendBase < sendWindow);
+			if (canSend && isPaced()) {
+				break;
+			}
+			if (lost) {
+				markResent(retransmitCursor & mask);
+				transmitPacket(retransmitCursor, TraceEvent.LOSS_RETRANSMIT);
+			}
+			else if (nextSeq != endSeq && nextSeq - sendBase < sendWindow) {
+				transmitNewPacket(TraceEvent.SENT);
+			}
+			else {
+				break;
+			}
+		}
+
+		// Event: data queued by the application, send as much as the peer's
+		// window and the congestion window allow
+		// (packets [sendBase, sendBase + min(sendWindow, congestion window)))
+		while (!lossRecovery && nextSeq != endSeq && nextSeq - sendBase < getWindow() && !isPaced()) {
+			transmitNewPacket(TraceEvent.SENT);
+		}
+
+		// a zero window with nothing in flight is probed when the persist timer fires
+		if (nextSeq == sendBase && nextSeq != endSeq && !persistTimer.isScheduled()) {
+			timers.schedule(persistTimer, System.nanoTime() + rttEstimator.getRto());
+		}
+	}
+
+	/*
+	 * Called when the persist timer or a retransmission timer expires.
+	 * Returns false if a packet was sent triesPerPacket times in vain: the
+	 * peer is gone and the sender has failed.
+	 */
+	boolean handleTimeout(TimingWheel.Timeout timeout) throws IOException {
+		if (timeout == pacingTimer) {
+			// the connection calls transmit() right after this
+			return true;
+		}
+		if (timeout == persistTimer) {
+			// nothing in flight because of a zero window: the next packet
+			// probes the window, its own timer repeats the probe
+			if (nextSeq == sendBase && nextSeq != endSeq) {
+				transmitNewPacket(TraceEvent.WINDOW_PROBE);
+			}
+			return true;
+		}
+
+		int p = timeout.getId();
+		int seq = sendBase + ((p - sendBase) & mask);
+		if (packetStatus[p] != SENT) {
+			return true;
+		}
+		if (triesPerPacket > 0 && packetSendTry[p] >= triesPerPacket) {
+			fail(new TCPException("Peer is not responding"));
+			return false;
+		}
+		markResent(p);
+
+		// the oldest packet timed out: it (or its ACK) is lost, or RTO
+		// is too small. Back off and restart the other timers, so that
+		// they do not fire all at once: lost packets reported by SACK
+		// blocks are resent in loss recovery as the congestion window allows
+		if (seq == sendBase) {
+			rttEstimator.backoff();
+			// a lost packet (not just a zero window probe) means congestion
+			if (sendWindow > 0) {
+				congestionControl.onTimeout(nextSeq - sendBase);
+				startRecovery();
+				markResent(p);
+			}
+			duplicateAcks = 0;
+			for (int i = 1; i < nextSeq - sendBase; ++i) {
+				int q = (sendBase + i) & mask;
+				if (packetStatus[q] == SENT) {
+					startTimer(q);
+				}
+			}
+		}
+
+		transmitPacket(seq, TraceEvent.TIMEOUT_RETRANSMIT);
+		return true;
+	}
+
+	/*
+	 * Gives up: nothing will be sent any more, the futures of all messages
+	 * are to be completed with the failure. May be called by any thread
+	 * holding the connection's lock, so the timers are left running until
+	 * release(); they find the connection closed.
+	 */
+	void fail(TCPException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		while (!messages.isEmpty()) {
+			Message message = messages.poll();
+			message.failure = failure;
+			completed.add(message);
+		}
+		lastMessage = null;
+	}
+
+	// cancels all timers once the connection is closed, on the loop thread
+	void release() {
+		for (TimingWheel.Timeout timer : packetTimers) {
+			timers.cancel(timer);
+		}
+		timers.cancel(persistTimer);
+		timers.cancel(pacingTimer);
+	}
+
+	/*
+	 * Returns true if the pacer holds the next packet back; then the pacing
+	 * timer is set for when it may go.
+	 */
+	private boolean isPaced() {
+		long now = System.nanoTime();
+		pacer.setRate(getPacingRate(), now);
+		if (pacer.canSend(now)) {
+			return false;
+		}
+		if (!pacingTimer.isScheduled()) {
+			timers.schedule(pacingTimer, pacer.getNextSendTime());
+			stats.sendPaced();
+		}
+		return true;
+	}
+
+	private void ackPackets(int ack, int packetsInFlight) {
+		// All packet numbers go one after another. Therefore if peer wants
+		// packet ack, packets [sendBase, ack - 1] are acked.
+		// take an RTT sample from the newest acked packet, but only if
+		// none of the just acked packets was sent twice (Karn's rule):
+		// then it is unknown which copy is acked, and packets buffered
+		// by the peer behind a lost one are acked only after it
+		int ackedPackets = ack - sendBase;
+		boolean canSample = true;
+		int ackedBytes = 0;
+		for (int i = 0; i < ackedPackets; ++i) {
+			int p = (sendBase + i) & mask;
+			if (packetRetransmitted[p]) {
+				canSample = false;
+			}
+			ackedBytes += packetLength[p];
+			timers.cancel(packetTimers[p]);
+			if (packetStatus[p] == SACKED) {
+				sackedPackets--;
+			}
+			else if (packetResent[p]) {
+				resentPackets--;
+			}
+			packetStatus[p] = NOT_SENT;
+		}
+		timers.cancel(persistTimer);
+		if (canSample) {
+			long rtt = System.nanoTime() - packetSendTime[(ack - 1) & mask];
+			rttEstimator.addSample(rtt);
+			stats.rttSampled(rtt);
+		}
+		else {
+			rttEstimator.resetBackoff();
+		}
+
+		congestionControl.onAck(ackedPackets, packetsInFlight, rttEstimator.getSmoothedRtt());
+		stats.packetsAcked(ackedBytes, packetsInFlight);
+		duplicateAcks = 0;
+
+		// now the sender wants to send packet ack
+		sendBase = ack;
+		if (lossRecovery && ack - recoveryPoint >= 0) {
+			lossRecovery = false;
+		}
+		// the sacked packets the lost ones were told by are acked, fewer
+		// than DUPLICATE_ACK_THRESHOLD are left
+		if (lossPoint - sendBase < 0) {
+			lossPoint = sendBase;
+			sackedAbove = sackedPackets;
+			advanceLossPoint();
+		}
+
+		// messages which packets are all acked are done
+		while (!messages.isEmpty() && messages.peek().firstSeq + messages.peek().packetCount - ack <= 0) {
+			Message message = messages.poll();
+			completed.add(message);
+			if (message == lastMessage) {
+				lastMessage = null;
+			}
+		}
+	}
+
+	private void startRecovery() {
+		lossRecovery = true;
+		recoveryPoint = nextSeq;
+		for (int i = 0; i < nextSeq - sendBase; ++i) {
+			packetResent[(sendBase + i) & mask] = false;
+		}
+		resentPackets = 0;
+		retransmitCursor = sendBase;
+	}
+
+	// the packet at index p is sent again
+	private void markResent(int p) {
+		if (!packetResent[p] && packetStatus[p] == SENT) {
+			resentPackets++;
+		}
+		packetResent[p] = true;
+		packetRetransmitted[p] = true;
+	}
+
+	/*
+	 * Moves lossPoint up to the DUPLICATE_ACK_THRESHOLD-th sacked packet
+	 * from the top after new packets are sacked above it.
+	 */
+	private void advanceLossPoint() {
+		while (sackedAbove > DUPLICATE_ACK_THRESHOLD
+				|| (sackedAbove == DUPLICATE_ACK_THRESHOLD && packetStatus[lossPoint & mask] != SACKED)) {
+			if (packetStatus[lossPoint & mask] == SACKED) {
+				sackedAbove--;
+			}
+			lossPoint++;
+		}
+	}
+
+	/*
+	 * Estimate of the packets in the network: the ones neither sacked nor
+	 * lost, and the ones resent in this recovery.
+	 */
+	private int getPipe() {
+		int notSacked = nextSeq - sendBase - sackedPackets;
+		int lost = (lossPoint - sendBase) - (sackedPackets - sackedAbove);
+		return notSacked - lost + resentPackets;
+	}
+
+	/*
+	 * Moves retransmitCursor to the first lost packet not resent yet,
+	 * returns false if there is none.
+	 */
+	private boolean findLostPacket() {
+		if (retransmitCursor - sendBase < 0) {
+			retransmitCursor = sendBase;
+		}
+		while (retransmitCursor - lossPoint < 0) {
+			int p = retransmitCursor & mask;
+			if (packetStatus[p] != SACKED && !packetResent[p]) {
+				return true;
+			}
+			retransmitCursor++;
+		}
+		return false;
+	}
+
+	private void transmitNewPacket(TraceEvent event) throws IOException {
+		if (nextSeq - sendBase == packetStatus.length) {
+			allocate(2 * packetStatus.length);
+		}
+		int p = nextSeq & mask;
+		// mark the packet as "sent, not acked"
+		packetStatus[p] = SENT;
+		packetSendTry[p] = 0;
+		packetSendTime[p] = System.nanoTime();
+		packetRetransmitted[p] = false;
+		packetResent[p] = false;
+		nextSeq++;
+		transmitPacket(nextSeq - 1, event);
+		if (parityEncoder != null) {
+			addToParity(nextSeq - 1);
+		}
+	}
+
+	/*
+	 * Adds a new packet with data to its parity group. The parity packet is
+	 * sent when the group is complete, or when the packet is the last one
+	 * queued so far (more of the group may follow later, then another parity
+	 * packet covers the whole group).
+	 */
+	private void addToParity(int seq) throws IOException {
+		Message message = findMessage(seq);
+		if (message.isFin()) {
+			return;
+		}
+		parityEncoder.add(seq, message.flag, getData(message, seq));
+		boolean lastQueued = nextSeq == endSeq || findMessage(nextSeq).isFin();
+		if (parityEncoder.isGroupComplete() || (lastQueued && parityEncoder.hasUncovered())) {
+			ByteBuffer parity = parityEncoder.takeParity();
+			pacer.packetSent(PacketManager.HEADER_LENGTH + parity.remaining());
+			connection.sendSegment((byte)3, parityEncoder.getGroupStart(), parity, TraceEvent.PARITY);
+		}
+	}
+
+	/*
+	 * Encodes packet number seq from its piece of data and sends it, the
+	 * connection adds the ACK information.
+	 */
+	private void transmitPacket(int seq, TraceEvent event) throws IOException {
+		Message message = findMessage(seq);
+		ByteBuffer data = getData(message, seq);
+		packetLength[seq & mask] = data.remaining();
+		// retransmissions outside of loss recovery are not held back, but
+		// take tokens all the same
+		pacer.packetSent(PacketManager.HEADER_LENGTH + data.remaining());
+		connection.sendSegment(message.flag, seq, data, event);
+
+		int p = seq & mask;
+		if (triesPerPacket > 0) {
+			packetSendTry[p]++;
+		}
+		startTimer(p);
+	}
+
+	// the piece of the message's data packet number seq carries
+	private ByteBuffer getData(Message message, int seq) {
+		if (message.isFin()) {
+			return noData;
+		}
+		int begin = (seq - message.firstSeq) * segmentSize;
+		int end = Math.min(begin + segmentSize, message.data.capacity());
+		ByteBuffer data = message.data;
+		data.limit(end).position(begin);
+		return data;
+	}
+
+	private Message findMessage(int seq) {
+		if (lastMessage == null || !lastMessage.contains(seq)) {
+			for (Message message : messages) {
+				if (message.contains(seq)) {
+					lastMessage = message;
+					break;
+				}
+			}
+		}
+		return lastMessage;
+	}
+
+	// (re)starts the retransmission timer of the packet at index p
+	private void startTimer(int p) {
+		timers.schedule(packetTimers[p], System.nanoTime() + rttEstimator.getRto());
+	}
+
+	// number of packets that may be in flight
+	private int getWindow() {
+		return Math.min(sendWindow, congestionControl.getCongestionWindow());
+	}
+
+	/*
+	 * (Re)allocates the packet arrays with room for capacity packets in
+	 * flight (a power of two), moving the state and timers of the packets
+	 * in flight over.
+	 */
+	private void allocate(int capacity) {
+		int newMask = capacity - 1;
+		byte[] newStatus = new byte[capacity];
+		byte[] newSendTry = new byte[capacity];
+		long[] newSendTime = new long[capacity];
+		int[] newLength = new int[capacity];
+		boolean[] newRetransmitted = new boolean[capacity];
+		boolean[] newResent = new boolean[capacity];
+		TimingWheel.Timeout[] newTimers = new TimingWheel.Timeout[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			newTimers[i] = new TimingWheel.Timeout(i, connection);
+		}
+		if (packetStatus != null) {
+			for (int i = 0; i < nextSeq - sendBase; ++i) {
+				int p = (sendBase + i) & mask;
+				int q = (sendBase + i) & newMask;
+				newStatus[q] = packetStatus[p];
+				newSendTry[q] = packetSendTry[p];
+				newSendTime[q] = packetSendTime[p];
+				newLength[q] = packetLength[p];
+				newRetransmitted[q] = packetRetransmitted[p];
+				newResent[q] = packetResent[p];
+				if (packetTimers[p].isScheduled()) {
+					long deadline = packetTimers[p].getDeadline();
+					timers.cancel(packetTimers[p]);
+					timers.schedule(newTimers[q], deadline);
+				}
+			}
+		}
+		mask = newMask;
+		packetStatus = newStatus;
+		packetSendTry = newSendTry;
+		packetSendTime = newSendTime;
+		packetLength = newLength;
+		packetRetransmitted = newRetransmitted;
+		packetResent = newResent;
+		packetTimers = newTimers;
+	}
+}
@@ -0,0 +1,188 @@
+package tcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import tcp.trace.TraceEvent;
+
+/*
+ * Counters and histograms of one connection. The event loop updates them
+ * as it sends and receives packets, getStats() (and JMX) read them from any
+ * thread; both sides go without the connection's lock.
+ */
+class StatsRecorder {
+	private long createdAt;
+
+	private LongAdder segmentsSent;
+	private LongAdder bytesSent;
+	private LongAdder fastRetransmits;
+	private LongAdder lossRetransmits;
+	private LongAdder timeoutRetransmits;
+	private LongAdder bytesRetransmitted;
+	private LongAdder windowProbes;
+	private LongAdder paritySegmentsSent;
+	private LongAdder pacingDelays;
+	private LongAdder acksSent;
+	private LongAdder bytesAcked;
+	private LongAdder duplicateAcksReceived;
+	private LongAdder bytesBeforeCompression;
+	private LongAdder bytesAfterCompression;
+
+	private LongAdder segmentsReceived;
+	private LongAdder bytesReceived;
+	private LongAdder outOfOrderSegments;
+	private LongAdder duplicateSegments;
+	private LongAdder segmentsBeyondWindow;
+	private LongAdder segmentsRecovered;
+
+	// RTT samples in microseconds
+	private Histogram rtt;
+	// packets in flight when an ACK comes, packets buffered when one arrives
+	private Histogram sendWindowOccupancy;
+	private Histogram receiveWindowOccupancy;
+
+	StatsRecorder() {
+		createdAt = System.nanoTime();
+		segmentsSent = new LongAdder();
+		bytesSent = new LongAdder();
+		fastRetransmits = new LongAdder();
+		lossRetransmits = new LongAdder();
+		timeoutRetransmits = new LongAdder();
+		bytesRetransmitted = new LongAdder();
+		windowProbes = new LongAdder();
+		paritySegmentsSent = new LongAdder();
+		pacingDelays = new LongAdder();
+		acksSent = new LongAdder();
+		bytesAcked = new LongAdder();
+		duplicateAcksReceived = new LongAdder();
+		bytesBeforeCompression = new LongAdder();
+		bytesAfterCompression = new LongAdder();
+		segmentsReceived = new LongAdder();
+		bytesReceived = new LongAdder();
+		outOfOrderSegments = new LongAdder();
+		duplicateSegments = new LongAdder();
+		segmentsBeyondWindow = new LongAdder();
+		segmentsRecovered = new LongAdder();
+		rtt = new Histogram();
+		sendWindowOccupancy = new Histogram();
+		receiveWindowOccupancy = new Histogram();
+	}
+
+	// a packet with dataLength bytes of data is sent, event tells why
+	void segmentSent(TraceEvent event, int dataLength) {
+		segmentsSent.increment();
+		switch (event) {
+			case SENT:
+				bytesSent.add(dataLength);
+				break;
+			case WINDOW_PROBE:
+				windowProbes.increment();
+				bytesSent.add(dataLength);
+				break;
+			case FAST_RETRANSMIT:
+				fastRetransmits.increment();
+				bytesRetransmitted.add(dataLength);
+				break;
+			case LOSS_RETRANSMIT:
+				lossRetransmits.increment();
+				bytesRetransmitted.add(dataLength);
+				break;
+			case TIMEOUT_RETRANSMIT:
+				timeoutRetransmits.increment();
+				bytesRetransmitted.add(dataLength);
+				break;
+			case PARITY:
+				paritySegmentsSent.increment();
+				break;
+			case ACK:
+			case DELAYED_ACK:
+			case EARLY_ACK:
+			case WINDOW_FULL_ACK:
+			case OLD_ACK:
+				acksSent.increment();
+				break;
+			default:
+				break;
+		}
+	}
+
+	// the pacer held a packet back
+	void sendPaced() {
+		pacingDelays.increment();
+	}
+
+	void packetsAcked(int bytes, int packetsInFlight) {
+		bytesAcked.add(bytes);
+		sendWindowOccupancy.record(packetsInFlight);
+	}
+
+	void rttSampled(long nanos) {
+		rtt.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	void duplicateAckReceived() {
+		duplicateAcksReceived.increment();
+	}
+
+	// the application's data of length bytes is compressed to compressedLength
+	void dataCompressed(int length, int compressedLength) {
+		bytesBeforeCompression.add(length);
+		bytesAfterCompression.add(compressedLength);
+	}
+
+	void segmentReceived() {
+		segmentsReceived.increment();
+	}
+
+	// a new packet is buffered, bufferedPackets are in the window now
+	void segmentBuffered(int dataLength, boolean outOfOrder, int bufferedPackets) {
+		bytesReceived.add(dataLength);
+		if (outOfOrder) {
+			outOfOrderSegments.increment();
+		}
+		receiveWindowOccupancy.record(bufferedPackets);
+	}
+
+	// a packet that was already buffered or read
+	void duplicateSegmentReceived() {
+		duplicateSegments.increment();
+	}
+
+	void segmentBeyondWindowReceived() {
+		segmentsBeyondWindow.increment();
+	}
+
+	// a lost packet is rebuilt from parity (it is counted as buffered too)
+	void segmentRecovered() {
+		segmentsRecovered.increment();
+	}
+
+	ConnectionStats snapshot() {
+		return new ConnectionStats(
+				System.nanoTime() - createdAt,
+				segmentsSent.sum(),
+				bytesSent.sum(),
+				fastRetransmits.sum(),
+				lossRetransmits.sum(),
+				timeoutRetransmits.sum(),
+				bytesRetransmitted.sum(),
+				windowProbes.sum(),
+				paritySegmentsSent.sum(),
+				pacingDelays.sum(),
+				acksSent.sum(),
+				bytesAcked.sum(),
+				duplicateAcksReceived.sum(),
+				bytesBeforeCompression.sum(),
+				bytesAfterCompression.sum(),
+				segmentsReceived.sum(),
+				bytesReceived.sum(),
+				outOfOrderSegments.sum(),
+				duplicateSegments.sum(),
+				segmentsBeyondWindow.sum(),
+				segmentsRecovered.sum(),
+				rtt.snapshot(),
+				sendWindowOccupancy.snapshot(),
+				receiveWindowOccupancy.snapshot()
+		);
+	}
+}
@@ -0,0 +1,1504 @@
+package tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import pktmngr.PacketManager;
+import tcp.congestion.CongestionControl;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+
+/*
+ * A connection between two sides that both send and receive. A server gets
+ * one from accept() for every client, a TCPSocket wraps the one it opens.
+ *
+ * Each direction has its own packet numbers. The receiving half is a
+ * receive window: the event loop puts the peer's packets into it (and
+ * answers them with ACKs), receive() takes in-order packets out of it. The
+ * sending half is a Sender: sendAsync() queues data and returns a future
+ * the loop completes when the data is acked, send() waits for it. Every
+ * outgoing packet carries the ACK information of the
+ * receiving half, so when data flows both ways the ACKs ride on it and no
+ * separate ACK packets are needed.
+ *
+ * With forward error correction agreed on in the handshake, each side
+ * sends parity packets after its groups of packets and rebuilds a lost
+ * packet of the peer's from the parity, instead of waiting for its
+ * retransmission (see ParityEncoder and ParityDecoder).
+ *
+ * With compression agreed on, the data the application sends goes out
+ * compressed unless it does not compress (see Compressor), and the peer's
+ * compressed packets are inflated as they are read.
+ *
+ * A connection may be read by one thread and written by another one,
+ * independently of the other connections. Its statistics are counted as
+ * it goes (see getStats()), the socket may also register it over JMX.
+ */
+public class TCPConnection implements TCPConnectionMXBean {
+	private EventLoop loop;
+	private InetAddress remoteAddress;
+	private int remotePort;
+	private SocketAddress remoteSocketAddress;
+	// opened by the peer's SYN (on the server side)
+	private boolean passive;
+	private int localISN;
+	private int remoteISN;
+	private boolean connected;
+	// the event loop has cancelled the timers after the connection closed
+	private boolean released;
+	/*
+	 * Closed after the peer's FIN was read, or after this side's FIN: the
+	 * ACK of the peer's FIN may be lost, or its FIN still to come, so its
+	 * packets are still acked until lingerDeadline (the idle timer goes off
+	 * then). 0 until the event loop starts lingering.
+	 */
+	private boolean lingering;
+	private long lingerDeadline;
+	private int idleTimeout;
+	// when the last packet of the peer arrived (System.nanoTime())
+	private long lastReceived;
+	// timers of the event loop: one expires when the peer may have been
+	// silent for idleTimeout, the other one sends a delayed ACK
+	private TimingWheel timers;
+	private TimingWheel.Timeout idleTimer;
+	private TimingWheel.Timeout ackTimer;
+	private RttEstimator rttEstimator;
+	private CongestionControl congestionControl;
+
+	// its base is recvBase: the next packet to be read by receive()
+	private ReceiveWindow window;
+	private int windowSize;
+
+	/*
+	 * In-order packets are acked together: every ackFrequency-th one, or
+	 * ackDelay nanoseconds after the first one that is not acked yet.
+	 * Out-of-order, duplicate and FIN packets are acked at once, so that the
+	 * peer gets duplicate ACKs with fresh SACK blocks without a delay. Any
+	 * packet sent meanwhile carries the ACK instead.
+	 */
+	private int ackFrequency;
+	private long ackDelay;
+	private int unackedPackets;
+	// the ACK to be sent at once, null if there is none
+	private TraceEvent pendingAck;
+
+	// MSS agreed on with the peer
+	private int segmentSize;
+	// packets per parity group agreed on, 0 without forward error correction
+	private int fecGroupSize;
+	// rebuilds lost packets of the peer, null if fecGroupSize is 0
+	private ParityDecoder parityDecoder;
+	// both null without compression; the compressor is used by one writer at
+	// a time, so that the pieces of the stream are queued in order
+	private Compressor compressor;
+	private Decompressor decompressor;
+	private ReentrantLock compressionLock;
+	private int compressionDictionaryId;
+	// sent to the client in the server's SYN, null if it does no fast open
+	private byte[] resumptionToken;
+
+	/*
+	 * The event loop receives datagrams into buffers of the pool. When a
+	 * packet has to be buffered, the buffer itself is moved into the window
+	 * and the loop takes another one from the pool. Buffers return to the
+	 * pool once their data is read, so at steady state receiving allocates
+	 * nothing.
+	 */
+	private BufferPool bufferPool;
+
+	// in-order packet which data is being read, and how much of it is already read
+	private ByteBuffer pendingPacket;
+	private int pendingOffset;
+	// the peer's FIN is read
+	private boolean inputFinished;
+	private TCPInputStream inputStream;
+
+	private Sender sender;
+	// the FIN is queued, nothing can be sent after it
+	private boolean outputShutdown;
+
+	/*
+	 * Small writes are coalesced: the tail of a write that does not fill a
+	 * packet is held in coalesced (a packet long, its flag and the future of
+	 * the bytes in it) and the next writes fill it up. It is queued when it
+	 * is full, or when the short packet queued last (packets before
+	 * shortPacketEnd) is acked, so that at most one short packet is in
+	 * flight (Nagle's algorithm, Minshall's variant); at once with noDelay;
+	 * while corked only when it is full or flushed.
+	 */
+	private ByteBuffer coalesced;
+	private byte coalescedFlag;
+	private CompletableFuture<Void> coalescedFuture;
+	private int shortPacketEnd;
+	private boolean noDelay;
+	private boolean corked;
+
+	private TCPOutputStream outputStream;
+	private int sendBufferSize;
+	private boolean wakeupRequested;
+	private static final int DEFAULT_SEND_BUFFER_SIZE = 256 * 1024;
+	// how much of a file sendFile() maps at once, tests map less
+	private static final int MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+	int mappedRegionSize;
+	// receiveFile() inflates compressed packets through a buffer of this size
+	private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+	// packets are encoded into the event loop's buffer right before they are sent
+	private ByteBuffer noData;
+	private int[] sackBlocks;
+
+	// guards all of the above, shared by the event loop, the reader and the writers
+	private ReentrantLock lock;
+	private Condition packetArrived;
+
+	// the levels are checked once, nothing is traced below them
+	private Tracer tracer;
+	private boolean traceConnections;
+	private boolean tracePackets;
+
+	// updated by the event loop and read without the lock
+	private StatsRecorder stats;
+	// name the connection is registered under over JMX, null if it is not
+	private ObjectName mbeanName;
+
+	private static final int IDLE_TIMER = -1;
+	private static final int ACK_TIMER = -2;
+	// peers resend their FIN a few times within this
+	private static final long LINGER_TIME = TimeUnit.SECONDS.toNanos(5);
+	// ISNs are not guessable, so that no one else can inject packets into
+	// a connection or mistake an old one for it
+	private static final SecureRandom ISN_RANDOM = new SecureRandom();
+
+	TCPConnection(
+			EventLoop loop,
+			SocketAddress remoteSocketAddress,
+			boolean passive,
+			int localISN,
+			int remoteISN,
+			int segmentSize,
+			int fecGroupSize,
+			boolean compression,
+			byte[] compressionDictionary,
+			ByteBuffer synData,
+			int peerWindow,
+			int windowSize,
+			int ackFrequency,
+			int ackDelay,
+			int idleTimeout,
+			RttEstimator rttEstimator,
+			CongestionControl congestionControl
+	) {
+		this.loop = loop;
+		this.remoteSocketAddress = remoteSocketAddress;
+		this.passive = passive;
+		this.localISN = localISN;
+		this.remoteISN = remoteISN;
+		this.segmentSize = segmentSize;
+		this.fecGroupSize = fecGroupSize;
+		this.windowSize = windowSize;
+		this.ackFrequency = ackFrequency;
+		this.ackDelay = TimeUnit.MILLISECONDS.toNanos(ackDelay);
+		this.idleTimeout = idleTimeout;
+		this.rttEstimator = rttEstimator;
+		this.congestionControl = congestionControl;
+		remoteAddress = ((InetSocketAddress)remoteSocketAddress).getAddress();
+		remotePort = ((InetSocketAddress)remoteSocketAddress).getPort();
+		bufferPool = loop.getBufferPool();
+		timers = loop.getTimers();
+		tracer = loop.getTracer();
+		traceConnections = tracer.isEnabled(Tracer.Level.CONNECTIONS);
+		tracePackets = tracer.isEnabled(Tracer.Level.PACKETS);
+		unackedPackets = 0;
+		stats = new StatsRecorder();
+		sendBufferSize = DEFAULT_SEND_BUFFER_SIZE;
+		mappedRegionSize = MAPPED_REGION_SIZE;
+
+		lock = new ReentrantLock();
+		packetArrived = lock.newCondition();
+
+		// the SYN packets take the ISNs, the data starts right after them;
+		// with fast open the client's first packet came in its SYN (synData:
+		// the data the server took, or the data the client's SYN carried
+		// and the server acked)
+		int remoteFirstSeq = remoteISN + 1;
+		int localFirstSeq = localISN + 1;
+		if (synData != null) {
+			if (passive) {
+				stats.segmentBuffered(synData.remaining(), false, 0);
+				pendingPacket = bufferPool.take();
+				PacketManager.encode(pendingPacket, (byte)0, remoteFirstSeq, 0, 0, synData);
+				pendingPacket.flip();
+				pendingOffset = 0;
+				remoteFirstSeq++;
+			}
+			else {
+				localFirstSeq++;
+			}
+		}
+		window = new ReceiveWindow(windowSize, remoteFirstSeq);
+		if (fecGroupSize > 0) {
+			parityDecoder = new ParityDecoder(fecGroupSize, segmentSize, windowSize, remoteFirstSeq, bufferPool);
+		}
+		if (compression) {
+			compressor = new Compressor(compressionDictionary);
+			decompressor = new Decompressor(compressionDictionary);
+			compressionLock = new ReentrantLock();
+			compressionDictionaryId = Compressor.dictionaryId(compressionDictionary);
+		}
+		sender = new Sender(
+				this,
+				timers,
+				rttEstimator,
+				congestionControl,
+				stats,
+				segmentSize,
+				fecGroupSize,
+				localFirstSeq,
+				peerWindow
+		);
+		shortPacketEnd = localFirstSeq;
+		noDelay = false;
+		corked = false;
+
+		lastReceived = System.nanoTime();
+		idleTimer = new TimingWheel.Timeout(IDLE_TIMER, this);
+		ackTimer = new TimingWheel.Timeout(ACK_TIMER, this);
+		timers.schedule(idleTimer, getIdleDeadline());
+
+		sackBlocks = new int[2 * PacketManager.MAX_SACK_BLOCKS];
+		noData = ByteBuffer.allocate(0);
+		connected = true;
+		if (traceConnections) {
+			tracer.connectionEvent(TraceEvent.CONNECTED, remoteSocketAddress);
+		}
+	}
+
+	/*
+	 * Returns the next in-order packet. The packet is a copy owned by the
+	 * caller. Not for compressed data: a packet may inflate to more than
+	 * a packet holds, receive(ByteBuffer) reads it.
+	 */
+	public DatagramPacket receive() throws SocketException, TCPException {
+		if (pendingPacket == null) {
+			pendingPacket = receivePacket();
+			pendingOffset = 0;
+		}
+		ByteBuffer pkt = pendingPacket;
+		// packet is a FIN packet or peer stopped sending anything
+		if (pkt == null || PacketManager.isFinPacket(pkt)) {
+			pendingPacket = null;
+			finishInput(pkt);
+			return null;
+		}
+		if (PacketManager.isCompressedPacket(pkt)) {
+			// the packet stays, receive(ByteBuffer) can still read it
+			throw new TCPException("Compressed data is read with receive(ByteBuffer).");
+		}
+		pendingPacket = null;
+		byte[] copy = new byte[pkt.remaining()];
+		pkt.get(copy);
+		bufferPool.release(pkt);
+		return new DatagramPacket(copy, copy.length, remoteAddress, remotePort);
+	}
+
+	public int receive(byte[] buf, int off, int len) throws SocketException, TCPException {
+		return receive(ByteBuffer.wrap(buf, off, len));
+	}
+
+	/*
+	 * Copies data of in-order packets into dst, at most one packet per call
+	 * (the inflated data of one, if it is compressed). If dst is too small
+	 * for the whole packet, the rest of the packet is returned by the next
+	 * calls. Returns the number of copied bytes, or -1 if the peer has
+	 * finished sending.
+	 */
+	public int receive(ByteBuffer dst) throws SocketException, TCPException {
+		while (true) {
+			if (pendingPacket == null) {
+				pendingPacket = receivePacket();
+				pendingOffset = 0;
+			}
+			// packet is a FIN packet or peer stopped sending anything
+			if (pendingPacket == null || PacketManager.isFinPacket(pendingPacket)) {
+				finishInput(pendingPacket);
+				pendingPacket = null;
+				return -1;
+			}
+
+			if (PacketManager.isCompressedPacket(pendingPacket)) {
+				int inflated = inflate(pendingPacket, dst);
+				if (decompressor.isDone()) {
+					bufferPool.release(pendingPacket);
+					pendingPacket = null;
+				}
+				// nothing came out of the packet (the end of a flush), wait
+				// for the next one
+				if (inflated == 0 && dst.hasRemaining()) {
+					continue;
+				}
+				return inflated;
+			}
+
+			int copied = PacketManager.getData(pendingPacket, pendingOffset, dst);
+			pendingOffset += copied;
+			if (pendingOffset == PacketManager.getDataLength(pendingPacket)) {
+				bufferPool.release(pendingPacket);
+				pendingPacket = null;
+			}
+			return copied;
+		}
+	}
+
+	private int inflate(ByteBuffer pkt, ByteBuffer dst) throws TCPException {
+		if (decompressor == null) {
+			throw new TCPException("Compressed data, but no compression agreed on.");
+		}
+		return decompressor.inflate(pkt, dst);
+	}
+
+	/*
+	 * Writes everything the peer sends into a file (replacing its contents)
+	 * until the peer finishes sending. Data goes from the receive window right
+	 * into the file, each packet is written at its offset with a positional
+	 * write; compressed packets are inflated through a buffer. Returns the
+	 * number of bytes written.
+	 */
+	public long receiveFile(Path path) throws TCPException, IOException {
+		long position = 0;
+		ByteBuffer inflated = null;
+		try (FileChannel file = FileChannel.open(
+				path,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING
+		)) {
+			while (true) {
+				ByteBuffer pkt = pendingPacket;
+				int from = pendingOffset;
+				pendingPacket = null;
+				if (pkt == null) {
+					pkt = receivePacket();
+					from = 0;
+				}
+				// packet is a FIN packet or peer stopped sending anything
+				if (pkt == null || PacketManager.isFinPacket(pkt)) {
+					finishInput(pkt);
+					return position;
+				}
+
+				if (PacketManager.isCompressedPacket(pkt)) {
+					if (inflated == null) {
+						inflated = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+					}
+					do {
+						inflated.clear();
+						inflate(pkt, inflated);
+						inflated.flip();
+						while (inflated.hasRemaining()) {
+							position += file.write(inflated, position);
+						}
+					} while (!decompressor.isDone());
+					bufferPool.release(pkt);
+					continue;
+				}
+
+				int begin = PacketManager.getDataOffset(pkt) + from;
+				pkt.limit(PacketManager.getDataOffset(pkt) + PacketManager.getDataLength(pkt)).position(begin);
+				while (pkt.hasRemaining()) {
+					position += file.write(pkt, position);
+				}
+				bufferPool.release(pkt);
+			}
+		}
+	}
+
+	/*
+	 * The stream reads the same data as receive(), the two should not be mixed.
+	 */
+	public InputStream getInputStream() {
+		if (inputStream == null) {
+			inputStream = new TCPInputStream(this);
+		}
+		return inputStream;
+	}
+
+	public void send(String strData) throws TCPException {
+		send(strData.getBytes());
+	}
+
+	public void send(byte[] data) throws TCPException {
+		send(data, 0, data.length);
+	}
+
+	public void send(byte[] data, int off, int len) throws TCPException {
+		send(ByteBuffer.wrap(data, off, len));
+	}
+
+	/*
+	 * Sends the remaining bytes of data and waits until the peer has got
+	 * them. The buffer is only read (its position is not changed) and must
+	 * not be modified until the call returns. Sending goes on while the
+	 * connection receives. Bytes held back for coalescing are flushed, the
+	 * call would wait for them otherwise.
+	 */
+	public void send(ByteBuffer data) throws TCPException {
+		CompletableFuture<Void> future = sendAsync(data);
+		flush();
+		await(future);
+	}
+
+	/*
+	 * Queues the remaining bytes of data and returns at once: the event loop
+	 * sends the data after everything queued before it, so any number of
+	 * messages can be pipelined. The future completes when the peer has got
+	 * all of the data, or exceptionally with a TCPException if the
+	 * connection fails or is closed first. The buffer is only read and must
+	 * not be modified until then.
+	 *
+	 * The future is completed by the event loop thread: actions that depend
+	 * on it run there (unless they are async ones) and must not block.
+	 *
+	 * With compression the data is compressed first, on the caller's
+	 * thread, into a buffer of its own.
+	 *
+	 * Data that does not fill the last packet may be held back to share it
+	 * with the next writes, see setNoDelay() and cork().
+	 */
+	public CompletableFuture<Void> sendAsync(ByteBuffer data) {
+		if (compressor != null && data.hasRemaining()) {
+			return sendCompressed(data);
+		}
+		return queue(data, (byte)0);
+	}
+
+	/*
+	 * Compresses data a piece at a time and queues the pieces one after
+	 * another, so that the first ones are on their way while the rest is
+	 * compressed. Pieces that do not compress go as they are. The future of
+	 * the last piece completes after all of them.
+	 */
+	private CompletableFuture<Void> sendCompressed(ByteBuffer data) {
+		compressionLock.lock();
+		try {
+			CompletableFuture<Void> future = null;
+			int position = data.position();
+			while (position < data.limit()) {
+				ByteBuffer chunk = data.duplicate();
+				chunk.limit(Math.min(data.limit(), position + Compressor.CHUNK_SIZE)).position(position);
+				position = chunk.limit();
+				ByteBuffer compressed = compressor.compress(chunk);
+				if (compressed != null) {
+					stats.dataCompressed(chunk.remaining(), compressed.remaining());
+					future = queue(compressed, (byte)16);
+				}
+				else {
+					future = queue(chunk, (byte)0);
+				}
+				if (future.isCompletedExceptionally()) {
+					break;
+				}
+			}
+			return future;
+		}
+		finally {
+			compressionLock.unlock();
+		}
+	}
+
+	private CompletableFuture<Void> queue(ByteBuffer data, byte flag) {
+		lock.lock();
+		try {
+			checkOutput();
+			if (!data.hasRemaining()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> future;
+			if (noDelay && !corked) {
+				future = sender.queue(data, flag).getFuture();
+				if (data.remaining() % segmentSize != 0) {
+					shortPacketEnd = sender.getEndSeq();
+				}
+			}
+			else {
+				future = coalesce(data, flag);
+			}
+			requestWakeup();
+			return future;
+		}
+		catch (TCPException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Tops up the held bytes with data, queues whole packets of the rest as
+	 * they are and holds the tail. Returns the future of the last of them.
+	 */
+	private CompletableFuture<Void> coalesce(ByteBuffer data, byte flag) {
+		// compressed and plain bytes do not share packets
+		if (coalesced != null && coalescedFlag != flag) {
+			queueCoalesced();
+		}
+		CompletableFuture<Void> future = null;
+		ByteBuffer rest = data.duplicate();
+		if (coalesced != null) {
+			int count = Math.min(rest.remaining(), coalesced.remaining());
+			ByteBuffer piece = rest.duplicate();
+			piece.limit(rest.position() + count);
+			coalesced.put(piece);
+			rest.position(piece.limit());
+			future = coalescedFuture;
+			if (!coalesced.hasRemaining()) {
+				queueCoalesced();
+			}
+		}
+		int wholePackets = rest.remaining() - rest.remaining() % segmentSize;
+		if (wholePackets > 0) {
+			ByteBuffer packets = rest.duplicate();
+			packets.limit(rest.position() + wholePackets);
+			future = sender.queue(packets, flag).getFuture();
+			rest.position(packets.limit());
+		}
+		if (rest.hasRemaining()) {
+			coalesced = ByteBuffer.allocate(segmentSize);
+			coalescedFlag = flag;
+			coalescedFuture = new CompletableFuture<Void>();
+			coalesced.put(rest);
+			future = coalescedFuture;
+		}
+		if (coalesced != null && !corked && (noDelay || sender.isAcked(shortPacketEnd))) {
+			queueCoalesced();
+		}
+		return future;
+	}
+
+	// queues the held bytes, if any
+	private void queueCoalesced() {
+		if (coalesced == null) {
+			return;
+		}
+		coalesced.flip();
+		boolean shortPacket = coalesced.remaining() < segmentSize;
+		sender.queue(coalesced, coalescedFlag, coalescedFuture);
+		if (shortPacket) {
+			shortPacketEnd = sender.getEndSeq();
+		}
+		coalesced = null;
+		coalescedFuture = null;
+	}
+
+	/*
+	 * With noDelay on every write is queued at once, a short packet does not
+	 * wait for the ACK of the one before: for callers that care about the
+	 * latency of each write more than the number of packets. Off by
+	 * default, bytes held back go when it is turned on.
+	 */
+	public void setNoDelay(boolean on) {
+		lock.lock();
+		try {
+			noDelay = on;
+			if (on && !corked) {
+				flushCoalesced();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean getNoDelay() {
+		return noDelay;
+	}
+
+	/*
+	 * While corked only full packets are sent, whatever noDelay says: a reply
+	 * built by several writes goes in as few packets as possible. uncork()
+	 * sends the rest at once.
+	 */
+	public void cork() {
+		lock.lock();
+		try {
+			corked = true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void uncork() {
+		lock.lock();
+		try {
+			corked = false;
+			flushCoalesced();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// sends the bytes held back now, without waiting for an ACK or uncork()
+	public void flush() {
+		lock.lock();
+		try {
+			flushCoalesced();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushCoalesced() {
+		if (coalesced != null) {
+			queueCoalesced();
+			requestWakeup();
+		}
+	}
+
+	/*
+	 * Sends the contents of a file as is. The file is mapped into memory a
+	 * region at a time and packets are encoded right out of the mapping, so
+	 * the file may be larger than the heap.
+	 */
+	public void sendFile(Path path) throws TCPException, IOException {
+		// regions are whole packets long, so no short packets in the middle
+		long regionSize = Math.max(1, mappedRegionSize / segmentSize) * (long)segmentSize;
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = file.size();
+			for (long position = 0; position < size; position += regionSize) {
+				MappedByteBuffer region = file.map(
+						FileChannel.MapMode.READ_ONLY,
+						position,
+						Math.min(regionSize, size - position)
+				);
+				send(region);
+			}
+		}
+	}
+
+	/*
+	 * Size of each of the two buffers of the output stream, in bytes. Must be
+	 * called before getOutputStream().
+	 */
+	public void setSendBufferSize(int bytes) throws TCPException {
+		if (outputStream != null) {
+			throw new TCPException("Output stream already exists.");
+		}
+		if (bytes < 1) {
+			throw new TCPException("Send buffer size must be at least 1 byte.");
+		}
+		sendBufferSize = bytes;
+	}
+
+	/*
+	 * Data written to the stream is sent in the background, in pieces of
+	 * sendBufferSize bytes (see TCPOutputStream). Closing the stream shuts
+	 * the output down.
+	 */
+	public OutputStream getOutputStream() throws TCPException {
+		lock.lock();
+		try {
+			checkOutput();
+			if (outputStream == null) {
+				outputStream = new TCPOutputStream(this, sendBufferSize);
+			}
+			return outputStream;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Sends a FIN after everything sent so far and waits until it is acked.
+	 * The peer reads the end of the stream, while this side can still
+	 * receive until the peer shuts its output down too.
+	 */
+	public void shutdownOutput() throws TCPException {
+		// data written to the output stream goes before the FIN
+		if (outputStream != null) {
+			try {
+				outputStream.drain();
+			}
+			catch (IOException e) {
+				throw new TCPException(e.getMessage());
+			}
+		}
+		CompletableFuture<Void> finAcked;
+		lock.lock();
+		try {
+			if (outputShutdown) {
+				return;
+			}
+			checkOutput();
+			outputShutdown = true;
+			queueCoalesced();
+			// need to send one finalization packet
+			finAcked = sender.queue(noData, (byte)2).getFuture();
+			requestWakeup();
+		}
+		finally {
+			lock.unlock();
+		}
+		await(finAcked);
+	}
+
+	// number of bytes that can be read without waiting
+	int available() {
+		// compressed data may inflate to anything
+		if (pendingPacket == null || PacketManager.isFinPacket(pendingPacket)
+				|| PacketManager.isCompressedPacket(pendingPacket)) {
+			return 0;
+		}
+		return PacketManager.getDataLength(pendingPacket) - pendingOffset;
+	}
+
+	/*
+	 * Waits for the packet number recvBase to be buffered by the event loop.
+	 * Returns null if the input is finished or the connection is closed
+	 * meanwhile.
+	 */
+	private ByteBuffer receivePacket() throws TCPException {
+		lock.lock();
+		try {
+			if (inputFinished) {
+				return null;
+			}
+			if (!connected) {
+				throw new TCPException("Not connected.");
+			}
+			while (!window.isFirstBuffered()) {
+				if (!connected) {
+					return null;
+				}
+				packetArrived.await();
+			}
+			ByteBuffer pkt = window.poll();
+			if (parityDecoder != null) {
+				parityDecoder.packetRead(pkt);
+			}
+			return pkt;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TCPException("Interrupted.");
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void finishInput(ByteBuffer finPacket) {
+		bufferPool.release(finPacket);
+		lock.lock();
+		try {
+			inputFinished = true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkOutput() throws TCPException {
+		if (!connected) {
+			throw new TCPException("Not connected.");
+		}
+		if (outputShutdown) {
+			throw new TCPException("Output is shut down.");
+		}
+		if (sender.getFailure() != null) {
+			throw new TCPException(sender.getFailure().getMessage());
+		}
+	}
+
+	private static void await(CompletableFuture<Void> future) throws TCPException {
+		try {
+			future.join();
+		}
+		catch (CompletionException e) {
+			throw new TCPException(e.getCause().getMessage());
+		}
+	}
+
+	/*
+	 * Completes the futures of the messages that are acked (or failed). Called
+	 * after the lock is released, the futures run the actions that depend
+	 * on them right away.
+	 */
+	private void completeMessages() {
+		while (true) {
+			Sender.Message message;
+			lock.lock();
+			try {
+				message = sender.pollCompleted();
+			}
+			finally {
+				lock.unlock();
+			}
+			if (message == null) {
+				return;
+			}
+			message.complete();
+		}
+	}
+
+	// the event loop sends what has been queued, once for any number of calls
+	private void requestWakeup() {
+		if (!wakeupRequested) {
+			wakeupRequested = true;
+			loop.wakeup(this);
+		}
+	}
+
+	/*
+	 * Called by the event loop for every packet of the peer but the first
+	 * SYN. Returns the buffer the loop has to receive into next: pkt itself,
+	 * or a free one if pkt has been buffered.
+	 */
+	ByteBuffer handlePacket(ByteBuffer pkt) throws IOException {
+		try {
+			return handlePacket0(pkt);
+		}
+		finally {
+			completeMessages();
+		}
+	}
+
+	private ByteBuffer handlePacket0(ByteBuffer pkt) throws IOException {
+		lock.lock();
+		try {
+			if (!connected) {
+				// closed gracefully: the peer's packets are still acked at
+				// once (nobody reads them), it resends its FIN until it
+				// gets the ACK
+				if (lingering && PacketManager.takesSequenceNumber(pkt)) {
+					ByteBuffer next = receiveSegment(pkt);
+					sendAck((pendingAck != null) ? pendingAck : TraceEvent.ACK);
+					return next;
+				}
+				return pkt;
+			}
+			lastReceived = System.nanoTime();
+			stats.segmentReceived();
+
+			if (PacketManager.isSynPacket(pkt)) {
+				// client has not got the server's SYN, so it is still
+				// waiting for the agreed MSS
+				if (passive && PacketManager.getSeq(pkt) == remoteISN) {
+					sendSynAck();
+				}
+				return pkt;
+			}
+
+			// every packet acks what this side has sent
+			boolean takesSeq = PacketManager.takesSequenceNumber(pkt);
+			boolean parity = PacketManager.isParityPacket(pkt);
+			sender.handleAck(pkt, !takesSeq && !parity);
+
+			ByteBuffer next = pkt;
+			if (takesSeq) {
+				next = receiveSegment(pkt);
+			}
+			else if (parity && parityDecoder != null) {
+				next = receiveParity(pkt);
+			}
+
+			// the short packet in flight is acked, the held bytes may go
+			if (coalesced != null && !corked && sender.isAcked(shortPacketEnd)) {
+				queueCoalesced();
+			}
+
+			// send what the new ACK allows, these packets carry the ACK
+			// of the received one too
+			sender.transmit();
+			if (pendingAck != null) {
+				sendAck(pendingAck);
+			}
+			return next;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// buffers a packet with data or a FIN, and decides when to ack it
+	private ByteBuffer receiveSegment(ByteBuffer pkt) {
+		int seq = PacketManager.getSeq(pkt);
+		ByteBuffer next = pkt;
+		int recvBase = window.getBase();
+		if (window.contains(seq)) {
+			// the packet this side is waiting for
+			boolean expected = seq == window.getNextExpected();
+			boolean duplicate = window.isBuffered(seq);
+			if (!duplicate) {
+				// store packet (FIN packet too, it marks the end of the stream)
+				window.put(seq, pkt);
+				next = bufferPool.take();
+				stats.segmentBuffered(PacketManager.getDataLength(pkt), !expected, window.getBufferedCount());
+				// the packet may leave one packet of its group to rebuild
+				if (parityDecoder != null && recoverPacket(seq)) {
+					expected = false;
+				}
+			}
+			else {
+				stats.duplicateSegmentReceived();
+			}
+			// continuous sequence of buffered packets can be passed to
+			// an upper layer
+			int ack = window.getNextExpected();
+			if (ack != recvBase) {
+				packetArrived.signalAll();
+			}
+
+			if (expected && !duplicate && !PacketManager.isFinPacket(pkt) && !window.hasOutOfOrderPackets()) {
+				// in-order packet: ack it together with the next ones
+				unackedPackets++;
+				if (unackedPackets >= ackFrequency) {
+					pendingAck = TraceEvent.ACK;
+				}
+				else if (!ackTimer.isScheduled()) {
+					timers.schedule(ackTimer, System.nanoTime() + ackDelay);
+				}
+			}
+			else if (ack != recvBase) {
+				// tell the peer that now this side expects packet with
+				// number ack (e.g. a hole is filled)
+				pendingAck = TraceEvent.ACK;
+			}
+			else {
+				// after buffering the received packet, this side still
+				// wants to receive packet with number recvBase
+				pendingAck = TraceEvent.EARLY_ACK;
+			}
+		}
+		else if (seq - recvBase >= windowSize) {
+			// there is no room for the packet, but peer has to
+			// know that (e.g. it is probing a zero window)
+			pendingAck = TraceEvent.WINDOW_FULL_ACK;
+			stats.segmentBeyondWindowReceived();
+		}
+		else if (recvBase - seq <= windowSize) {
+			pendingAck = TraceEvent.OLD_ACK;
+			stats.duplicateSegmentReceived();
+		}
+		return next;
+	}
+
+	/*
+	 * Takes a parity packet of the peer and rebuilds the lost packet of its
+	 * group if it can. A rebuilt packet is acked at once, as if it had come
+	 * out of order.
+	 */
+	private ByteBuffer receiveParity(ByteBuffer pkt) {
+		ByteBuffer next = pkt;
+		if (parityDecoder.addParity(pkt, window)) {
+			next = bufferPool.take();
+		}
+		int recvBase = window.getNextExpected();
+		if (recoverPacket(PacketManager.getSeq(pkt))) {
+			if (window.getNextExpected() != recvBase) {
+				packetArrived.signalAll();
+			}
+			pendingAck = TraceEvent.ACK;
+		}
+		return next;
+	}
+
+	// rebuilds the lost packet of the group of packet number seq, if it can
+	private boolean recoverPacket(int seq) {
+		ByteBuffer rebuilt = parityDecoder.recover(seq, window);
+		if (rebuilt == null) {
+			return false;
+		}
+		boolean expected = PacketManager.getSeq(rebuilt) == window.getNextExpected();
+		window.put(PacketManager.getSeq(rebuilt), rebuilt);
+		stats.segmentRecovered();
+		stats.segmentBuffered(PacketManager.getDataLength(rebuilt), !expected, window.getBufferedCount());
+		if (tracePackets) {
+			tracer.packetEvent(TraceEvent.RECOVERED, remoteSocketAddress, rebuilt);
+		}
+		return true;
+	}
+
+	/*
+	 * Send packet with info "I know your ISN, here is mine, the agreed MSS,
+	 * parity group size and compression", and the client's resumption token
+	 */
+	void sendSynAck() throws IOException {
+		lock.lock();
+		try {
+			int tokenLength = (resumptionToken != null) ? resumptionToken.length : 0;
+			ByteBuffer synAckData = ByteBuffer.allocate(PacketManager.SYN_OPTIONS_LENGTH + tokenLength)
+					.putInt(segmentSize)
+					.putInt(fecGroupSize)
+					.putInt((compressor != null) ? 1 : 0)
+					.putInt(compressionDictionaryId)
+					.putInt(tokenLength);
+			if (resumptionToken != null) {
+				synAckData.put(resumptionToken);
+			}
+			synAckData.flip();
+			sendSegment((byte)1, localISN, synAckData, TraceEvent.SYN);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Called by the event loop after the application has queued something
+	 * to send. Returns false if the connection is closed and can be forgotten.
+	 */
+	boolean handleWakeup() throws IOException {
+		lock.lock();
+		try {
+			wakeupRequested = false;
+			if (!connected) {
+				return false;
+			}
+			sender.transmit();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Called by the event loop when one of the connection's timers expires.
+	 * Returns false if the connection is closed and can be forgotten.
+	 */
+	boolean handleTimeout(TimingWheel.Timeout timeout, long now) throws IOException {
+		try {
+			return handleTimeout0(timeout, now);
+		}
+		finally {
+			completeMessages();
+		}
+	}
+
+	private boolean handleTimeout0(TimingWheel.Timeout timeout, long now) throws IOException {
+		lock.lock();
+		try {
+			if (!connected) {
+				return false;
+			}
+			if (timeout == ackTimer) {
+				// Event: delayed ACK
+				if (unackedPackets > 0) {
+					sendAck(TraceEvent.DELAYED_ACK);
+				}
+				return true;
+			}
+			if (timeout == idleTimer) {
+				// the peer has sent something since the timer was started
+				if (now < getIdleDeadline()) {
+					timers.schedule(idleTimer, getIdleDeadline());
+					return true;
+				}
+				if (traceConnections) {
+					tracer.connectionEvent(TraceEvent.IDLE_TIMEOUT, remoteSocketAddress);
+				}
+				abort();
+				return false;
+			}
+			// Event: retransmission timer timeout
+			if (!sender.handleTimeout(timeout)) {
+				if (traceConnections) {
+					tracer.connectionEvent(TraceEvent.FAILED, remoteSocketAddress);
+				}
+				abort();
+				return false;
+			}
+			sender.transmit();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private long getIdleDeadline() {
+		return lastReceived + TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	int getRemoteISN() {
+		return remoteISN;
+	}
+
+	// any 32-bit number, packet numbers wrap around
+	static int newInitialSequenceNumber() {
+		return ISN_RANDOM.nextInt();
+	}
+
+	// the token the server's SYN gives the client for fast open, null for none
+	void setResumptionToken(byte[] token) {
+		lock.lock();
+		try {
+			resumptionToken = token;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Forgets the peer: its packets are not accepted any more, receive()
+	 * reports the end of the stream and unacked messages fail. The timers
+	 * are left to the event loop, see release(). If either side's FIN has
+	 * been sent, the peer's packets are still acked for a while.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (connected) {
+				lingering = inputFinished || outputShutdown;
+			}
+			abort();
+		}
+		finally {
+			lock.unlock();
+		}
+		completeMessages();
+		loop.connectionClosed(this);
+	}
+
+	/*
+	 * Cancels the timers of the closed connection, sends the delayed ACK
+	 * (the peer would wait for it until it gives up) and frees the deflate
+	 * streams; once it is released, the buffered packets go back to the
+	 * pool (a packet the reader has started stays with it). Called by the event loop thread (the timers are its own),
+	 * returns true once the connection can be forgotten. A lingering one is
+	 * released when its idle timer goes off, or at once if the loop is
+	 * stopping.
+	 */
+	boolean release(boolean stopping) {
+		lock.lock();
+		try {
+			if (released) {
+				return false;
+			}
+			if (unackedPackets > 0) {
+				try {
+					sendAck(TraceEvent.DELAYED_ACK);
+				}
+				catch (IOException e) {
+					// nothing to do, the peer resends what is not acked
+				}
+			}
+			timers.cancel(ackTimer);
+			sender.release();
+			if (compressor != null) {
+				compressor.close();
+				decompressor.close();
+			}
+			if (lingering && !stopping) {
+				if (lingerDeadline == 0) {
+					lingerDeadline = System.nanoTime() + LINGER_TIME;
+					timers.schedule(idleTimer, lingerDeadline);
+				}
+				if (idleTimer.isScheduled()) {
+					return false;
+				}
+			}
+			released = true;
+			lingering = false;
+			timers.cancel(idleTimer);
+			window.release(bufferPool);
+			if (parityDecoder != null) {
+				parityDecoder.release();
+			}
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Aborts the connection after its code threw on the event loop thread,
+	 * waiting calls fail with the exception's message.
+	 */
+	void fail(Exception e) {
+		lock.lock();
+		try {
+			lingering = false;
+			abort(new TCPException("Connection failed: " + e));
+		}
+		finally {
+			lock.unlock();
+		}
+		completeMessages();
+	}
+
+	private void abort() {
+		abort(new TCPException("Connection closed."));
+	}
+
+	private void abort(TCPException failure) {
+		if (connected && traceConnections) {
+			tracer.connectionEvent(TraceEvent.CLOSED, remoteSocketAddress);
+		}
+		connected = false;
+		packetArrived.signalAll();
+		unregisterMBean();
+		// held bytes fail with the rest
+		queueCoalesced();
+		sender.fail(failure);
+	}
+
+	/*
+	 * Counters and histograms of the connection so far: segments and bytes
+	 * sent and received, retransmissions by cause, duplicate ACKs, RTT
+	 * samples, window occupancy and goodput. Does not take the lock, the
+	 * event loop is not held up.
+	 */
+	@Override
+	public ConnectionStats getStats() {
+		return stats.snapshot();
+	}
+
+	/*
+	 * Registers the connection with the platform MBean server as
+	 * tcp:type=TCPConnection,local=<localPort>,remote="<address>". It is
+	 * unregistered when the connection closes.
+	 */
+	void registerMBean(int localPort) {
+		lock.lock();
+		try {
+			if (!connected || mbeanName != null) {
+				return;
+			}
+			ObjectName name = new ObjectName(
+					"tcp:type=TCPConnection,local=" + localPort
+					+ ",remote=" + ObjectName.quote(remoteSocketAddress.toString())
+			);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			mbeanName = name;
+		}
+		catch (JMException e) {
+			// nothing to do, getStats() still works
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		}
+		catch (JMException e) {
+			// nothing to do, it is gone anyway
+		}
+		mbeanName = null;
+	}
+
+	@Override
+	public boolean isConnected() {
+		lock.lock();
+		try {
+			return connected;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	@Override
+	public int getRemotePort() {
+		return remotePort;
+	}
+
+	SocketAddress getRemoteSocketAddress() {
+		return remoteSocketAddress;
+	}
+
+	@Override
+	public int getMaxSegmentSize() {
+		return segmentSize;
+	}
+
+	// packets per parity group, 0 without forward error correction
+	@Override
+	public int getFecGroupSize() {
+		return fecGroupSize;
+	}
+
+	@Override
+	public boolean isCompressionEnabled() {
+		return compressor != null;
+	}
+
+	/*
+	 * RTT estimator state of the sending half, in milliseconds. Smoothed RTT
+	 * and its variance are 0 until the first ACK for a packet that was sent
+	 * only once.
+	 */
+	@Override
+	public double getSmoothedRtt() {
+		lock.lock();
+		try {
+			return rttEstimator.getSmoothedRtt() / 1e6;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public double getRttVariance() {
+		lock.lock();
+		try {
+			return rttEstimator.getRttVariance() / 1e6;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public double getRetransmissionTimeout() {
+		lock.lock();
+		try {
+			return rttEstimator.getRto() / 1e6;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getCongestionWindow() {
+		lock.lock();
+		try {
+			return congestionControl.getCongestionWindow();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getSlowStartThreshold() {
+		lock.lock();
+		try {
+			return congestionControl.getSlowStartThreshold();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// bytes per second the packets are paced at now, 0 if not paced
+	@Override
+	public long getPacingRate() {
+		lock.lock();
+		try {
+			return sender.getPacingRate();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Limits the pacing rate to bytes bytes per second (0, the default, for no
+	 * limit but the congestion window).
+	 */
+	void setMaxPacingRate(long bytes) {
+		lock.lock();
+		try {
+			sender.setMaxPacingRate(bytes);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// bounds for the retransmission timeout, in nanoseconds
+	void setMinRto(long nanos) {
+		lock.lock();
+		try {
+			rttEstimator.setMinRto(nanos);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	void setMaxRto(long nanos) {
+		lock.lock();
+		try {
+			rttEstimator.setMaxRto(nanos);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void sendAck(TraceEvent event) throws IOException {
+		sendSegment((byte)0, sender.getNextSeq(), noData, event);
+	}
+
+	/*
+	 * Sends a packet of the sending half (or a plain ACK). Every packet
+	 * advertises how many packets starting from the acked one can be
+	 * buffered: slots of the window from the acked packet to its end. It
+	 * also lists the packets buffered after the acked one as SACK blocks,
+	 * so that peer resends only the missing ones. The packet acks
+	 * everything delayed so far. event tells why it is sent.
+	 */
+	void sendSegment(byte flag, int seq, ByteBuffer data, TraceEvent event) throws IOException {
+		unackedPackets = 0;
+		pendingAck = null;
+		timers.cancel(ackTimer);
+		stats.segmentSent(event, data.remaining());
+
+		int ack = window.getNextExpected();
+		int freeWindow = window.getBase() + windowSize - ack;
+		// a parity packet has 8 bytes more data than a full packet
+		int maxSackBlocks = (flag == 3) ? PacketManager.MAX_SACK_BLOCKS - 1 : PacketManager.MAX_SACK_BLOCKS;
+		int sackBlockCount = window.collectSackBlocks(ack, sackBlocks, maxSackBlocks);
+
+		ByteBuffer sendBuffer = loop.getSendBuffer();
+		sendBuffer.clear();
+		PacketManager.encode(sendBuffer, flag, seq, ack, freeWindow, sackBlocks, sackBlockCount, data);
+		sendBuffer.flip();
+		loop.send(sendBuffer, remoteSocketAddress);
+
+		if (tracePackets) {
+			tracer.packetEvent(event, remoteSocketAddress, sendBuffer.rewind());
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package tcp;
+
+/*
+ * What a connection shows over JMX when its socket registers it (see
+ * setJmxEnabled() of the sockets). Stats is a composite of the counters
+ * and histograms of ConnectionStats, the rest is the current state of the
+ * sending half. Times are in milliseconds, windows in packets, rates in
+ * bytes per second.
+ */
+public interface TCPConnectionMXBean {
+
+	ConnectionStats getStats();
+
+	boolean isConnected();
+
+	int getRemotePort();
+
+	int getMaxSegmentSize();
+
+	int getFecGroupSize();
+
+	boolean isCompressionEnabled();
+
+	double getSmoothedRtt();
+
+	double getRttVariance();
+
+	double getRetransmissionTimeout();
+
+	int getCongestionWindow();
+
+	int getSlowStartThreshold();
+
+	long getPacingRate();
+}
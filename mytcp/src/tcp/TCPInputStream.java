@@ -0,0 +1,69 @@
+package tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Input stream of a TCPConnection: reads the data of in-order packets
+ * right out of the connection's receive window, which bounds how much is
+ * buffered. A read returns the data of at most one packet.
+ */
+class TCPInputStream extends InputStream {
+	private TCPConnection connection;
+	private byte[] oneByte;
+	private boolean finished;
+
+	TCPInputStream(TCPConnection connection) {
+		this.connection = connection;
+		oneByte = new byte[1];
+		finished = false;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int count;
+		do {
+			count = read(oneByte, 0, 1);
+		} while (count == 0);
+		return (count < 0) ? -1 : (oneByte[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (finished) {
+			return -1;
+		}
+		int count;
+		try {
+			// packets without data (if any) return 0, wait for the next one
+			do {
+				count = connection.receive(ByteBuffer.wrap(b, off, len));
+			} while (count == 0);
+		}
+		catch (TCPException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		if (count < 0) {
+			finished = true;
+		}
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return connection.available();
+	}
+
+	@Override
+	public void close() {
+		finished = true;
+		connection.close();
+	}
+}
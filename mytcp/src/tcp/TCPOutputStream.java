@@ -0,0 +1,227 @@
+package tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Output stream of a TCPConnection. Written bytes are collected in one of two
+ * buffers of bufferSize bytes: a full buffer is queued with sendAsync() and
+ * the application fills the other one meanwhile, so reading the source and
+ * sending overlap and memory use does not depend on how much is written.
+ * The two buffers follow each other without a pause, write() blocks only
+ * when both of them are taken.
+ *
+ * flush() queues what is written to the buffer so far and the next writes
+ * go on filling it, so frequent flushes do not take up the buffers (the
+ * connection coalesces the small pieces into full packets, see
+ * TCPConnection.setNoDelay()). A buffer is free again once it is full and
+ * all of its pieces are acked. close() waits until everything is acked and
+ * shuts the output of the connection down.
+ */
+class TCPOutputStream extends OutputStream {
+	private static final int BUFFERS = 2;
+
+	// bytes before queuedUpTo are queued, in queuedPieces pieces not acked yet
+	private static class Buffer {
+		private ByteBuffer data;
+		private int queuedUpTo;
+		private int queuedPieces;
+		// full, it is free when the last piece is acked
+		private boolean retired;
+
+		private Buffer(int size) {
+			data = ByteBuffer.allocate(size);
+		}
+	}
+
+	private TCPConnection connection;
+	// buffer being filled by write(), null if it is not taken yet
+	private Buffer current;
+	private ArrayDeque<Buffer> freeBuffers;
+	// number of pieces queued and not acked yet
+	private int unsentPieces;
+	private IOException failure;
+	private boolean closed;
+
+	private ReentrantLock lock;
+	private Condition bufferFreed;
+
+	TCPOutputStream(TCPConnection connection, int bufferSize) {
+		this.connection = connection;
+		freeBuffers = new ArrayDeque<Buffer>(BUFFERS);
+		for (int i = 0; i < BUFFERS; ++i) {
+			freeBuffers.add(new Buffer(bufferSize));
+		}
+		unsentPieces = 0;
+		closed = false;
+
+		lock = new ReentrantLock();
+		bufferFreed = lock.newCondition();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		takeBuffer();
+		current.data.put((byte)b);
+		if (!current.data.hasRemaining()) {
+			submit();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			takeBuffer();
+			int count = Math.min(len, current.data.remaining());
+			current.data.put(b, off, count);
+			off += count;
+			len -= count;
+			if (!current.data.hasRemaining()) {
+				submit();
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (current != null && current.data.position() > current.queuedUpTo) {
+			queuePiece();
+		}
+		checkFailure();
+	}
+
+	/*
+	 * Sends everything written so far and waits until it is acked, then
+	 * sends a FIN.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		drain();
+		closed = true;
+		try {
+			connection.shutdownOutput();
+		}
+		catch (TCPException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Waits until everything written so far is acked.
+	 */
+	void drain() throws IOException {
+		flush();
+		// bytes the connection holds back for coalescing would wait for more
+		connection.flush();
+		lock.lock();
+		try {
+			while (unsentPieces > 0 && failure == null) {
+				bufferFreed.awaitUninterruptibly();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		checkFailure();
+	}
+
+	private void takeBuffer() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed.");
+		}
+		if (current != null) {
+			return;
+		}
+		lock.lock();
+		try {
+			while (freeBuffers.isEmpty() && failure == null) {
+				bufferFreed.awaitUninterruptibly();
+			}
+			checkFailure();
+			current = freeBuffers.poll();
+			current.data.clear();
+			current.queuedUpTo = 0;
+			current.retired = false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// queues the rest of the full buffer, write() takes another one
+	private void submit() {
+		Buffer buffer = current;
+		queuePiece();
+		current = null;
+		lock.lock();
+		try {
+			buffer.retired = true;
+			if (buffer.queuedPieces == 0) {
+				freeBuffers.add(buffer);
+				bufferFreed.signalAll();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void queuePiece() {
+		Buffer buffer = current;
+		ByteBuffer piece = buffer.data.duplicate();
+		piece.flip().position(buffer.queuedUpTo);
+		buffer.queuedUpTo = buffer.data.position();
+		lock.lock();
+		try {
+			buffer.queuedPieces++;
+			unsentPieces++;
+		}
+		finally {
+			lock.unlock();
+		}
+		connection.sendAsync(piece).whenComplete((v, e) -> pieceSent(buffer, e));
+	}
+
+	// called by the event loop when a piece is acked (or failed)
+	private void pieceSent(Buffer buffer, Throwable e) {
+		lock.lock();
+		try {
+			if (e != null && failure == null) {
+				Throwable cause = (e instanceof CompletionException) ? e.getCause() : e;
+				failure = new IOException(cause.getMessage(), cause);
+			}
+			buffer.queuedPieces--;
+			unsentPieces--;
+			if (buffer.retired && buffer.queuedPieces == 0) {
+				freeBuffers.add(buffer);
+			}
+			bufferFreed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		lock.lock();
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
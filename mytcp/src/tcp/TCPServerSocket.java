@@ -1,250 +1,656 @@
 package tcp;
 
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
 
 import pktmngr.PacketManager;
+import tcp.congestion.RenoCongestionControl;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+import tcp.transport.DatagramTransport;
+import tcp.transport.NetworkEmulator;
+import tcp.transport.UdpTransport;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+
+/*
+ * Serves any number of clients on one UDP port. The event loop passes each
+ * datagram to the connection of its sender (address and port) and runs the
+ * timers of all connections; a SYN from an unknown sender opens a new
+ * connection that is handed out by accept(). Connections send as well as
+ * receive, the ones of all clients share the loop.
+ *
+ * The loss rate the server is created with drops that share of the
+ * datagrams it receives, at random; the same seed drops the same ones in
+ * every run (see NetworkEmulator for more ways to impair the network, in
+ * both directions).
+ */
 public class TCPServerSocket {
 	private double lossRate;
+	private long lossSeed;
 	private int listeningPort;
-	private DatagramSocket udpsocket;
-	private int clientISN;
-	private int recvBase;
-	private ArrayList<DatagramPacket> packets;
-	private ArrayList<Byte> packetsStatus;
-	private boolean connected;
-	private int rtt;
+	private DatagramChannel channel;
+	private UnaryOperator<DatagramTransport> transportWrapper;
+	private DatagramTransport transport;
+	// how long client may stay silent before it is considered gone, in milliseconds
+	private int idleTimeout;
 	private int windowSize;
-	
+	// ACK every ackFrequency-th in-order packet, or ackDelay milliseconds
+	// after an in-order packet arrived
+	private int ackFrequency;
+	private int ackDelay;
+
+	// MSS this side is ready to accept
+	private int maxSegmentSize;
+	// packets per parity group the server agrees to, 0 for none
+	private int fecGroupSize;
+	// pacing rate limit of every connection in bytes per second, 0 for none
+	private long maxPacingRate;
+	// whether connections send small writes at once instead of coalescing them
+	private boolean noDelay;
+	// whether the server agrees to compression, and with which dictionary
+	private boolean compression;
+	private byte[] compressionDictionary;
+	// fast open, the tokens are null until it is turned on
+	private boolean fastOpen;
+	private ResumptionTokens resumptionTokens;
+
+	private Tracer tracer;
+	private boolean tracePackets;
+	private boolean jmxEnabled;
+
+	private EventLoop loop;
+	private volatile boolean closed;
+	private static final int INITIAL_BUFFERS = 1024;
+
+	// connections by client address, and the ones accept() has not returned yet
+	private HashMap<SocketAddress, TCPConnection> connections;
+	private ArrayDeque<TCPConnection> acceptQueue;
+	// connections accept() may be behind by, SYNs beyond them are dropped
+	private int backlog;
+	private ReentrantLock lock;
+	private Condition connectionOpened;
+
 	public TCPServerSocket(double _lossRate) {
 		lossRate = _lossRate;
+		lossSeed = 1;
 		windowSize = 100;
-		packets = new ArrayList<DatagramPacket>(Collections.nCopies(windowSize, null));
-		packetsStatus = new ArrayList<Byte>(Collections.nCopies(windowSize, (byte)0));
-		connected = false;
-		rtt = 500;
+		idleTimeout = 60000;
+		ackFrequency = 2;
+		ackDelay = 5;
+		maxSegmentSize = PacketManager.DEFAULT_DATA_LENGTH;
+		fecGroupSize = 0;
+		backlog = 50;
+		tracer = Tracer.NONE;
+
+		connections = new HashMap<SocketAddress, TCPConnection>();
+		acceptQueue = new ArrayDeque<TCPConnection>();
+		lock = new ReentrantLock();
+		connectionOpened = lock.newCondition();
+		closed = false;
 	}
-	
-	public void listen(int port) throws SocketException, UnknownHostException {
-		listeningPort = port;
-		udpsocket = new DatagramSocket(listeningPort, InetAddress.getByName("localhost"));
-		udpsocket.setSoTimeout(rtt);
-	}
-	
-	public void accept() throws IOException {
-		System.out.println("Waiting for client...");
-		while (true) {
-			DatagramPacket recvPacket = new DatagramPacket(new byte[1024], 1024);
-			try {
-				udpsocket.receive(recvPacket);
-			}
-			catch (Exception e) {
-				continue;
-			}
-			
-			if (losePacket()) {
-				continue;
-			}
-			
-			System.out.println("RECVBASE");
-			System.out.println(recvBase);
-			PacketManager.printData(recvPacket, "(SYN) From client");
-			System.out.println();
-			
-			if (PacketManager.isSynPacket(recvPacket)) {
-				InetAddress clientAddress = recvPacket.getAddress();
-				int clientPort = recvPacket.getPort();
-				clientISN = PacketManager.getACK(recvPacket);
-				recvBase = clientISN + 1;
-				
-				// now server knows that client will send packets with numbers starting from clientISN
-				// Send packet with info "I know your ISN, am waiting for packet with number recvBase"
-				DatagramPacket sendPacket = PacketManager.create(
-						(byte)0,
-						clientISN+1,
-						"",
-						clientAddress,
-						clientPort
-				);
-				udpsocket.send(sendPacket);
-				
-				System.out.println("RECVBASE");
-				System.out.println(recvBase);
-				PacketManager.printData(sendPacket, "(SYN) To client");
-				System.out.println();
-				
-				connected = true;
-				break;
-			}
-			else {
-				continue;
-			}
+
+	/*
+	 * Sets the largest amount of data (in bytes) the server accepts in one
+	 * packet. Must be called before listen().
+	 */
+	public void setMaxSegmentSize(int mss) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (mss < 1 || mss > PacketManager.MAX_DATA_LENGTH) {
+			throw new TCPException("MSS must be from 1 to " + PacketManager.MAX_DATA_LENGTH + " bytes.");
+		}
+		maxSegmentSize = mss;
+	}
+
+	/*
+	 * Sets how many packets every connection can buffer (100 by default).
+	 * Must be called before listen().
+	 */
+	public void setWindowSize(int packets) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (packets < 1) {
+			throw new TCPException("Window size must be at least 1 packet.");
 		}
+		windowSize = packets;
 	}
-	
-	public DatagramPacket receive() throws SocketException, TCPException {
-		if (!connected) {
-			throw new TCPException("Not connected.");
+
+	/*
+	 * Sets how many new connections may wait for accept() (50 by default).
+	 * The SYNs of more clients are dropped, they connect when they resend
+	 * them after accept() has caught up. Must be called before listen().
+	 */
+	public void setBacklog(int connections) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
 		}
-		// if packet with number recvBase have already been buffered
-		if (packetsStatus.get(0).byteValue() == (byte)2) {
-			DatagramPacket toReturn = shiftPackets();
-			if (toReturn == null) {
-				// timerRunning = true used so that the server does not
-				// think that the client has stopped sending packets
-				connected = false;
-			}
-			return toReturn;
-		}
-		/* packet status:
-		 *		0 - not received
-		 * 		1 - expecting
-		 * 		2 - buffered
-		 */
-		int receiveTry = 0;
-		while (true) {
-			if (receiveTry == 120) {
-				System.out.println("Client wasn't sending anything in a minute, disconnecting...");
-				connected = false;
-				return null;
+		if (connections < 1) {
+			throw new TCPException("Backlog must be at least 1 connection.");
+		}
+		backlog = connections;
+	}
+
+	/*
+	 * Forward error correction for the clients that propose it too (see
+	 * TCPSocket.setFecGroupSize()): the smaller of the two group sizes is
+	 * used, 0 (the default) turns it off. Must be called before listen().
+	 */
+	public void setFecGroupSize(int packets) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (packets < 0 || packets > ParityEncoder.MAX_GROUP_SIZE) {
+			throw new TCPException("Parity group size must be from 0 to " + ParityEncoder.MAX_GROUP_SIZE + " packets.");
+		}
+		fecGroupSize = packets;
+	}
+
+	/*
+	 * Compression for the clients that propose it with the same dictionary
+	 * (see TCPSocket.setCompression()). Off by default. Must be called before
+	 * listen().
+	 */
+	public void setCompression(boolean on) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		compression = on;
+	}
+
+	/*
+	 * Preset dictionary for compression, see
+	 * TCPSocket.setCompressionDictionary(). Must be called before listen().
+	 */
+	public void setCompressionDictionary(byte[] dictionary) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		compressionDictionary = (dictionary != null) ? dictionary.clone() : null;
+	}
+
+	/*
+	 * Fast open (off by default): the server gives every client that does
+	 * fast open too a resumption token in its SYN. When the client connects
+	 * again with the token, the data of its first packet comes in its SYN
+	 * and is there for the server to read as soon as accept() returns,
+	 * without waiting for the handshake to finish. Tokens are checked
+	 * without any state per client (see setFastOpenKey()).
+	 *
+	 * A SYN can come twice after the first connection is gone, so the
+	 * first data of a connection should be a request that can be repeated.
+	 * Must be called before listen().
+	 */
+	public void setFastOpen(boolean on) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (on && resumptionTokens == null) {
+			resumptionTokens = new ResumptionTokens(null);
+		}
+		fastOpen = on;
+	}
+
+	/*
+	 * Secret key of the resumption tokens, at least 16 bytes. By default a
+	 * random key is made, so the tokens are only good until the server is
+	 * restarted; servers with the same key take each other's tokens. Must
+	 * be called before listen().
+	 */
+	public void setFastOpenKey(byte[] key) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (key == null || key.length < 16) {
+			throw new TCPException("Fast open key must be at least 16 bytes long.");
+		}
+		resumptionTokens = new ResumptionTokens(key.clone());
+	}
+
+	/*
+	 * Limits the pacing rate of every connection, see
+	 * TCPSocket.setMaxPacingRate(). Must be called before listen().
+	 */
+	public void setMaxPacingRate(long bytes) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (bytes < 0) {
+			throw new TCPException("Pacing rate must not be negative.");
+		}
+		maxPacingRate = bytes;
+	}
+
+	/*
+	 * Turns coalescing of small writes off for every connection, see
+	 * TCPConnection.setNoDelay(); a connection can still change it. Must be
+	 * called before listen().
+	 */
+	public void setNoDelay(boolean on) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		noDelay = on;
+	}
+
+	/*
+	 * Delayed ACKs: an ACK is sent for every packets-th in-order packet, or
+	 * millis milliseconds after an in-order packet if no more packets come.
+	 * setAckFrequency(1) acks every packet at once. Must be called before
+	 * listen().
+	 */
+	public void setAckFrequency(int packets) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (packets < 1) {
+			throw new TCPException("ACK frequency must be at least 1 packet.");
+		}
+		ackFrequency = packets;
+	}
+
+	public void setAckDelay(int millis) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (millis < 0) {
+			throw new TCPException("ACK delay must not be negative.");
+		}
+		ackDelay = millis;
+	}
+
+	/*
+	 * Sets where the events of the server and its connections go (nowhere
+	 * by default), e.g. a ConsoleTracer or a RingBufferTracer. Must be
+	 * called before listen().
+	 */
+	public void setTracer(Tracer tracer) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		if (tracer == null) {
+			throw new TCPException("Tracer must not be null.");
+		}
+		this.tracer = tracer;
+	}
+
+	/*
+	 * Registers every connection over JMX while it is open (off by default),
+	 * see TCPConnection.registerMBean(). Must be called before listen().
+	 */
+	public void setJmxEnabled(boolean enabled) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		jmxEnabled = enabled;
+	}
+
+	/*
+	 * Seed of the random drops of the loss rate (1 by default). Must be
+	 * called before listen().
+	 */
+	public void setLossSeed(long seed) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		lossSeed = seed;
+	}
+
+	/*
+	 * Puts a layer between the server and its UDP socket: wrapper gets the
+	 * socket's UdpTransport and returns the transport to use, e.g.
+	 *
+	 *		udp -> new NetworkEmulator(udp, outbound, inbound, seed)
+	 *
+	 * It replaces the loss rate the server was created with. Must be called
+	 * before listen().
+	 */
+	public void setTransport(UnaryOperator<DatagramTransport> wrapper) throws TCPException {
+		if (channel != null) {
+			throw new TCPException("Already listening.");
+		}
+		transportWrapper = wrapper;
+	}
+
+	/*
+	 * Port 0 picks a free port, getLocalPort() tells which one.
+	 */
+	public void listen(int port) throws IOException {
+		// packets are never longer than the longest header plus our MSS
+		// (or the integers and the token of a SYN)
+		// the pool grows when the windows fill up
+		BufferPool bufferPool = new BufferPool(
+				PacketManager.maxPacketLength(maxSegmentSize),
+				Math.min(windowSize, INITIAL_BUFFERS)
+		);
+
+		listeningPort = port;
+		tracePackets = tracer.isEnabled(Tracer.Level.PACKETS);
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getByName("localhost"), listeningPort));
+		listeningPort = channel.socket().getLocalPort();
+		transport = new UdpTransport(channel);
+		if (transportWrapper != null) {
+			transport = transportWrapper.apply(transport);
+		}
+		else if (lossRate > 0) {
+			transport = new NetworkEmulator(
+					transport,
+					new NetworkEmulator.Impairments(),
+					new NetworkEmulator.Impairments().setLossRate(lossRate),
+					lossSeed
+			);
+		}
+		transport.setTracer(tracer);
+		loop = new EventLoop(
+				"TCPServerSocket-" + listeningPort,
+				transport,
+				bufferPool,
+				PacketManager.maxPacketLength(maxSegmentSize),
+				tracer,
+				new EventLoop.Handler() {
+					@Override
+					public ByteBuffer handleDatagram(SocketAddress clientAddress, ByteBuffer datagram) throws IOException {
+						return TCPServerSocket.this.handleDatagram(clientAddress, datagram);
+					}
+
+					@Override
+					public void connectionClosed(TCPConnection connection) {
+						removeConnection(connection);
+					}
+
+					@Override
+					public TCPConnection findConnection(SocketAddress clientAddress) {
+						return getConnection(clientAddress);
+					}
+				}
+		);
+		loop.start();
+	}
+
+	// port the server listens on, -1 before listen()
+	public int getLocalPort() {
+		return (channel == null) ? -1 : channel.socket().getLocalPort();
+	}
+
+	/*
+	 * Waits for a new client and returns its connection.
+	 */
+	public TCPConnection accept() throws IOException {
+		lock.lock();
+		try {
+			while (acceptQueue.isEmpty()) {
+				if (closed || channel == null) {
+					throw new SocketException("Socket is not listening.");
+				}
+				connectionOpened.awaitUninterruptibly();
 			}
-			try {
-				DatagramPacket recvPacket = new DatagramPacket(new byte[1024], 1024);
+			return acceptQueue.poll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Accepts clients until the server is closed, every connection is served
+	 * by handler on a thread of its own. When handler returns the output is
+	 * shut down (the client reads the end of the stream once it has got
+	 * everything) and the connection is closed after the FIN is acked. An
+	 * exception of handler, or of the shutdown, goes to the tracer (see
+	 * Tracer.connectionError()) and the connection is closed at once.
+	 *
+	 * The threads are virtual when the runtime has them (Java 21 and later):
+	 * blocking receive() and send() calls only park the virtual thread, they
+	 * wait on locks and futures of java.util.concurrent, never on monitors,
+	 * so any number of clients is served by a few carrier threads. Older
+	 * runtimes get a platform thread per connection.
+	 */
+	public void serve(ConnectionHandler handler) throws IOException {
+		ExecutorService executor = newThreadPerTaskExecutor();
+		try {
+			while (true) {
+				TCPConnection connection;
 				try {
-					udpsocket.receive(recvPacket);
-					receiveTry = 0;
+					connection = accept();
 				}
-				catch (Exception e) {
-					receiveTry++;
-					continue;
+				catch (SocketException e) {
+					// the server is closed
+					return;
 				}
-				
-				if (losePacket()) {
-					continue;
-				}
-				
-				
-				System.out.println("RECVBASE");
-				System.out.println(recvBase);
-				PacketManager.printData(recvPacket, "(RECV) From client");
-				System.out.println();
-				
-				InetAddress clientAddress = recvPacket.getAddress();
-				int clientPort = recvPacket.getPort();
-				int seq = PacketManager.getACK(recvPacket);
-
-				if (recvBase <= seq && seq < recvBase + windowSize) {
-					// if received packet is not buffered (its status != 2)
-					if (packetsStatus.get(seq - recvBase).byteValue() != (byte)2) {
-						// store packet if it is not a FYN packet
-						if (!PacketManager.isFinPacket(recvPacket)) {
-							packets.set(seq - recvBase, recvPacket);
+				executor.execute(() -> {
+					try {
+						handler.handle(connection);
+						if (connection.isConnected()) {
+							connection.shutdownOutput();
 						}
-						packetsStatus.set(seq - recvBase, (byte)2);
 					}
-					// if received what expected
-					if (seq == recvBase) {
-						// pass continuous sequence of buffered packets to
-						// an upper layer
-						int passed = 0;
-						for (int i = 0; i < windowSize; ++i) {
-							// break on first not buffered packet
-							if (packetsStatus.get(i).byteValue() != (byte)2) {
-								break;
-							}
-							passed++;
-						}
-						
-						// send to client that now server expects packet
-						// with number recvBase + passed
-						DatagramPacket sendPacket = PacketManager.create(
-								(byte)0,
-								recvBase + passed,
-								"",
-								clientAddress,
-								clientPort
-						);
-						udpsocket.send(sendPacket);
-						
-						System.out.println("RECVBASE");
-						System.out.println(recvBase + 1); // +1 needed because sendBase will be incremented in shiftPackets
-						PacketManager.printData(sendPacket, "(RECV) To client");
-						System.out.println();
-						
-						// return received packet (because function need
-						// to return something after successful receiving)
-						DatagramPacket toReturn = shiftPackets();
-						// packet is null if it was a FYN packet
-						if (toReturn == null) {
-							connected = false;
+					catch (Exception e) {
+						if (tracer.isEnabled(Tracer.Level.CONNECTIONS)) {
+							tracer.connectionError(connection.getRemoteSocketAddress(), e);
 						}
-						return toReturn;
 					}
-					else {
-						// after buffering the received packet,
-						// server still wants to receive packet with number recvBase
-						DatagramPacket sendPacket = PacketManager.create(
-								(byte)0,
-								recvBase,
-								"",
-								clientAddress,
-								clientPort
-						);
-						udpsocket.send(sendPacket);
-						
-						System.out.println("RECVBASE");
-						System.out.println(recvBase);
-						PacketManager.printData(sendPacket, "(Too early) To client");
-						System.out.println();
-						
+					finally {
+						connection.close();
 					}
-				}
-				if (recvBase - windowSize <= seq && seq < recvBase) {
-					DatagramPacket sendPacket = PacketManager.create(
-							(byte)0,
-							recvBase,
-							"",
-							clientAddress,
-							clientPort
-					);
-					udpsocket.send(sendPacket);
-					
-					System.out.println("RECVBASE");
-					System.out.println(recvBase);
-					PacketManager.printData(sendPacket, "(Old) To client");
-					System.out.println();
+				});
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			// looked up at run time, the code is built for older runtimes too
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "TCPConnection-handler");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/*
+	 * Stops the event loop and closes all connections.
+	 */
+	public void close() {
+		closed = true;
+		lock.lock();
+		try {
+			connectionOpened.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (loop != null) {
+			loop.close();
+		}
+		TCPConnection[] toClose;
+		lock.lock();
+		try {
+			toClose = connections.values().toArray(new TCPConnection[0]);
+		}
+		finally {
+			lock.unlock();
+		}
+		for (TCPConnection connection : toClose) {
+			connection.close();
+		}
+		try {
+			// the transport closes the channel
+			if (transport != null) {
+				transport.close();
+			}
+			else if (channel != null) {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			// nothing to do, the sockets are gone anyway
+		}
+	}
+
+	private ByteBuffer handleDatagram(SocketAddress clientAddress, ByteBuffer datagram) throws IOException {
+		if (tracePackets) {
+			tracer.packetEvent(TraceEvent.RECEIVED, clientAddress, datagram);
+		}
+
+		// only the loop adds connections, so what is found here holds until
+		// openConnection() (other threads just remove closed connections and
+		// take accepted ones)
+		TCPConnection connection;
+		boolean backlogFull;
+		lock.lock();
+		try {
+			connection = connections.get(clientAddress);
+			backlogFull = acceptQueue.size() >= backlog;
+		}
+		finally {
+			lock.unlock();
+		}
+		// a new client, or the same one connecting again
+		if (PacketManager.isSynPacket(datagram)
+				&& (connection == null || connection.getRemoteISN() != PacketManager.getSeq(datagram))) {
+			// accept() is behind: the client resends the SYN later
+			if (backlogFull) {
+				if (tracePackets) {
+					tracer.packetEvent(TraceEvent.DROPPED, clientAddress, datagram);
 				}
 			}
-			catch (Exception e) {
-				continue;
+			else {
+				openConnection(clientAddress, datagram, connection);
 			}
+			return datagram;
 		}
+
+		// packets of unknown clients are dropped
+		if (connection != null) {
+			return connection.handlePacket(datagram);
+		}
+		return datagram;
 	}
-	
-	private DatagramPacket shiftPackets() {
-		DatagramPacket toReturn = packets.remove(0);
-		packetsStatus.remove(0);
-		packets.add(null);
-		packetsStatus.add((byte)0);
-		recvBase++;
-		return toReturn;
+
+	/*
+	 * Opens the connection a SYN asks for, replacing previous (if not null)
+	 * of the same client. The lock is only held to take the connection in;
+	 * closing the previous one, registering the MBean and sending the
+	 * SYN-ACK go without it.
+	 */
+	private void openConnection(SocketAddress clientAddress, ByteBuffer datagram, TCPConnection previous) throws IOException {
+		// agree on the smaller of the two MSS
+		int segmentSize = maxSegmentSize;
+		if (PacketManager.getDataLength(datagram) >= 4) {
+			segmentSize = Math.min(segmentSize, PacketManager.getIntData(datagram, 0));
+		}
+		// parity groups only if both sides want them
+		int groupSize = 0;
+		if (PacketManager.getDataLength(datagram) >= 8) {
+			groupSize = Math.max(0, Math.min(fecGroupSize, PacketManager.getIntData(datagram, 4)));
+		}
+		// compression if both sides want it, with the same dictionary
+		boolean agreedCompression = compression
+				&& PacketManager.getDataLength(datagram) >= 16
+				&& PacketManager.getIntData(datagram, 8) == 1
+				&& PacketManager.getIntData(datagram, 12) == Compressor.dictionaryId(compressionDictionary);
+		// fast open: a token for every client that does it, the data
+		// of the SYN is taken if the token is valid
+		int dataLength = PacketManager.getDataLength(datagram);
+		int tokenLength = (dataLength >= PacketManager.SYN_OPTIONS_LENGTH) ? PacketManager.getIntData(datagram, 16) : -1;
+		boolean clientFastOpen = fastOpen
+				&& tokenLength >= 0
+				&& tokenLength <= PacketManager.MAX_TOKEN_LENGTH
+				&& PacketManager.SYN_OPTIONS_LENGTH + tokenLength <= dataLength;
+		InetAddress clientIp = ((InetSocketAddress)clientAddress).getAddress();
+		ByteBuffer synData = null;
+		if (clientFastOpen && tokenLength > 0) {
+			int tokenOffset = PacketManager.getDataOffset(datagram) + PacketManager.SYN_OPTIONS_LENGTH;
+			ByteBuffer token = datagram.duplicate();
+			token.limit(tokenOffset + tokenLength).position(tokenOffset);
+			ByteBuffer data = datagram.duplicate();
+			data.limit(PacketManager.getDataOffset(datagram) + dataLength).position(tokenOffset + tokenLength);
+			if (data.hasRemaining() && data.remaining() <= segmentSize && resumptionTokens.isValid(clientIp, token)) {
+				synData = data;
+			}
+		}
+		// now server knows that client will send packets with numbers
+		// starting from clientISN + 1, and its own ones start from isn + 1
+		TCPConnection connection = new TCPConnection(
+				loop,
+				clientAddress,
+				true,
+				TCPConnection.newInitialSequenceNumber(),
+				PacketManager.getSeq(datagram),
+				segmentSize,
+				groupSize,
+				agreedCompression,
+				compressionDictionary,
+				synData,
+				PacketManager.getWindow(datagram),
+				windowSize,
+				ackFrequency,
+				ackDelay,
+				idleTimeout,
+				new RttEstimator(),
+				new RenoCongestionControl()
+		);
+		connection.setMaxPacingRate(maxPacingRate);
+		connection.setNoDelay(noDelay);
+		if (clientFastOpen) {
+			connection.setResumptionToken(resumptionTokens.issue(clientIp));
+		}
+		lock.lock();
+		try {
+			connections.put(clientAddress, connection);
+			acceptQueue.add(connection);
+			connectionOpened.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (previous != null) {
+			previous.close();
+		}
+		if (jmxEnabled) {
+			connection.registerMBean(listeningPort);
+		}
+		connection.sendSynAck();
 	}
-	
-	private boolean losePacket() {
-		if (Math.random() < lossRate) {
-			return true;
+
+	private TCPConnection getConnection(SocketAddress clientAddress) {
+		lock.lock();
+		try {
+			return connections.get(clientAddress);
+		}
+		finally {
+			lock.unlock();
 		}
-		return false;
 	}
-	
-	public boolean isConnected() {
-		return connected;
+
+	private void removeConnection(TCPConnection connection) {
+		lock.lock();
+		try {
+			connections.remove(connection.getRemoteSocketAddress(), connection);
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 }
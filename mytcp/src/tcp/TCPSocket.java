@@ -1,297 +1,762 @@
 package tcp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
 
 import pktmngr.PacketManager;
+import tcp.congestion.CongestionControl;
+import tcp.congestion.RenoCongestionControl;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+import tcp.transport.DatagramTransport;
+import tcp.transport.UdpTransport;
 
+/*
+ * Client side of a connection. connect() opens a UDP socket of its own and
+ * exchanges SYN packets with the server, after that the socket runs an event
+ * loop like the server's one and both sides send and receive through a
+ * TCPConnection; the methods below are handed over to it.
+ */
 public class TCPSocket {
-	// SENDBASE IS A NUMBER OF PACKET CLIENT WANTS TO SEND
-
-	private DatagramSocket udpsocket;
-	private InetAddress serverAddr;
-	private int serverPort;
-	private int rtt;
+	private DatagramChannel channel;
+	private UnaryOperator<DatagramTransport> transportWrapper;
+	private DatagramTransport transport;
+	private SocketAddress serverAddress;
+	private EventLoop loop;
+	private TCPConnection connection;
+	private RttEstimator rttEstimator;
+	private CongestionControl congestionControl;
 	private boolean connected;
 
-	private int packetSize;
-	private DatagramPacket recvPacket;
-	
-	private int isn;
-	private int sendBase;
-	private int previouslySent;
+	// MSS this side is ready to use
+	private int maxSegmentSize;
+	// number of the server's packets this side can buffer
+	private int windowSize;
+	// packets per parity group this side proposes, 0 for none
+	private int fecGroupSize;
+	// whether this side proposes compression, and with which dictionary
+	private boolean compression;
+	private byte[] compressionDictionary;
+	private boolean fastOpen;
+	private int sendBufferSize;
+	// bytes per second, 0 for no limit
+	private long maxPacingRate;
+	private boolean noDelay;
 	private int triesPerPacket;
-	private boolean timerRunning;
-	private Timer timer;
+	private Tracer tracer;
+	private boolean tracePackets;
+	private boolean jmxEnabled;
+
+	// settings of the receiving half, the same as the server's defaults
+	private static final int ACK_FREQUENCY = 2;
+	private static final int ACK_DELAY = 5;
+	private static final int IDLE_TIMEOUT = 60000;
+	private static final int INITIAL_BUFFERS = 1024;
+
+	/*
+	 * Resumption token a server gave for fast open, and the MSS agreed on
+	 * with it then: the data of the next SYN is cut to fit into it.
+	 */
+	private static class FastOpenToken {
+		private final byte[] token;
+		private final int segmentSize;
+
+		private FastOpenToken(byte[] token, int segmentSize) {
+			this.token = token;
+			this.segmentSize = segmentSize;
+		}
+	}
+
+	// tokens by server address, shared by all sockets of the process
+	private static final ConcurrentHashMap<SocketAddress, FastOpenToken> fastOpenTokens = new ConcurrentHashMap<SocketAddress, FastOpenToken>();
 
 	public TCPSocket() throws SocketException {
 		connected = false;
-		previouslySent = 0;
+		congestionControl = new RenoCongestionControl();
+		rttEstimator = new RttEstimator();
 		triesPerPacket = 30;
-		
-		packetSize = 32;
-		recvPacket = new DatagramPacket(new byte[1024], 1024);
+		maxSegmentSize = PacketManager.DEFAULT_DATA_LENGTH;
+		windowSize = 100;
+		fecGroupSize = 0;
+		sendBufferSize = -1;
+		tracer = Tracer.NONE;
+	}
 
-		timerRunning = false;
-		timer = new Timer();	
+	/*
+	 * isn - number of the SYN packet
+	 *
+	 * Client sends a SYN with its ISN, proposed MSS, parity group size,
+	 * compression and fast open, the server answers with a SYN of its own:
+	 * server's ISN, ACK isn + 1, the agreed MSS, group size and compression
+	 * (and a fast open token).
+	 * The SYN is resent with the RTO backed off until the answer comes. Data
+	 * packets of both sides are numbered from their ISN + 1.
+	 */
+	public void connect(String strRemoteAddress, int remotePort) throws SocketException, UnknownHostException, TCPException{
+		connect(strRemoteAddress, remotePort, null);
 	}
-	
+
 	/*
-	 * sendBase - number of first non-acked packet
-	 * 
-	 * After a connect, private variable sendBase is set to ISN.
-	 * When N packets successfully sent, sendBase increases by N.
-	 * So, the next time the send function is called, 
-	 * sendBase+N will be used as the starting number
+	 * Connects and sends the remaining bytes of data, like connect() and
+	 * send() one after another. With fast open (see setFastOpen()) and a
+	 * token from the server, the first packet of data goes in the SYN: the
+	 * server can read it (and answer) before the handshake is over, and if
+	 * all of the data fits, the call returns as soon as the server's SYN
+	 * comes.
 	 */
-	
-	private void send0(DatagramPacket[] packets, int numberOfPackets) throws TCPException{
-		System.out.println("Sending packets from [" + Integer.toString(sendBase) + "] to (" + Integer.toString(sendBase + numberOfPackets) + ")");
-		
-		/* 
-		 * Packet status meanings:
-		 *		0 - not sent (therefore not acked)
-		 *		1 - sent, not acked
-		 *		2 - acked (server received the packet)
-		*/
-		byte[] packetStatus = new byte[numberOfPackets];
-		byte[] packetSendTry = new byte[numberOfPackets];
-		for (int i = 0; i < numberOfPackets; ++i){
-			packetStatus[i] = (byte)0;
-			packetSendTry[i] = (byte)0;
-		}
-		int sentPackets = 0;
-
-		while (true) {
-			if (triesPerPacket > 0) {
-				for (int i = 0; i < numberOfPackets; ++i) {
-					if (packetSendTry[i] == triesPerPacket) {
-						throw new TCPException("Server is not responding");
-					}
-				}
+	public void connect(String strRemoteAddress, int remotePort, ByteBuffer data) throws SocketException, UnknownHostException, TCPException{
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		serverAddress = new InetSocketAddress(InetAddress.getByName(strRemoteAddress), remotePort);
+		// generate new ISN
+		int isn = TCPConnection.newInitialSequenceNumber();
+		tracePackets = tracer.isEnabled(Tracer.Level.PACKETS);
+		// data that went with the SYN and was acked
+		ByteBuffer synData = null;
+		try {
+			// datagrams of other senders are not received at all
+			channel = DatagramChannel.open();
+			channel.connect(serverAddress);
+			transport = new UdpTransport(channel);
+			if (transportWrapper != null) {
+				transport = transportWrapper.apply(transport);
 			}
-			// Event: data received from application above
-			if (sentPackets < numberOfPackets) {
-				try {
-					// send a packet via unreliable channel
-					udpsocket.send(packets[sentPackets]);
-					if (triesPerPacket > 0) {
-						packetSendTry[sentPackets]++;
-					}
-					
-					System.out.println("SENDBASE");
-					System.out.println(sendBase);
-					PacketManager.printData(packets[sentPackets], "(Not sent) To server");
-					System.out.println();
-					
-					// mark the packet as "sent, not acked"
-					packetStatus[sentPackets] = (byte)1;
-					// have sent one more packet
-					sentPackets += 1;
-
-					
-					if (timerRunning == false) {
-						startTimer();
-					}
-				}
-				catch (IOException e) {
-					// something went terribly wrong
-					e.printStackTrace();
-					System.exit(1);
+			transport.setTracer(tracer);
+
+			// the first packet of data rides with the SYN if the server gave a
+			// token last time
+			FastOpenToken token = fastOpen ? fastOpenTokens.get(serverAddress) : null;
+			if (token != null && data != null && data.hasRemaining()) {
+				int room = Math.min(token.segmentSize, maxSegmentSize) - PacketManager.SYN_OPTIONS_LENGTH - token.token.length;
+				if (room > 0) {
+					synData = data.duplicate();
+					synData.limit(synData.position() + Math.min(room, synData.remaining()));
 				}
 			}
-			
-			// Event: timer timeout (timerRunning == false)
-			if (timerRunning == false) {
-				// retransmit first not yet acked packet
-				try {
-					udpsocket.send(packets[sendBase - isn - previouslySent]);
-					if (triesPerPacket > 0) {
-						packetSendTry[sendBase - isn - previouslySent]++;
-					}
-					
-					System.out.println("SENDBASE");
-					System.out.println(sendBase);
-					PacketManager.printData(packets[sendBase - isn - previouslySent], "(Timeout) To server");
-					System.out.println();
-					
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.exit(1);
-				}
-				startTimer();
+
+			ByteBuffer synAck = exchangeSyn(isn, (synData != null) ? token.token : null, synData);
+			// the server acks the data of the SYN if it has taken it
+			if (synData != null && PacketManager.getACK(synAck) != isn + 2) {
+				synData = null;
+			}
+			int segmentSize = Math.min(maxSegmentSize, PacketManager.DEFAULT_DATA_LENGTH);
+			if (PacketManager.getDataLength(synAck) >= 4) {
+				segmentSize = Math.min(maxSegmentSize, PacketManager.getIntData(synAck, 0));
 			}
-			
-			
-			// event: ACK received, with ACK field of serverACK
-			try {
-				udpsocket.receive(recvPacket);
-				int serverACK = PacketManager.getACK(recvPacket);
-				
-				System.out.println("SENDBASE");
-				System.out.println(sendBase);
-				PacketManager.printData(recvPacket, "From server");
-				System.out.println();
-				
-				// if server received packet with number > sendBase
-				if (serverACK > sendBase) {
-					// All packet numbers start from isn: isn, isn+1, isn+2, ...
-					// Therefore if server received packet with number > sendBase, client must
-					// 	ack packets with numbers [sendBase, serverACK - 1].
-					// Packet with number "serverACK" excluded because it is a packet
-					// 	that server want to receive
-					int rightEdge = ((serverACK - isn - previouslySent > numberOfPackets) ? numberOfPackets : serverACK - isn - previouslySent);
-					System.out.println("ACKING from " + Integer.toString(0) + " to " + Integer.toString(rightEdge));
-					for (int i = 0; i < rightEdge; ++i) {
-						packetStatus[i] = (byte)2;
-						System.out.println("    " + Integer.toString(i + sendBase) + " ");
+			// no parity unless the server agrees (older ones do not answer at all)
+			int agreedGroupSize = 0;
+			if (PacketManager.getDataLength(synAck) >= 8) {
+				agreedGroupSize = Math.max(0, Math.min(fecGroupSize, PacketManager.getIntData(synAck, 4)));
+			}
+			// the server answers 1 only if it has the same dictionary
+			boolean agreedCompression = compression
+					&& PacketManager.getDataLength(synAck) >= 16
+					&& PacketManager.getIntData(synAck, 8) == 1
+					&& PacketManager.getIntData(synAck, 12) == Compressor.dictionaryId(compressionDictionary);
+			if (fastOpen) {
+				updateFastOpenToken(synAck, segmentSize);
+			}
+
+			// the server never sends more than the agreed MSS
+			BufferPool bufferPool = new BufferPool(
+					PacketManager.maxPacketLength(segmentSize),
+					Math.min(windowSize, INITIAL_BUFFERS)
+			);
+			loop = new EventLoop(
+					"TCPSocket-" + channel.socket().getLocalPort(),
+					transport,
+					bufferPool,
+					PacketManager.maxPacketLength(segmentSize),
+					tracer,
+					new EventLoop.Handler() {
+						@Override
+						public ByteBuffer handleDatagram(SocketAddress sender, ByteBuffer datagram) throws IOException {
+							// the channel is connected, everything comes from the server
+							if (tracePackets) {
+								tracer.packetEvent(TraceEvent.RECEIVED, serverAddress, datagram);
+							}
+							return connection.handlePacket(datagram);
+						}
+
+						@Override
+						public void connectionClosed(TCPConnection connection) {
+							// nothing to forget, the socket has the only connection
+						}
+
+						@Override
+						public TCPConnection findConnection(SocketAddress sender) {
+							return connection;
+						}
 					}
-					// now client want to send packet with number "serverACK"
-					sendBase = serverACK;
-
-					boolean somePacketsAreNotAcked = false;
-					for (int i = 0; i < numberOfPackets; ++i) {
-						if (packetStatus[i] != (byte)2) {
-							somePacketsAreNotAcked = true;
-							startTimer();
-							break;
+			);
+			connection = new TCPConnection(
+					loop,
+					serverAddress,
+					false,
+					isn,
+					PacketManager.getSeq(synAck),
+					segmentSize,
+					agreedGroupSize,
+					agreedCompression,
+					compressionDictionary,
+					synData,
+					PacketManager.getWindow(synAck),
+					windowSize,
+					ACK_FREQUENCY,
+					ACK_DELAY,
+					IDLE_TIMEOUT,
+					rttEstimator,
+					congestionControl
+			);
+			if (sendBufferSize > 0) {
+				connection.setSendBufferSize(sendBufferSize);
+			}
+			connection.setMaxPacingRate(maxPacingRate);
+			connection.setNoDelay(noDelay);
+			if (jmxEnabled) {
+				connection.registerMBean(channel.socket().getLocalPort());
+			}
+			loop.start();
+		}
+		catch (TCPException e) {
+			closeChannel();
+			throw e;
+		}
+		catch (IOException e) {
+			closeChannel();
+			throw new SocketException(e.getMessage());
+		}
+		// set connected flag as true
+		connected = true;
+
+		// what did not go with the SYN
+		if (data != null) {
+			ByteBuffer rest = data.duplicate();
+			if (synData != null) {
+				rest.position(synData.limit());
+			}
+			if (rest.hasRemaining()) {
+				send(rest);
+			}
+		}
+	}
+
+	/*
+	 * Keeps the token the server's SYN carries for the next connections to
+	 * it, or forgets the old one if there is none (the server does no fast
+	 * open, at least not any more).
+	 */
+	private void updateFastOpenToken(ByteBuffer synAck, int segmentSize) {
+		int dataLength = PacketManager.getDataLength(synAck);
+		int tokenLength = (dataLength >= PacketManager.SYN_OPTIONS_LENGTH) ? PacketManager.getIntData(synAck, 16) : 0;
+		if (tokenLength < 1 || tokenLength > PacketManager.MAX_TOKEN_LENGTH
+				|| PacketManager.SYN_OPTIONS_LENGTH + tokenLength > dataLength) {
+			fastOpenTokens.remove(serverAddress);
+			return;
+		}
+		byte[] token = new byte[tokenLength];
+		ByteBuffer tokenData = synAck.duplicate();
+		tokenData.position(PacketManager.getDataOffset(synAck) + PacketManager.SYN_OPTIONS_LENGTH);
+		tokenData.get(token);
+		fastOpenTokens.put(serverAddress, new FastOpenToken(token, segmentSize));
+	}
+
+	/*
+	 * Sends the SYN until the server's SYN comes and returns the server's
+	 * SYN. The event loop is not running yet, the exchange waits on a
+	 * selector of its own (and for the datagrams the transport holds back).
+	 * With a fast open token, the remaining bytes of data go in the SYN too.
+	 */
+	private ByteBuffer exchangeSyn(int isn, byte[] token, ByteBuffer data) throws IOException, TCPException {
+		int tokenLength = (token != null) ? token.length : 0;
+		int dataLength = (data != null) ? data.remaining() : 0;
+		ByteBuffer synData = ByteBuffer.allocate(PacketManager.SYN_OPTIONS_LENGTH + tokenLength + dataLength)
+				.putInt(maxSegmentSize)
+				.putInt(fecGroupSize)
+				.putInt(compression ? 1 : 0)
+				.putInt(Compressor.dictionaryId(compressionDictionary))
+				.putInt(fastOpen ? tokenLength : -1);
+		if (token != null) {
+			synData.put(token);
+		}
+		if (data != null) {
+			synData.put(data.duplicate());
+		}
+		synData.flip();
+		ByteBuffer syn = ByteBuffer.allocate(PacketManager.HEADER_LENGTH + synData.remaining());
+		PacketManager.encode(syn, (byte)1, isn, 0, windowSize, synData);
+		syn.flip();
+		// room for any packet of the server: with fast open its answer to
+		// the data may come right after its SYN, it must not be cut short
+		ByteBuffer reply = ByteBuffer.allocate(
+				PacketManager.maxPacketLength(maxSegmentSize)
+		);
+
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			for (int tries = 0; tries < triesPerPacket; ++tries) {
+				// need to send one synchronization packet, it proposes our MSS,
+				// parity group size, compression and fast open
+				transport.send(syn.rewind(), serverAddress);
+				long sentAt = System.nanoTime();
+				if (tracePackets) {
+					tracer.packetEvent((tries == 0) ? TraceEvent.SYN : TraceEvent.TIMEOUT_RETRANSMIT, serverAddress, syn.rewind());
+				}
+
+				long deadline = sentAt + rttEstimator.getRto();
+				long now = sentAt;
+				while (now < deadline) {
+					try {
+						long wakeup = Math.min(deadline, transport.process(now));
+						// round up, zero would mean "no timeout" for the selector
+						long millis = TimeUnit.NANOSECONDS.toMillis(wakeup - now + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+						selector.select(Math.max(1, millis));
+						selector.selectedKeys().clear();
+
+						reply.clear();
+						while (transport.receive(reply) != null) {
+							reply.flip();
+							if (tracePackets) {
+								tracer.packetEvent(TraceEvent.RECEIVED, serverAddress, reply);
+							}
+							// packets of the server other than its SYN (the ones it
+							// sent after a SYN that got lost) are not accepted yet
+							// (ISN + 2 if it has taken the data of the SYN)
+							int ack = PacketManager.getACK(reply);
+							if (PacketManager.isSynPacket(reply) && (ack == isn + 1 || (dataLength > 0 && ack == isn + 2))) {
+								// the RTT of a SYN sent once is the first sample
+								if (tries == 0) {
+									rttEstimator.addSample(System.nanoTime() - sentAt);
+								}
+								else {
+									rttEstimator.resetBackoff();
+								}
+								return reply;
+							}
+							reply.clear();
 						}
 					}
-					// if all packets are acked, stop timer and step out of loop
-					if (somePacketsAreNotAcked == false) {
-						timerRunning = false;
-						previouslySent += numberOfPackets;
-						return;
+					catch (IOException e) {
+						// e.g. the server port is not open (yet), wait for the timer
+						LockSupport.parkNanos(deadline - System.nanoTime());
 					}
+					now = System.nanoTime();
 				}
+				rttEstimator.backoff();
 			}
-			catch (Exception e) {/*Do nothing*/}
 		}
+		throw new TCPException("Server is not responding");
 	}
 
-	public void connect(String strRemoteAddress, int remotePort) throws SocketException, UnknownHostException, TCPException{
-		// open socket
-		udpsocket = new DatagramSocket();
-		rtt = 500; // ms
-		udpsocket.setSoTimeout(rtt);
+	/*
+	 * Sets the largest amount of data (in bytes) to be sent in one packet.
+	 * The actual MSS is agreed on with the server during connect(), it
+	 * never exceeds the value set here.
+	 */
+	public void setMaxSegmentSize(int mss) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		if (mss < 1 || mss > PacketManager.MAX_DATA_LENGTH) {
+			throw new TCPException("MSS must be from 1 to " + PacketManager.MAX_DATA_LENGTH + " bytes.");
+		}
+		maxSegmentSize = mss;
+	}
 
-		// generate new ISN
-		isn = getNewInitialSequenceNumber(0, 1000);
-		// now client will transmit packets from packet with number = isn
-		sendBase = isn;
+	public int getMaxSegmentSize() {
+		return connected ? connection.getMaxSegmentSize() : maxSegmentSize;
+	}
 
-		// initialize server address and server port
-		serverAddr = InetAddress.getByName(strRemoteAddress);
-		serverPort = remotePort;
+	/*
+	 * Sets how many packets of the server this side can buffer (100 by
+	 * default). Must be called before connect().
+	 */
+	public void setWindowSize(int packets) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		if (packets < 1) {
+			throw new TCPException("Window size must be at least 1 packet.");
+		}
+		windowSize = packets;
+	}
 
-		// need to send one synchronization packet
-		DatagramPacket[] packetsToSend = new DatagramPacket[1];
+	/*
+	 * Forward error correction: after every packets packets this side sends
+	 * a parity packet, from which the server rebuilds any one lost packet of
+	 * the group without a retransmission; the server does the same for its
+	 * packets. It costs 1 / packets more bandwidth. Used only if the server
+	 * enables it too, with the smaller group size; 0 (the default) turns it
+	 * off. Must be called before connect().
+	 */
+	public void setFecGroupSize(int packets) throws TCPException{
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		if (packets < 0 || packets > ParityEncoder.MAX_GROUP_SIZE) {
+			throw new TCPException("Parity group size must be from 0 to " + ParityEncoder.MAX_GROUP_SIZE + " packets.");
+		}
+		fecGroupSize = packets;
+	}
 
-		// make SYN packet
-		packetsToSend[0] = makeSynPacket();
+	public int getFecGroupSize() {
+		return connected ? connection.getFecGroupSize() : fecGroupSize;
+	}
 
-		send0(packetsToSend, 1);
-		// set connected flag as true
-		connected = true;
+	/*
+	 * Compresses the data sent by both sides (deflate, one stream for the
+	 * whole connection). Pays off for text and the like, data that does not
+	 * compress is sent as it is after a try. Used only if the server enables
+	 * it too. Data of a compressed connection must be read with
+	 * receive(ByteBuffer) or receiveFile(). Must be called before connect().
+	 */
+	public void setCompression(boolean on) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		compression = on;
 	}
-	
-	public void send(String strData) throws TCPException{
-		if (!connected) {
-			throw new TCPException("Not connected.");
+
+	/*
+	 * Preset dictionary for compression: bytes that the data is likely to
+	 * repeat, such as the common parts of the messages, so that even the
+	 * first short messages compress. The server must have the same one,
+	 * otherwise nothing is compressed. null (the default) for none. Must be
+	 * called before connect().
+	 */
+	public void setCompressionDictionary(byte[] dictionary) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		compressionDictionary = (dictionary != null) ? dictionary.clone() : null;
+	}
+
+	public boolean isCompressionEnabled() {
+		return connected ? connection.isCompressionEnabled() : compression;
+	}
+
+	/*
+	 * Fast open (off by default): the socket keeps the resumption token
+	 * the server gives it, and the next connect(address, port, data) to the
+	 * same server (by any socket of the process) sends the first packet of
+	 * data in the SYN. That saves a round trip for short requests. Used only
+	 * if the server enables it too; the server may get the data of a SYN
+	 * twice, so it should be a request that can be repeated. Must be
+	 * called before connect().
+	 */
+	public void setFastOpen(boolean on) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
 		}
+		fastOpen = on;
+	}
+
+	/*
+	 * RTT estimator state, in milliseconds. Smoothed RTT and its variance
+	 * are 0 until the first ACK for a packet that was sent only once.
+	 */
+	public double getSmoothedRtt() {
+		return connected ? connection.getSmoothedRtt() : rttEstimator.getSmoothedRtt() / 1e6;
+	}
+
+	public double getRttVariance() {
+		return connected ? connection.getRttVariance() : rttEstimator.getRttVariance() / 1e6;
+	}
 
-		// determine how much packets are needed to send data
-		int dataLength = strData.length();
-		int numberOfPackets = dataLength / packetSize;
-		if (dataLength % packetSize != 0) {
-			numberOfPackets++;
+	public double getRetransmissionTimeout() {
+		return connected ? connection.getRetransmissionTimeout() : rttEstimator.getRto() / 1e6;
+	}
+
+	/*
+	 * Bounds for the retransmission timeout, in milliseconds.
+	 */
+	public void setMinRetransmissionTimeout(int millis) throws TCPException {
+		if (millis < 1 || TimeUnit.MILLISECONDS.toNanos(millis) > rttEstimator.getMaxRto()) {
+			throw new TCPException("Minimal RTO must be from 1 ms to maximal RTO.");
+		}
+		if (connected) {
+			connection.setMinRto(TimeUnit.MILLISECONDS.toNanos(millis));
 		}
-		
-		DatagramPacket[] packets = new DatagramPacket[numberOfPackets]; 
-		
-		// split input into packets
-		for (int i = 0; i < numberOfPackets; ++i) {
-			packets[i] = makeRegularPacket(strData, i);
+		else {
+			rttEstimator.setMinRto(TimeUnit.MILLISECONDS.toNanos(millis));
 		}
-		
-		send0(packets, numberOfPackets);
 	}
 
-	public void disconnect() throws TCPException{
-		if (!connected) {
-			throw new TCPException("Not connected.");
+	public void setMaxRetransmissionTimeout(int millis) throws TCPException {
+		if (TimeUnit.MILLISECONDS.toNanos(millis) < rttEstimator.getMinRto()) {
+			throw new TCPException("Maximal RTO must not be less than minimal RTO.");
+		}
+		if (connected) {
+			connection.setMaxRto(TimeUnit.MILLISECONDS.toNanos(millis));
 		}
-		// need to send one synchronization packet
-		DatagramPacket[] packetsToSend = new DatagramPacket[1];
+		else {
+			rttEstimator.setMaxRto(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+	}
 
-		// make FIN packet
-		packetsToSend[0] = makeFinPacket();
-		
-		send0(packetsToSend, 1);
-		// set connected flag as false
-		connected = false;
-		// close socket
-		udpsocket.close();
-	}
-	
-	private void startTimer(){
-		timerRunning = true;
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				timerRunning = false;
-			}
-		}, rtt);
+	/*
+	 * Sets where the events of the connection go (nowhere by default), e.g.
+	 * a ConsoleTracer or a RingBufferTracer. Must be called before connect().
+	 */
+	public void setTracer(Tracer tracer) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		if (tracer == null) {
+			throw new TCPException("Tracer must not be null.");
+		}
+		this.tracer = tracer;
 	}
 
-	private DatagramPacket makeRegularPacket(String strData, int pktIdx) {
-		String msg;
-		int begin = pktIdx * packetSize;
-		int end = (pktIdx + 1) * packetSize;
+	/*
+	 * Puts a layer between the socket and its UDP socket: wrapper gets the
+	 * socket's UdpTransport and returns the transport to use (e.g. a
+	 * NetworkEmulator around it). Must be called before connect().
+	 */
+	public void setTransport(UnaryOperator<DatagramTransport> wrapper) throws TCPException{
+		if (connected) {
+			throw new TCPException("Already connected.");
+		}
+		transportWrapper = wrapper;
+	}
 
-		if (end > strData.length()) {
-			msg = strData.substring(begin);
+	/*
+	 * Registers the connection over JMX while it is open (off by default),
+	 * see TCPConnection.registerMBean(). Must be called before connect().
+	 */
+	public void setJmxEnabled(boolean enabled) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
 		}
-		else {
-			msg = strData.substring(begin, end);
+		jmxEnabled = enabled;
+	}
+
+	/*
+	 * Counters and histograms of the connection, see TCPConnection.getStats().
+	 */
+	public ConnectionStats getStats() throws TCPException {
+		return getConnection().getStats();
+	}
+
+	/*
+	 * Sets the congestion control algorithm (RenoCongestionControl by
+	 * default). Must be called before connect().
+	 */
+	public void setCongestionControl(CongestionControl congestionControl) throws TCPException {
+		if (connected) {
+			throw new TCPException("Already connected.");
 		}
+		this.congestionControl = congestionControl;
+	}
 
-		return PacketManager.create(
-				(byte)0,
-				pktIdx + sendBase,
-				msg,
-				serverAddr,
-				serverPort
-		);
+	/*
+	 * Packets are paced at about the congestion window per RTT; this limits
+	 * the rate to bytes bytes per second (headers included), e.g. to the
+	 * bandwidth of a slow link. 0 (the default) for no limit.
+	 */
+	public void setMaxPacingRate(long bytes) throws TCPException{
+		if (bytes < 0) {
+			throw new TCPException("Pacing rate must not be negative.");
+		}
+		if (connected) {
+			connection.setMaxPacingRate(bytes);
+		}
+		maxPacingRate = bytes;
 	}
 
-	private DatagramPacket makeSynPacket() {
-		return PacketManager.create(
-				(byte)1,
-				isn,
-				"",
-				serverAddr,
-				serverPort
-		);
+	// bytes per second the packets are paced at now, 0 if not paced
+	public long getPacingRate() {
+		return connected ? connection.getPacingRate() : maxPacingRate;
 	}
 
-	private DatagramPacket makeFinPacket() {
-		return PacketManager.create(
-				(byte)2,
-				sendBase,
-				"",
-				serverAddr,
-				serverPort
-		);
+	public int getCongestionWindow() {
+		return connected ? connection.getCongestionWindow() : congestionControl.getCongestionWindow();
+	}
+
+	public int getSlowStartThreshold() {
+		return connected ? connection.getSlowStartThreshold() : congestionControl.getSlowStartThreshold();
+	}
+
+	/*
+	 * Size of each of the two buffers of the output stream, in bytes. Must be
+	 * called before getOutputStream().
+	 */
+	public void setSendBufferSize(int bytes) throws TCPException {
+		if (connected) {
+			connection.setSendBufferSize(bytes);
+			return;
+		}
+		if (bytes < 1) {
+			throw new TCPException("Send buffer size must be at least 1 byte.");
+		}
+		sendBufferSize = bytes;
+	}
+
+	/*
+	 * Small writes are coalesced into full packets, a short one waits until
+	 * the short packet before it is acked; noDelay sends every write at
+	 * once (see TCPConnection.setNoDelay()).
+	 */
+	public void setNoDelay(boolean on) {
+		if (connected) {
+			connection.setNoDelay(on);
+		}
+		noDelay = on;
+	}
+
+	public boolean getNoDelay() {
+		return noDelay;
+	}
+
+	/*
+	 * Holds short packets back until uncork() or flush(), see
+	 * TCPConnection.cork().
+	 */
+	public void cork() throws TCPException{
+		getConnection().cork();
+	}
+
+	public void uncork() throws TCPException{
+		getConnection().uncork();
 	}
-	
-	private int getNewInitialSequenceNumber(int min, int max) {
-		return (int)(Math.random() * (max - min)) + min;
+
+	// sends the bytes held back for coalescing now
+	public void flush() throws TCPException{
+		getConnection().flush();
+	}
+
+	/*
+	 * Data written to the stream is sent in the background, in pieces of
+	 * the send buffer size (see TCPOutputStream). Closing the stream shuts
+	 * the output down, the socket still has to be disconnected.
+	 */
+	public OutputStream getOutputStream() throws TCPException {
+		return getConnection().getOutputStream();
+	}
+
+	/*
+	 * Reads what the server sends, the same way as TCPConnection does.
+	 */
+	public InputStream getInputStream() throws TCPException {
+		return getConnection().getInputStream();
+	}
+
+	public void send(String strData) throws TCPException {
+		send(strData.getBytes());
+	}
+
+	public void send(byte[] data) throws TCPException {
+		send(data, 0, data.length);
+	}
+
+	public void send(byte[] data, int off, int len) throws TCPException {
+		send(ByteBuffer.wrap(data, off, len));
+	}
+
+	/*
+	 * Sends the remaining bytes of data. The buffer is only read (its position
+	 * is not changed) and must not be modified until the call returns.
+	 */
+	public void send(ByteBuffer data) throws TCPException {
+		getConnection().send(data);
+	}
+
+	/*
+	 * Queues the remaining bytes of data and returns at once, the future
+	 * completes when the server has got them (see TCPConnection.sendAsync()).
+	 */
+	public CompletableFuture<Void> sendAsync(ByteBuffer data) {
+		if (!connected) {
+			return CompletableFuture.failedFuture(new TCPException("Not connected."));
+		}
+		return connection.sendAsync(data);
+	}
+
+	/*
+	 * Sends the contents of a file as is, see TCPConnection.sendFile().
+	 */
+	public void sendFile(Path path) throws TCPException, IOException{
+		getConnection().sendFile(path);
+	}
+
+	public int receive(byte[] buf, int off, int len) throws SocketException, TCPException{
+		return getConnection().receive(buf, off, len);
+	}
+
+	/*
+	 * Copies data the server sends into dst, see TCPConnection.receive().
+	 * Returns -1 when the server has shut its output down.
+	 */
+	public int receive(ByteBuffer dst) throws SocketException, TCPException{
+		return getConnection().receive(dst);
+	}
+
+	public long receiveFile(Path path) throws TCPException, IOException{
+		return getConnection().receiveFile(path);
+	}
+
+	/*
+	 * Sends a FIN and waits until it is acked. The server reads the end of
+	 * the stream, this side can still receive what the server sends.
+	 */
+	public void shutdownOutput() throws TCPException {
+		getConnection().shutdownOutput();
+	}
+
+	/*
+	 * Shuts the output down (unless it is already) and closes the socket.
+	 */
+	public void disconnect() throws TCPException {
+		TCPConnection connection = getConnection();
+		// set connected flag as false
+		connected = false;
+		try {
+			connection.shutdownOutput();
+		}
+		finally {
+			connection.close();
+			loop.close();
+			// close socket
+			closeChannel();
+		}
+	}
+
+	private TCPConnection getConnection() throws TCPException {
+		if (!connected) {
+			throw new TCPException("Not connected.");
+		}
+		return connection;
+	}
+
+	private void closeChannel() {
+		try {
+			// the transport closes the channel
+			if (transport != null) {
+				transport.close();
+			}
+			else if (channel != null) {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			// nothing to do, the socket is gone anyway
+		}
 	}
 }
@@ -0,0 +1,301 @@
+package tcp;
+
+/*
+ * Hierarchical timing wheel: levels of wheelSize slots, each slot is a list
+ * of timeouts. A slot of level 0 spans one tick, a slot of level L spans
+ * wheelSize^L ticks. A timeout goes to the lowest level whose current
+ * revolution holds its tick, so scheduling and cancelling are O(1) and the
+ * near timers (retransmissions, pacing) stay apart from the far ones
+ * (idle and linger timers) in the upper levels. When the wheel gets to a
+ * slot of an upper level, the timeouts in it move down (cascade).
+ *
+ * Every level keeps a bitmap of the slots in use: the nearest deadline and
+ * the next slot to visit are found from the cursor without walking the
+ * empty slots.
+ *
+ * The wheel has no thread of its own: the loop that owns it polls expired
+ * timeouts and asks for the nearest deadline to know how long it may
+ * block. It is not thread-safe and must only be used by that loop.
+ *
+ * Timeout objects belong to the caller and can be rescheduled any number
+ * of times, so timers cost no allocation.
+ *
+ * All times are in nanoseconds (System.nanoTime()).
+ */
+class TimingWheel {
+
+	static class Timeout {
+		private final int id;
+		private final Object attachment;
+		private long deadline;
+		private int level;
+		private int slot;
+		private Timeout prev;
+		private Timeout next;
+		private boolean scheduled;
+
+		Timeout(int id) {
+			this(id, null);
+		}
+
+		// the attachment tells the owner what expired, like a SelectionKey's one
+		Timeout(int id, Object attachment) {
+			this.id = id;
+			this.attachment = attachment;
+			scheduled = false;
+		}
+
+		int getId() {
+			return id;
+		}
+
+		Object getAttachment() {
+			return attachment;
+		}
+
+		long getDeadline() {
+			return deadline;
+		}
+
+		boolean isScheduled() {
+			return scheduled;
+		}
+	}
+
+	private final long tick;
+	private final int bits;
+	private final int mask;
+	// slots[level], allocated when the first timeout goes there
+	private final Timeout[][] slots;
+	// occupied[level]: a bit per slot in use
+	private final long[][] occupied;
+	// timeouts per level
+	private final int[] counts;
+	/*
+	 * Level 0 holds the ticks from currentTick to the end of its revolution,
+	 * level L the slots after the one of currentTick in its revolution: all
+	 * timeouts before currentTick are expired and polled.
+	 */
+	private long currentTick;
+	private int size;
+
+	TimingWheel(long tick, int wheelSize) {
+		if (wheelSize < 2 || Integer.bitCount(wheelSize) != 1) {
+			throw new IllegalArgumentException("Wheel size must be a power of two, at least 2");
+		}
+		this.tick = tick;
+		bits = Integer.numberOfTrailingZeros(wheelSize);
+		mask = wheelSize - 1;
+		// enough levels for any tick
+		int levels = (Long.SIZE + bits - 1) / bits;
+		slots = new Timeout[levels][];
+		occupied = new long[levels][];
+		counts = new int[levels];
+		currentTick = System.nanoTime() / tick;
+		size = 0;
+	}
+
+	/*
+	 * (Re)schedules the timeout to expire at deadline.
+	 */
+	void schedule(Timeout timeout, long deadline) {
+		if (timeout.scheduled) {
+			cancel(timeout);
+		}
+		timeout.deadline = deadline;
+		place(timeout);
+		timeout.scheduled = true;
+		size++;
+	}
+
+	void cancel(Timeout timeout) {
+		if (!timeout.scheduled) {
+			return;
+		}
+		unlink(timeout);
+		timeout.scheduled = false;
+		size--;
+	}
+
+	/*
+	 * Removes and returns one timeout with deadline <= now, or returns null
+	 * if there is none.
+	 */
+	Timeout poll(long now) {
+		long nowTick = now / tick;
+		while (size > 0) {
+			long next = nextTick();
+			if (next > nowTick) {
+				break;
+			}
+			if (next > currentTick) {
+				currentTick = next;
+				cascade();
+			}
+			Timeout[] wheel = slots[0];
+			if (wheel == null || wheel[(int)(currentTick & mask)] == null) {
+				// the cascade left nothing for this tick
+				continue;
+			}
+			for (Timeout t = wheel[(int)(currentTick & mask)]; t != null; t = t.next) {
+				if (t.deadline <= now) {
+					cancel(t);
+					return t;
+				}
+			}
+			// what is left in the slot of now expires later in the tick
+			return null;
+		}
+		// nothing to do before nowTick: nothing is skipped
+		currentTick = Math.max(currentTick, nowTick);
+		return null;
+	}
+
+	/*
+	 * Returns the nearest deadline, or Long.MAX_VALUE if nothing is scheduled.
+	 */
+	long nextDeadline() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		// the first slot in use of the lowest level in use has the nearest one
+		for (int level = 0; level < counts.length; ++level) {
+			if (counts[level] == 0) {
+				continue;
+			}
+			int slot = firstOccupied(level);
+			if (slot < 0) {
+				continue;
+			}
+			long nearest = Long.MAX_VALUE;
+			for (Timeout timeout = slots[level][slot]; timeout != null; timeout = timeout.next) {
+				nearest = Math.min(nearest, timeout.deadline);
+			}
+			return nearest;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	// puts the timeout into the lowest level whose revolution holds its tick
+	private void place(Timeout timeout) {
+		// an already expired timeout goes to the current slot
+		long t = Math.max(timeout.deadline / tick, currentTick);
+		int level = 0;
+		while (level < counts.length - 1 && !sameRevolution(t, currentTick, level)) {
+			level++;
+		}
+		int slot = (int)((t >> (bits * level)) & mask);
+		if (slots[level] == null) {
+			slots[level] = new Timeout[mask + 1];
+			occupied[level] = new long[(mask + Long.SIZE) / Long.SIZE];
+		}
+		Timeout[] wheel = slots[level];
+		timeout.level = level;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = wheel[slot];
+		if (wheel[slot] != null) {
+			wheel[slot].prev = timeout;
+		}
+		else {
+			occupied[level][slot >> 6] |= 1L << slot;
+		}
+		wheel[slot] = timeout;
+		counts[level]++;
+	}
+
+	private void unlink(Timeout timeout) {
+		Timeout[] wheel = slots[timeout.level];
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		}
+		else {
+			wheel[timeout.slot] = timeout.next;
+			if (timeout.next == null) {
+				occupied[timeout.level][timeout.slot >> 6] &= ~(1L << timeout.slot);
+			}
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		counts[timeout.level]--;
+	}
+
+	// a and b are in the same revolution of level
+	private boolean sameRevolution(long a, long b, int level) {
+		int shift = bits * (level + 1);
+		return shift >= Long.SIZE || (a >> shift) == (b >> shift);
+	}
+
+	/*
+	 * The tick of the next slot to visit: the first slot in use of level 0,
+	 * or the start of the first slot in use of the lowest level in use.
+	 */
+	private long nextTick() {
+		for (int level = 0; level < counts.length; ++level) {
+			if (counts[level] == 0) {
+				continue;
+			}
+			int slot = firstOccupied(level);
+			if (slot < 0) {
+				continue;
+			}
+			int shift = bits * level;
+			long start = shift + bits >= Long.SIZE ? 0 : (currentTick >> (shift + bits)) << (shift + bits);
+			return start | ((long)slot << shift);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/*
+	 * The first slot in use from the cursor to the end of the revolution of
+	 * level, -1 if there is none. The slot of currentTick counts on level 0
+	 * only: on upper levels it has cascaded already.
+	 */
+	private int firstOccupied(int level) {
+		long[] bitmap = occupied[level];
+		int from = (int)((currentTick >> (bits * level)) & mask) + (level == 0 ? 0 : 1);
+		if (from > mask) {
+			return -1;
+		}
+		int word = from >> 6;
+		long used = bitmap[word] & (-1L << from);
+		while (used == 0) {
+			if (++word == bitmap.length) {
+				return -1;
+			}
+			used = bitmap[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(used);
+	}
+
+	/*
+	 * currentTick has just got to a new slot: the slots of the upper levels
+	 * that start here move down.
+	 */
+	private void cascade() {
+		for (int level = 1; level < counts.length; ++level) {
+			int shift = bits * level;
+			if (shift >= Long.SIZE || (currentTick & ((1L << shift) - 1)) != 0) {
+				return;
+			}
+			if (counts[level] == 0) {
+				continue;
+			}
+			int slot = (int)((currentTick >> shift) & mask);
+			Timeout t = slots[level][slot];
+			while (t != null) {
+				Timeout next = t.next;
+				unlink(t);
+				place(t);
+				t = next;
+			}
+		}
+	}
+}
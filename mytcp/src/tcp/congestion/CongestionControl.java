@@ -0,0 +1,38 @@
+package tcp.congestion;
+
+/*
+ * Congestion control algorithm of a sender. It is told about every ACK
+ * for new data, every duplicate ACK and every retransmission timeout, and
+ * in return limits how many packets may be in flight (the congestion
+ * window). The sender never has more packets in flight than the smaller of
+ * the congestion window and the window advertised by the receiver.
+ *
+ * Windows are measured in packets, as are sequence numbers.
+ */
+public interface CongestionControl {
+
+	/*
+	 * ackedPackets new packets are acked, packetsInFlight were in flight
+	 * before the ACK, smoothedRtt (nanoseconds) is the current RTT estimate
+	 * (0 if there is none yet).
+	 */
+	void onAck(int ackedPackets, int packetsInFlight, long smoothedRtt);
+
+	/*
+	 * An ACK repeated the last acknowledged number for the duplicateAcks-th
+	 * time in a row while packets were in flight, i.e. some packet after the
+	 * acknowledged one reached the receiver while the acknowledged one did not.
+	 */
+	void onDuplicateAck(int duplicateAcks, int packetsInFlight);
+
+	/*
+	 * The retransmission timer expired with packetsInFlight packets in flight.
+	 */
+	void onTimeout(int packetsInFlight);
+
+	int getCongestionWindow();
+
+	int getSlowStartThreshold();
+
+	boolean isInRecovery();
+}
@@ -0,0 +1,86 @@
+package tcp.congestion;
+
+/*
+ * CUBIC (RFC 8312). Slow start and fast recovery are the same as in Reno,
+ * but in congestion avoidance the window follows a cubic function of the
+ * time since the last loss:
+ *
+ *		W(t) = C * (t - K)^3 + Wmax,	K = cbrt(Wmax * (1 - beta) / C)
+ *
+ * where Wmax is the window right before the loss. The window quickly grows
+ * back to Wmax, stays near it for a while and then probes for more. On a
+ * loss the window is multiplied by beta (0.7) instead of being halved. The
+ * window never grows slower than Reno's would ("TCP-friendly region").
+ */
+public class CubicCongestionControl extends RenoCongestionControl {
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private double windowMax;
+	private double lastWindowMax;
+	// congestion avoidance epoch: when it started, K and W(K) for it, and
+	// the window Reno would have by now
+	private long epochStart;
+	private double k;
+	private double originPoint;
+	private double renoWindow;
+
+	public CubicCongestionControl() {
+		super();
+		windowMax = 0;
+		lastWindowMax = 0;
+		epochStart = 0;
+	}
+
+	@Override
+	protected void congestionAvoidance(int ackedPackets, long smoothedRtt) {
+		long now = System.nanoTime();
+		if (epochStart == 0) {
+			epochStart = now;
+			if (window < windowMax) {
+				k = Math.cbrt((windowMax - window) / C);
+				originPoint = windowMax;
+			}
+			else {
+				k = 0;
+				originPoint = window;
+			}
+			renoWindow = window;
+		}
+
+		// where the window should be one RTT from now
+		double t = (now - epochStart + smoothedRtt) / NANOS_PER_SECOND;
+		double target = originPoint + C * Math.pow(t - k, 3);
+
+		// Reno with the same average window would grow by
+		// 3 * (1 - beta) / (1 + beta) packets per RTT
+		renoWindow += 3 * (1 - BETA) / (1 + BETA) * ackedPackets / window;
+		target = Math.max(target, renoWindow);
+
+		if (target > window) {
+			// reach the target in about one RTT, but grow at most 1.5x per RTT
+			window += Math.min(target - window, window / 2) * ackedPackets / window;
+		}
+		else {
+			// stay near Wmax: grow very slowly
+			window += 0.01 * ackedPackets / window;
+		}
+	}
+
+	@Override
+	protected void onLoss(int packetsInFlight) {
+		epochStart = 0;
+		// fast convergence: give up some bandwidth if the window did not
+		// even get back to the last maximum
+		if (window < lastWindowMax) {
+			lastWindowMax = window;
+			windowMax = window * (1 + BETA) / 2;
+		}
+		else {
+			lastWindowMax = window;
+			windowMax = window;
+		}
+		slowStartThreshold = Math.max(window * BETA, MIN_SLOW_START_THRESHOLD);
+	}
+}
@@ -0,0 +1,100 @@
+package tcp.congestion;
+
+/*
+ * TCP Reno (RFC 5681):
+ *
+ *		slow start:				window grows by one packet per acked packet
+ *								until it reaches the slow start threshold
+ *		congestion avoidance:	window grows by about one packet per RTT
+ *		3 duplicate ACKs:		threshold = flight / 2, window = threshold + 3,
+ *								fast recovery: window grows by one packet on
+ *								every next duplicate ACK and falls back to the
+ *								threshold on the first ACK for new data
+ *		timeout:				threshold = flight / 2, window = 1
+ *
+ * Subclasses can change how the window grows in congestion avoidance and
+ * how much it shrinks on a loss.
+ */
+public class RenoCongestionControl implements CongestionControl {
+	// RFC 6928
+	protected static final int INITIAL_WINDOW = 10;
+	protected static final int MIN_SLOW_START_THRESHOLD = 2;
+
+	// window is kept fractional, so that congestion avoidance can grow it
+	// by a fraction of a packet per ACK
+	protected double window;
+	protected double slowStartThreshold;
+	protected boolean inRecovery;
+
+	public RenoCongestionControl() {
+		window = INITIAL_WINDOW;
+		slowStartThreshold = Integer.MAX_VALUE;
+		inRecovery = false;
+	}
+
+	@Override
+	public void onAck(int ackedPackets, int packetsInFlight, long smoothedRtt) {
+		if (inRecovery) {
+			// the lost packet is recovered: deflate the window
+			inRecovery = false;
+			window = slowStartThreshold;
+			return;
+		}
+		if (window < slowStartThreshold) {
+			window = Math.min(window + ackedPackets, slowStartThreshold);
+		}
+		else {
+			congestionAvoidance(ackedPackets, smoothedRtt);
+		}
+	}
+
+	@Override
+	public void onDuplicateAck(int duplicateAcks, int packetsInFlight) {
+		if (inRecovery) {
+			// one more packet has left the network
+			window += 1;
+		}
+		else if (duplicateAcks == 3) {
+			onLoss(packetsInFlight);
+			window = slowStartThreshold + 3;
+			inRecovery = true;
+		}
+	}
+
+	@Override
+	public void onTimeout(int packetsInFlight) {
+		onLoss(packetsInFlight);
+		window = 1;
+		inRecovery = false;
+	}
+
+	@Override
+	public int getCongestionWindow() {
+		return Math.max(1, (int)window);
+	}
+
+	@Override
+	public int getSlowStartThreshold() {
+		return (int)slowStartThreshold;
+	}
+
+	@Override
+	public boolean isInRecovery() {
+		return inRecovery;
+	}
+
+	/*
+	 * Grows the window in congestion avoidance: by ackedPackets / window,
+	 * so by one packet when a whole window is acked.
+	 */
+	protected void congestionAvoidance(int ackedPackets, long smoothedRtt) {
+		window += (double)ackedPackets / window;
+	}
+
+	/*
+	 * Sets the slow start threshold after a loss.
+	 */
+	protected void onLoss(int packetsInFlight) {
+		slowStartThreshold = Math.max(packetsInFlight / 2, MIN_SLOW_START_THRESHOLD);
+	}
+}
@@ -0,0 +1,50 @@
+package tcp.trace;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import pktmngr.PacketManager;
+
+/*
+ * Prints the events to System.out, every packet with all of its fields and
+ * data (see PacketManager.printData()). Meant for debugging small
+ * exchanges: printing costs much more than sending the packet.
+ */
+public class ConsoleTracer implements Tracer {
+	private Level level;
+
+	public ConsoleTracer(Level level) {
+		this.level = level;
+	}
+
+	@Override
+	public Level getLevel() {
+		return level;
+	}
+
+	@Override
+	public void connectionEvent(TraceEvent event, SocketAddress peer) {
+		synchronized (ConsoleTracer.class) {
+			System.out.println(event.getLabel() + " " + peer);
+			System.out.println();
+		}
+	}
+
+	@Override
+	public void connectionError(SocketAddress peer, Exception e) {
+		synchronized (ConsoleTracer.class) {
+			System.out.println(TraceEvent.ERROR.getLabel() + " " + peer);
+			e.printStackTrace(System.out);
+			System.out.println();
+		}
+	}
+
+	@Override
+	public void packetEvent(TraceEvent event, SocketAddress peer, ByteBuffer packet) {
+		// lines of packets traced by different event loops are not mixed
+		synchronized (ConsoleTracer.class) {
+			PacketManager.printData(packet, event.getLabel() + (event.isSent() ? " To " : " From ") + peer);
+			System.out.println();
+		}
+	}
+}
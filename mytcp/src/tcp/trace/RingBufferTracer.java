@@ -0,0 +1,322 @@
+package tcp.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import pktmngr.PacketManager;
+
+/*
+ * Records the events in binary form, for decoding after the run (see
+ * decode(), or run the class with the file as the argument).
+ *
+ * The event loops only write a fixed-size record into a preallocated ring
+ * of records and go on: nothing is formatted, allocated or written to the
+ * file on their threads. A writer thread of its own copies the published
+ * records out of the ring and appends them to the file in batches. If the
+ * ring is full (the writer lags behind), new records are dropped and
+ * counted rather than waited for.
+ *
+ * Structure of the file:
+ *
+ *		header: MAGIC (4 bytes), RECORD_LENGTH (4), start time (8,
+ *				milliseconds since the epoch)
+ *		records:
+ *
+ * +-------+-------+------+--------+---------+-------+-------+--------+------------+------------+--------+
+ * | 0..7  |   8   |  9   | 10..11 | 12..15  | 16..19| 20..23| 24..27 |   28..29   |     30     |   31   |
+ * +-------+-------+------+--------+---------+-------+-------+--------+------------+------------+--------+
+ *    time   event   flag    port    address    SEQ     ACK    window   dataLength   sackBlocks   unused
+ *
+ * time is in nanoseconds since the start, event is the ordinal of the
+ * TraceEvent, port and address are the peer's (the address is an IPv4
+ * one, the hash of any other one). The packet fields are the ones of its
+ * header, they are 0 for connection events. All integers are big-endian.
+ */
+public class RingBufferTracer implements Tracer, Closeable {
+	public static final int MAGIC = 0x54435054;
+	public static final int HEADER_LENGTH = 16;
+	public static final int RECORD_LENGTH = 32;
+
+	// how long the writer sleeps when there is nothing to write
+	private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private Level level;
+	private long startTime;
+
+	// capacity records, capacity is a power of two
+	private ByteBuffer ring;
+	private int capacity;
+	private int mask;
+	/*
+	 * Record number n goes into slot n & mask. Writers claim numbers from
+	 * head, then publish the record by setting published[slot] to n + 1.
+	 * The writer thread takes records from tail on, a slot is free again
+	 * once tail has passed it.
+	 */
+	private AtomicLong head;
+	private AtomicLongArray published;
+	private volatile long tail;
+	private AtomicLong dropped;
+
+	private FileChannel file;
+	private ByteBuffer batch;
+	private Thread writer;
+	private volatile boolean closed;
+	private IOException writeFailure;
+
+	/*
+	 * Traces events up to level into file (replacing its contents). The ring
+	 * holds at least capacity records.
+	 */
+	public RingBufferTracer(Path path, int capacity, Level level) throws IOException {
+		if (capacity < 1 || capacity > (1 << 24)) {
+			throw new IllegalArgumentException("Capacity must be from 1 to " + (1 << 24) + " records");
+		}
+		this.level = level;
+		this.capacity = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		mask = this.capacity - 1;
+		ring = ByteBuffer.allocateDirect(this.capacity * RECORD_LENGTH);
+		batch = ByteBuffer.allocateDirect(this.capacity * RECORD_LENGTH);
+		head = new AtomicLong();
+		published = new AtomicLongArray(this.capacity);
+		tail = 0;
+		dropped = new AtomicLong();
+		startTime = System.nanoTime();
+
+		file = FileChannel.open(
+				path,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING
+		);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putInt(RECORD_LENGTH).putLong(System.currentTimeMillis());
+		header.flip();
+		while (header.hasRemaining()) {
+			file.write(header);
+		}
+
+		writer = new Thread(this::writeRecords, "RingBufferTracer-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public Level getLevel() {
+		return level;
+	}
+
+	@Override
+	public void connectionEvent(TraceEvent event, SocketAddress peer) {
+		long n = claim();
+		if (n < 0) {
+			return;
+		}
+		int off = (int)(n & mask) * RECORD_LENGTH;
+		putEvent(off, event, peer);
+		ring.put(off + 9, (byte)0);
+		ring.putInt(off + 16, 0);
+		ring.putInt(off + 20, 0);
+		ring.putInt(off + 24, 0);
+		ring.putShort(off + 28, (short)0);
+		ring.put(off + 30, (byte)0);
+		publish(n);
+	}
+
+	@Override
+	public void packetEvent(TraceEvent event, SocketAddress peer, ByteBuffer packet) {
+		long n = claim();
+		if (n < 0) {
+			return;
+		}
+		int off = (int)(n & mask) * RECORD_LENGTH;
+		putEvent(off, event, peer);
+		ring.put(off + 9, PacketManager.getFlag(packet));
+		ring.putInt(off + 16, PacketManager.getSeq(packet));
+		ring.putInt(off + 20, PacketManager.getACK(packet));
+		ring.putInt(off + 24, PacketManager.getWindow(packet));
+		ring.putShort(off + 28, (short)PacketManager.getDataLength(packet));
+		ring.put(off + 30, (byte)PacketManager.getSackBlockCount(packet));
+		publish(n);
+	}
+
+	// number of records dropped because the ring was full
+	public long getDroppedRecords() {
+		return dropped.get();
+	}
+
+	/*
+	 * Writes out the records published so far and closes the file. Events
+	 * traced after that are dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		file.close();
+		if (writeFailure != null) {
+			throw writeFailure;
+		}
+	}
+
+	/*
+	 * Claims the next record of the ring and returns its number, or -1 if
+	 * the ring is full.
+	 */
+	private long claim() {
+		while (true) {
+			long n = head.get();
+			if (closed || n - tail >= capacity) {
+				dropped.incrementAndGet();
+				return -1;
+			}
+			if (head.compareAndSet(n, n + 1)) {
+				return n;
+			}
+		}
+	}
+
+	// the slot of a claimed record is written by its writer only, absolute
+	// puts of different threads do not interfere
+	private void putEvent(int off, TraceEvent event, SocketAddress peer) {
+		ring.putLong(off, System.nanoTime() - startTime);
+		ring.put(off + 8, (byte)event.ordinal());
+		int port = 0;
+		int address = 0;
+		if (peer instanceof InetSocketAddress) {
+			InetSocketAddress inetPeer = (InetSocketAddress)peer;
+			port = inetPeer.getPort();
+			InetAddress inetAddress = inetPeer.getAddress();
+			// Inet4Address hashes to the address itself
+			address = (inetAddress != null) ? inetAddress.hashCode() : 0;
+		}
+		ring.putShort(off + 10, (short)port);
+		ring.putInt(off + 12, address);
+		ring.put(off + 31, (byte)0);
+	}
+
+	private void publish(long n) {
+		published.lazySet((int)(n & mask), n + 1);
+	}
+
+	private void writeRecords() {
+		ByteBuffer view = ring.duplicate();
+		while (true) {
+			// copy the published records that follow each other
+			long from = tail;
+			int count = 0;
+			batch.clear();
+			while (count < capacity) {
+				long n = from + count;
+				int slot = (int)(n & mask);
+				if (published.get(slot) != n + 1) {
+					break;
+				}
+				view.limit((slot + 1) * RECORD_LENGTH).position(slot * RECORD_LENGTH);
+				batch.put(view);
+				count++;
+			}
+
+			if (count == 0) {
+				if (closed) {
+					return;
+				}
+				LockSupport.parkNanos(WRITER_PARK_NANOS);
+				continue;
+			}
+			// the slots can be claimed again
+			tail = from + count;
+
+			batch.flip();
+			try {
+				while (batch.hasRemaining()) {
+					file.write(batch);
+				}
+			}
+			catch (IOException e) {
+				writeFailure = e;
+				closed = true;
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Prints the records of a trace file, one line each.
+	 */
+	public static void decode(Path path, PrintStream out) throws IOException {
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			readFully(in, header);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != RECORD_LENGTH) {
+				throw new IOException("Not a trace file: " + path);
+			}
+			out.println("Trace started at " + new java.util.Date(header.getLong(8)));
+
+			TraceEvent[] events = TraceEvent.values();
+			ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+			while (readFully(in, record)) {
+				TraceEvent event = events[record.get(8)];
+				int address = record.getInt(12);
+				StringBuilder line = new StringBuilder();
+				line.append(String.format("%12.6f ms  %-18s %d.%d.%d.%d:%d",
+						record.getLong(0) / 1e6,
+						event,
+						(address >>> 24) & 0xFF,
+						(address >>> 16) & 0xFF,
+						(address >>> 8) & 0xFF,
+						address & 0xFF,
+						record.getShort(10) & 0xFFFF
+				));
+				if (event.getLevel() == Level.PACKETS) {
+					line.append(String.format("  FLAG = %d  SEQ = %d  ACK = %d  WINDOW = %d  SACK = %d  LENGTH = %d",
+							record.get(9),
+							record.getInt(16),
+							record.getInt(20),
+							record.getInt(24),
+							record.get(30),
+							record.getShort(28) & 0xFFFF
+					));
+				}
+				out.println(line);
+			}
+		}
+	}
+
+	private static boolean readFully(FileChannel in, ByteBuffer dst) throws IOException {
+		dst.clear();
+		while (dst.hasRemaining()) {
+			if (in.read(dst) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: RingBufferTracer <trace file>");
+			System.exit(1);
+		}
+		decode(Paths.get(args[0]), System.out);
+	}
+}
@@ -0,0 +1,65 @@
+package tcp.trace;
+
+/*
+ * Events passed to a Tracer. The connection events are traced at the
+ * CONNECTIONS level, the packet ones at the PACKETS level. Labels are the
+ * names the packets used to be printed with.
+ */
+public enum TraceEvent {
+	// connection events
+	CONNECTED(Tracer.Level.CONNECTIONS, "(Connected)"),
+	CLOSED(Tracer.Level.CONNECTIONS, "(Closed)"),
+	// the peer has been silent for the idle timeout
+	IDLE_TIMEOUT(Tracer.Level.CONNECTIONS, "(Idle)"),
+	// a packet was sent too many times without an ACK
+	FAILED(Tracer.Level.CONNECTIONS, "(Not responding)"),
+	// the connection's code threw, see Tracer.connectionError()
+	ERROR(Tracer.Level.CONNECTIONS, "(Error)"),
+	// a datagram of the peer was no whole packet, it is dropped unread
+	MALFORMED(Tracer.Level.CONNECTIONS, "(Malformed)"),
+
+	// packets sent
+	SYN(Tracer.Level.PACKETS, "(SYN)"),
+	SENT(Tracer.Level.PACKETS, "(Not sent)"),
+	LOSS_RETRANSMIT(Tracer.Level.PACKETS, "(Lost)"),
+	TIMEOUT_RETRANSMIT(Tracer.Level.PACKETS, "(Timeout)"),
+	FAST_RETRANSMIT(Tracer.Level.PACKETS, "(Fast retransmit)"),
+	WINDOW_PROBE(Tracer.Level.PACKETS, "(Window probe)"),
+	// XOR of the last group of packets
+	PARITY(Tracer.Level.PACKETS, "(Parity)"),
+	// plain ACKs: a number of in-order packets, the delayed ACK timer, an
+	// out-of-order packet, a packet beyond the window, an old packet
+	ACK(Tracer.Level.PACKETS, "(RECV)"),
+	DELAYED_ACK(Tracer.Level.PACKETS, "(Delayed)"),
+	EARLY_ACK(Tracer.Level.PACKETS, "(Too early)"),
+	WINDOW_FULL_ACK(Tracer.Level.PACKETS, "(Too far)"),
+	OLD_ACK(Tracer.Level.PACKETS, "(Old)"),
+
+	// packets received and passed to the connection, and packets lost by
+	// a NetworkEmulator on the way in or out
+	RECEIVED(Tracer.Level.PACKETS, "(Received)"),
+	DROPPED(Tracer.Level.PACKETS, "(Dropped)"),
+	// a lost packet rebuilt from the parity packet of its group
+	RECOVERED(Tracer.Level.PACKETS, "(Recovered)");
+
+	private final Tracer.Level level;
+	private final String label;
+
+	TraceEvent(Tracer.Level level, String label) {
+		this.level = level;
+		this.label = label;
+	}
+
+	public Tracer.Level getLevel() {
+		return level;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	// whether the packet is sent by this side
+	public boolean isSent() {
+		return compareTo(SYN) >= 0 && compareTo(RECEIVED) < 0;
+	}
+}
@@ -0,0 +1,67 @@
+package tcp.trace;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Receives what the sockets do: connections opening and closing, and (at
+ * the PACKETS level) every packet sent, received or dropped. A socket uses
+ * NONE unless it is given a tracer before it starts.
+ *
+ * The level is read once, when a socket or a connection is created, and
+ * nothing is built for events above it: with NONE tracing costs a boolean
+ * check per packet. Events come from the event loop threads of all sockets
+ * that share the tracer, so implementations must be thread-safe and should
+ * not block.
+ */
+public interface Tracer {
+
+	/*
+	 * How much is traced, each level includes the ones before it.
+	 */
+	enum Level {
+		OFF,
+		CONNECTIONS,
+		PACKETS
+	}
+
+	Tracer NONE = new Tracer() {
+		@Override
+		public Level getLevel() {
+			return Level.OFF;
+		}
+
+		@Override
+		public void connectionEvent(TraceEvent event, SocketAddress peer) {
+		}
+
+		@Override
+		public void packetEvent(TraceEvent event, SocketAddress peer, ByteBuffer packet) {
+		}
+	};
+
+	Level getLevel();
+
+	default boolean isEnabled(Level level) {
+		return level != Level.OFF && level.compareTo(getLevel()) <= 0;
+	}
+
+	// something happened to the connection with peer
+	void connectionEvent(TraceEvent event, SocketAddress peer);
+
+	/*
+	 * The connection with peer failed with e and is aborted: its code threw
+	 * on the event loop thread (e may be a bug), or the handler serving it
+	 * did. An ERROR connection event unless the tracer wants the exception.
+	 */
+	default void connectionError(SocketAddress peer, Exception e) {
+		connectionEvent(TraceEvent.ERROR, peer);
+	}
+
+	/*
+	 * A packet was sent to peer or came from it. The packet is in packet
+	 * (starting at its position), it may only be read and only during the
+	 * call: the buffer is reused right after it.
+	 */
+	void packetEvent(TraceEvent event, SocketAddress peer, ByteBuffer packet);
+}
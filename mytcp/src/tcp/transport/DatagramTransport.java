@@ -0,0 +1,53 @@
+package tcp.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import tcp.trace.Tracer;
+
+/*
+ * The layer between the protocol and the UDP socket. The event loop of a
+ * socket sends and receives all of its datagrams through it: UdpTransport
+ * passes them right to the channel, a NetworkEmulator (wrapped around it)
+ * loses, delays, reorders or duplicates them on the way.
+ *
+ * A transport may hold datagrams back. The loop waits for the channel to
+ * become readable, but also until the time process() returns, and calls
+ * receive() after every wakeup. Not thread-safe: after the socket is
+ * set up, only its event loop uses the transport.
+ */
+public interface DatagramTransport extends Closeable {
+
+	// non-blocking channel the loop waits on for incoming datagrams
+	DatagramChannel getChannel();
+
+	/*
+	 * Sends the remaining bytes of packet to target. The packet is only
+	 * read, its position is advanced as by DatagramChannel.send().
+	 */
+	void send(ByteBuffer packet, SocketAddress target) throws IOException;
+
+	/*
+	 * Puts the next datagram that is due into dst (at its position) and
+	 * returns its sender, or returns null if there is none yet.
+	 */
+	SocketAddress receive(ByteBuffer dst) throws IOException;
+
+	/*
+	 * Does what is due by now (System.nanoTime()), e.g. sends the delayed
+	 * datagrams. Returns the time it has to be called next, Long.MAX_VALUE
+	 * if there is nothing to wait for.
+	 */
+	long process(long now) throws IOException;
+
+	// where datagrams the transport drops are traced
+	default void setTracer(Tracer tracer) {
+	}
+
+	// closes the channel
+	@Override
+	void close() throws IOException;
+}
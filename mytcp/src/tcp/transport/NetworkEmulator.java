@@ -0,0 +1,382 @@
+package tcp.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import pktmngr.PacketManager;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+
+/*
+ * A bad network between the protocol and the UDP socket, in the process:
+ * datagrams going out and coming in are impaired on the way, each
+ * direction by its own Impairments:
+ *
+ *		loss:			uniform, or in bursts (Gilbert-Elliott: the link
+ *						is in a good or a bad state, each with its own loss
+ *						rate, and moves between them at random)
+ *		bandwidth:		datagrams leave one after another at the given rate,
+ *						through a queue of limited size (tail drop)
+ *		delay:			fixed latency plus uniform jitter
+ *		reordering:		some datagrams are held back for a while, so the
+ *						ones behind them overtake them
+ *		duplication:	some datagrams arrive twice
+ *
+ * Every random decision comes from a Random seeded by the constructor,
+ * so the same traffic sees the same losses, reorderings and duplicates
+ * on every run. Datagrams that are not due yet are copied into a queue
+ * ordered by arrival time; the event loop sends and receives them on
+ * time (see DatagramTransport). Without delays nothing is copied.
+ */
+public class NetworkEmulator implements DatagramTransport {
+
+	/*
+	 * What happens to the datagrams going one way, nothing by default. Must
+	 * not be changed once the emulator is created.
+	 */
+	public static class Impairments {
+		private double lossRate;
+		private boolean burstLoss;
+		private double goodToBad;
+		private double badToGood;
+		private double lossInGood;
+		private double lossInBad;
+		private long bandwidth;
+		private long queueLimit;
+		private long delay;
+		private long jitter;
+		private double reorderRate;
+		private long reorderDelay;
+		private double duplicateRate;
+
+		// every datagram is lost with probability rate
+		public Impairments setLossRate(double rate) {
+			checkProbability(rate);
+			lossRate = rate;
+			burstLoss = false;
+			return this;
+		}
+
+		/*
+		 * Gilbert-Elliott loss: before each datagram the link goes from the
+		 * good state to the bad one with probability goodToBad, and back
+		 * with probability badToGood; the datagram is lost with probability
+		 * lossInGood or lossInBad. The average loss rate is
+		 * (badToGood * lossInGood + goodToBad * lossInBad) / (goodToBad + badToGood),
+		 * a burst lasts 1 / badToGood datagrams on average.
+		 */
+		public Impairments setBurstLoss(double goodToBad, double badToGood, double lossInGood, double lossInBad) {
+			checkProbability(goodToBad);
+			checkProbability(badToGood);
+			checkProbability(lossInGood);
+			checkProbability(lossInBad);
+			this.goodToBad = goodToBad;
+			this.badToGood = badToGood;
+			this.lossInGood = lossInGood;
+			this.lossInBad = lossInBad;
+			burstLoss = true;
+			return this;
+		}
+
+		/*
+		 * Bytes per second the link carries, 0 for no limit. Datagrams that
+		 * would find more than queueLimit bytes waiting are dropped (0 for
+		 * an unlimited queue).
+		 */
+		public Impairments setBandwidth(long bytesPerSecond, long queueLimit) {
+			if (bytesPerSecond < 0 || queueLimit < 0) {
+				throw new IllegalArgumentException("Bandwidth and queue limit must not be negative");
+			}
+			bandwidth = bytesPerSecond;
+			this.queueLimit = queueLimit;
+			return this;
+		}
+
+		// every datagram takes delay +- jitter (uniformly distributed)
+		public Impairments setDelay(long delay, long jitter, TimeUnit unit) {
+			if (delay < 0 || jitter < 0 || jitter > delay) {
+				throw new IllegalArgumentException("Jitter must be from 0 to the delay");
+			}
+			this.delay = unit.toNanos(delay);
+			this.jitter = unit.toNanos(jitter);
+			return this;
+		}
+
+		// a datagram is held back for extraDelay more with probability rate
+		public Impairments setReordering(double rate, long extraDelay, TimeUnit unit) {
+			checkProbability(rate);
+			if (extraDelay < 0) {
+				throw new IllegalArgumentException("Extra delay must not be negative");
+			}
+			reorderRate = rate;
+			reorderDelay = unit.toNanos(extraDelay);
+			return this;
+		}
+
+		// a datagram arrives twice with probability rate
+		public Impairments setDuplicateRate(double rate) {
+			checkProbability(rate);
+			duplicateRate = rate;
+			return this;
+		}
+
+		private static void checkProbability(double p) {
+			if (!(p >= 0 && p <= 1)) {
+				throw new IllegalArgumentException("Probability must be from 0 to 1");
+			}
+		}
+	}
+
+	// a datagram on its way, data is a copy of it
+	private static class Datagram {
+		private final ByteBuffer data;
+		private final SocketAddress address;
+		private final long arrival;
+		// datagrams due at the same time keep their order
+		private final long order;
+
+		private Datagram(ByteBuffer data, SocketAddress address, long arrival, long order) {
+			this.data = data;
+			this.address = address;
+			this.arrival = arrival;
+			this.order = order;
+		}
+	}
+
+	// System.nanoTime() may be negative, but never this
+	private static final long LOST = Long.MIN_VALUE;
+
+	/*
+	 * One direction: its impairments, random numbers, the state of the
+	 * Gilbert-Elliott chain, when the bottleneck is free again, and the
+	 * datagrams on their way.
+	 */
+	private class Link {
+		private Impairments impairments;
+		private Random random;
+		private boolean bad;
+		private long nextFree;
+		private long order;
+		private PriorityQueue<Datagram> queue;
+
+		private Link(Impairments impairments, long seed) {
+			this.impairments = impairments;
+			random = new Random(seed);
+			bad = false;
+			nextFree = Long.MIN_VALUE;
+			queue = new PriorityQueue<Datagram>((a, b) -> (a.arrival != b.arrival)
+					? Long.compare(a.arrival, b.arrival)
+					: Long.compare(a.order, b.order));
+		}
+
+		// when a datagram of length bytes sent at now arrives, or LOST
+		private long arrival(int length, long now) {
+			double loss = impairments.lossRate;
+			if (impairments.burstLoss) {
+				if (random.nextDouble() < (bad ? impairments.badToGood : impairments.goodToBad)) {
+					bad = !bad;
+				}
+				loss = bad ? impairments.lossInBad : impairments.lossInGood;
+			}
+			if (loss > 0 && random.nextDouble() < loss) {
+				return LOST;
+			}
+
+			long departure = now;
+			if (impairments.bandwidth > 0) {
+				long start = Math.max(now, nextFree);
+				double backlog = (start - now) * (double)impairments.bandwidth / 1e9;
+				if (impairments.queueLimit > 0 && backlog + length > impairments.queueLimit) {
+					return LOST;
+				}
+				departure = start + (long)(length * 1e9 / impairments.bandwidth);
+				nextFree = departure;
+			}
+
+			long arrival = departure + impairments.delay;
+			if (impairments.jitter > 0) {
+				arrival += (long)((2 * random.nextDouble() - 1) * impairments.jitter);
+			}
+			if (impairments.reorderRate > 0 && random.nextDouble() < impairments.reorderRate) {
+				arrival += impairments.reorderDelay;
+				reordered++;
+			}
+			return Math.max(arrival, departure);
+		}
+
+		private boolean duplicate() {
+			return impairments.duplicateRate > 0 && random.nextDouble() < impairments.duplicateRate;
+		}
+
+		private void add(ByteBuffer data, SocketAddress address, long arrival) {
+			queue.add(new Datagram(data, address, arrival, order++));
+		}
+
+		private Datagram pollDue(long now) {
+			Datagram head = queue.peek();
+			if (head == null || head.arrival > now) {
+				return null;
+			}
+			return queue.poll();
+		}
+
+		private long nextArrival() {
+			Datagram head = queue.peek();
+			return (head == null) ? Long.MAX_VALUE : head.arrival;
+		}
+	}
+
+	private DatagramTransport transport;
+	private Link outbound;
+	private Link inbound;
+	private Tracer tracer;
+	private boolean tracePackets;
+
+	// written by the event loop only
+	private volatile long dropped;
+	private volatile long duplicated;
+	private volatile long reordered;
+
+	/*
+	 * Impairs what goes through transport: outbound applies to the datagrams
+	 * sent, inbound to the ones received.
+	 */
+	public NetworkEmulator(DatagramTransport transport, Impairments outbound, Impairments inbound, long seed) {
+		this.transport = transport;
+		this.outbound = new Link(outbound, seed);
+		this.inbound = new Link(inbound, ~seed);
+		tracer = Tracer.NONE;
+		tracePackets = false;
+	}
+
+	@Override
+	public DatagramChannel getChannel() {
+		return transport.getChannel();
+	}
+
+	@Override
+	public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+		long now = System.nanoTime();
+		long arrival = outbound.arrival(packet.remaining(), now);
+		if (arrival == LOST) {
+			dropped++;
+			if (tracePackets) {
+				tracer.packetEvent(TraceEvent.DROPPED, target, packet);
+			}
+			packet.position(packet.limit());
+			return;
+		}
+		boolean duplicate = outbound.duplicate();
+		if (arrival <= now && !duplicate) {
+			transport.send(packet, target);
+			return;
+		}
+		ByteBuffer copy = copy(packet);
+		packet.position(packet.limit());
+		outbound.add(copy, target, arrival);
+		if (duplicate) {
+			outbound.add(copy, target, arrival);
+			duplicated++;
+		}
+		// due right now: do not wait for the next wakeup
+		process(now);
+	}
+
+	@Override
+	public SocketAddress receive(ByteBuffer dst) throws IOException {
+		long now = System.nanoTime();
+		Datagram due = inbound.pollDue(now);
+		if (due != null) {
+			ByteBuffer data = due.data.duplicate();
+			// longer datagrams are truncated, as by the socket
+			data.limit(Math.min(data.limit(), dst.remaining()));
+			dst.put(data);
+			return due.address;
+		}
+
+		while (true) {
+			int start = dst.position();
+			SocketAddress sender = transport.receive(dst);
+			if (sender == null) {
+				return null;
+			}
+			int length = dst.position() - start;
+			long arrival = inbound.arrival(length, now);
+			if (arrival == LOST) {
+				dropped++;
+				// a malformed datagram is left to the event loop, nothing reads it
+				if (tracePackets && PacketManager.isWellFormed(received(dst, start))) {
+					tracer.packetEvent(TraceEvent.DROPPED, sender, received(dst, start));
+				}
+				dst.position(start);
+				continue;
+			}
+			boolean duplicate = inbound.duplicate();
+			if (duplicate) {
+				// the second copy comes with the next receive()
+				inbound.add(copy(received(dst, start)), sender, arrival);
+				duplicated++;
+			}
+			if (arrival <= now) {
+				return sender;
+			}
+			inbound.add(copy(received(dst, start)), sender, arrival);
+			dst.position(start);
+		}
+	}
+
+	@Override
+	public long process(long now) throws IOException {
+		Datagram due;
+		while ((due = outbound.pollDue(now)) != null) {
+			transport.send(due.data.duplicate(), due.address);
+		}
+		return Math.min(outbound.nextArrival(), inbound.nextArrival());
+	}
+
+	@Override
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+		tracePackets = tracer.isEnabled(Tracer.Level.PACKETS);
+		transport.setTracer(tracer);
+	}
+
+	// datagrams lost in either direction, including queue overflows
+	public long getDroppedPackets() {
+		return dropped;
+	}
+
+	public long getDuplicatedPackets() {
+		return duplicated;
+	}
+
+	public long getReorderedPackets() {
+		return reordered;
+	}
+
+	@Override
+	public void close() throws IOException {
+		outbound.queue.clear();
+		inbound.queue.clear();
+		transport.close();
+	}
+
+	// the datagram just received into dst, from start to its position
+	private static ByteBuffer received(ByteBuffer dst, int start) {
+		ByteBuffer datagram = dst.duplicate();
+		datagram.limit(dst.position()).position(start);
+		return datagram;
+	}
+
+	private static ByteBuffer copy(ByteBuffer packet) {
+		ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+		copy.put(packet.duplicate());
+		copy.flip();
+		return copy;
+	}
+}
@@ -0,0 +1,43 @@
+package tcp.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * Datagrams go right to the UDP socket and come right from it.
+ */
+public class UdpTransport implements DatagramTransport {
+	private DatagramChannel channel;
+
+	public UdpTransport(DatagramChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+	}
+
+	@Override
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+		channel.send(packet, target);
+	}
+
+	@Override
+	public SocketAddress receive(ByteBuffer dst) throws IOException {
+		return channel.receive(dst);
+	}
+
+	@Override
+	public long process(long now) {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
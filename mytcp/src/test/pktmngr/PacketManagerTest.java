@@ -0,0 +1,172 @@
+package pktmngr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Packets are read back the way they were written, in both encodings.
+ */
+class PacketManagerTest {
+
+	@Test
+	void byteBufferRoundTripWithSackBlocks() {
+		int[] sackBlocks = {5, 7, 10, 12};
+		ByteBuffer data = ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII));
+		ByteBuffer pkt = ByteBuffer.allocate(PacketManager.MAX_HEADER_LENGTH + 5);
+		// the packet starts in the middle of the buffer, fields are relative to it
+		pkt.position(3);
+
+		int length = PacketManager.encode(pkt, (byte)16, 42, 4, 100, sackBlocks, 2, data);
+		assertEquals(PacketManager.HEADER_LENGTH + 2 * PacketManager.SACK_BLOCK_LENGTH + 5, length);
+		assertEquals(3 + length, pkt.position());
+		assertEquals(0, data.position());
+
+		pkt.flip().position(3);
+		assertTrue(PacketManager.isWellFormed(pkt));
+		assertEquals(16, PacketManager.getFlag(pkt));
+		assertTrue(PacketManager.isCompressedPacket(pkt));
+		assertEquals(42, PacketManager.getSeq(pkt));
+		assertEquals(4, PacketManager.getACK(pkt));
+		assertEquals(100, PacketManager.getWindow(pkt));
+		assertEquals(2, PacketManager.getSackBlockCount(pkt));
+		assertEquals(5, PacketManager.getSackBlockStart(pkt, 0));
+		assertEquals(7, PacketManager.getSackBlockEnd(pkt, 0));
+		assertEquals(10, PacketManager.getSackBlockStart(pkt, 1));
+		assertEquals(12, PacketManager.getSackBlockEnd(pkt, 1));
+		assertEquals(5, PacketManager.getDataLength(pkt));
+		assertEquals(3 + PacketManager.HEADER_LENGTH + 16, PacketManager.getDataOffset(pkt));
+		assertEquals("hello", PacketManager.getData(pkt));
+
+		// a part of the data, the packet stays as it was
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertEquals(3, PacketManager.getData(pkt, 2, dst));
+		assertEquals("llo", new String(dst.array(), 0, 3, StandardCharsets.US_ASCII));
+		assertEquals(3, pkt.position());
+		assertEquals(3 + length, pkt.limit());
+
+		// the same bytes read as a datagram
+		DatagramPacket datagram = new DatagramPacket(pkt.array(), 3, length);
+		assertEquals(42, PacketManager.getSeq(datagram));
+		assertEquals(10, PacketManager.getSackBlockStart(datagram, 1));
+		assertEquals("hello", PacketManager.getData(datagram));
+	}
+
+	@Test
+	void byteArrayRoundTrip() throws Exception {
+		DatagramPacket pkt = PacketManager.create((byte)0, -7, Integer.MIN_VALUE, "data", InetAddress.getLoopbackAddress(), 1234);
+		assertEquals(PacketManager.HEADER_LENGTH + 4, pkt.getLength());
+		assertEquals(-7, PacketManager.getSeq(pkt));
+		assertEquals(Integer.MIN_VALUE, PacketManager.getACK(pkt));
+		assertEquals(0, PacketManager.getSackBlockCount(pkt));
+		assertEquals(4, PacketManager.getDataLength(pkt));
+		assertEquals("data", PacketManager.getData(pkt));
+		assertFalse(PacketManager.isSynPacket(pkt));
+		assertFalse(PacketManager.isFinPacket(pkt));
+
+		byte[] dst = new byte[10];
+		assertEquals(3, PacketManager.getData(pkt, 1, dst, 2, 8));
+		assertEquals("ata", new String(dst, 2, 3, StandardCharsets.US_ASCII));
+
+		// the same bytes read as a ByteBuffer
+		ByteBuffer buffer = ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength());
+		assertEquals(-7, PacketManager.getSeq(buffer));
+		assertEquals("data", PacketManager.getData(buffer));
+	}
+
+	@Test
+	void synOptionsAreReadAsIntegers() {
+		ByteBuffer options = ByteBuffer.allocate(PacketManager.SYN_OPTIONS_LENGTH)
+				.putInt(1000)
+				.putInt(4)
+				.putInt(1)
+				.putInt(0x12345678)
+				.putInt(-1);
+		options.flip();
+		ByteBuffer pkt = ByteBuffer.allocate(PacketManager.HEADER_LENGTH + PacketManager.SYN_OPTIONS_LENGTH);
+		PacketManager.encode(pkt, (byte)1, 99, 0, 50, options);
+		pkt.flip();
+
+		assertTrue(PacketManager.isSynPacket(pkt));
+		assertEquals(1000, PacketManager.getIntData(pkt, 0));
+		assertEquals(4, PacketManager.getIntData(pkt, 4));
+		assertEquals(1, PacketManager.getIntData(pkt, 8));
+		assertEquals(0x12345678, PacketManager.getIntData(pkt, 12));
+		assertEquals(-1, PacketManager.getIntData(pkt, 16));
+		DatagramPacket datagram = new DatagramPacket(pkt.array(), pkt.limit());
+		assertEquals(1000, PacketManager.getIntData(datagram, 0));
+	}
+
+	@Test
+	void onlyDataAndFinPacketsTakeNumbers() {
+		assertFalse(PacketManager.takesSequenceNumber(packet((byte)0, 0)));
+		assertTrue(PacketManager.takesSequenceNumber(packet((byte)0, 1)));
+		assertTrue(PacketManager.takesSequenceNumber(packet((byte)2, 0)));
+		assertTrue(PacketManager.takesSequenceNumber(packet((byte)16, 1)));
+		// parity covers numbered packets, it takes none itself
+		assertFalse(PacketManager.takesSequenceNumber(packet((byte)3, 8)));
+		assertTrue(PacketManager.isParityPacket(packet((byte)3, 8)));
+	}
+
+	@Test
+	void malformedDatagramsAreTold() {
+		assertTrue(PacketManager.isWellFormed(packet((byte)0, 10)));
+		assertTrue(PacketManager.isWellFormed(packet((byte)3, 10)));
+		// too short for a header
+		assertFalse(PacketManager.isWellFormed(ByteBuffer.allocate(PacketManager.HEADER_LENGTH - 1)));
+		// unknown flag
+		ByteBuffer unknownFlag = packet((byte)0, 10);
+		unknownFlag.put(0, (byte)7);
+		assertFalse(PacketManager.isWellFormed(unknownFlag));
+		// the SACK blocks or the data do not match the length
+		ByteBuffer sackBlocks = packet((byte)0, 10);
+		sackBlocks.put(13, (byte)1);
+		assertFalse(PacketManager.isWellFormed(sackBlocks));
+		ByteBuffer shorter = packet((byte)0, 10);
+		shorter.limit(shorter.limit() - 1);
+		assertFalse(PacketManager.isWellFormed(shorter));
+	}
+
+	@Test
+	void limitsAreChecked() {
+		ByteBuffer pkt = ByteBuffer.allocate(PacketManager.MAX_PACKET_SIZE + 100);
+		int[] sackBlocks = new int[2 * (PacketManager.MAX_SACK_BLOCKS + 1)];
+		assertThrows(IllegalArgumentException.class, () -> PacketManager.encode(
+				pkt, (byte)0, 0, 0, 0, sackBlocks, PacketManager.MAX_SACK_BLOCKS + 1, ByteBuffer.allocate(0)
+		));
+		assertThrows(IllegalArgumentException.class, () -> PacketManager.encode(
+				pkt, (byte)0, 0, 0, 0, ByteBuffer.allocate(PacketManager.MAX_DATA_LENGTH + 1)
+		));
+	}
+
+	@Test
+	void maxPacketLengthFitsSynsAndFullSegments() {
+		int[] sackBlocks = new int[2 * PacketManager.MAX_SACK_BLOCKS];
+		for (int segmentSize : new int[] {1, 16, 1000}) {
+			ByteBuffer pkt = ByteBuffer.allocate(PacketManager.maxPacketLength(segmentSize));
+			PacketManager.encode(
+					pkt, (byte)1, 0, 0, 0, sackBlocks, PacketManager.MAX_SACK_BLOCKS,
+					ByteBuffer.allocate(PacketManager.SYN_OPTIONS_LENGTH + PacketManager.MAX_TOKEN_LENGTH)
+			);
+			pkt.clear();
+			PacketManager.encode(
+					pkt, (byte)0, 0, 0, 0, sackBlocks, PacketManager.MAX_SACK_BLOCKS, ByteBuffer.allocate(segmentSize)
+			);
+		}
+	}
+
+	private static ByteBuffer packet(byte flag, int dataLength) {
+		ByteBuffer pkt = ByteBuffer.allocate(PacketManager.HEADER_LENGTH + dataLength);
+		PacketManager.encode(pkt, flag, 1, 0, 0, ByteBuffer.allocate(dataLength));
+		pkt.flip();
+		return pkt;
+	}
+}
@@ -0,0 +1,58 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import pktmngr.PacketManager;
+
+class CompressorTest {
+	private static final byte[] DICTIONARY = "packet window segment".getBytes(StandardCharsets.US_ASCII);
+
+	@Test
+	void messagesInflateOneAfterAnother() throws Exception {
+		Compressor compressor = new Compressor(DICTIONARY);
+		Decompressor decompressor = new Decompressor(DICTIONARY);
+		for (String message : new String[] {"packet window packet window packet window", "segment segment segment"}) {
+			byte[] data = message.getBytes(StandardCharsets.US_ASCII);
+			ByteBuffer compressed = compressor.compress(ByteBuffer.wrap(data));
+			assertTrue(compressed.remaining() < data.length);
+
+			ByteBuffer inflated = ByteBuffer.allocate(data.length + 1);
+			decompressor.inflate(packet(compressed), inflated);
+			assertTrue(decompressor.isDone());
+			assertArrayEquals(data, Arrays.copyOf(inflated.array(), inflated.position()));
+		}
+		compressor.close();
+		decompressor.close();
+	}
+
+	@Test
+	void closedStreamsAreNotUsed() throws Exception {
+		Compressor compressor = new Compressor(null);
+		Decompressor decompressor = new Decompressor(null);
+		ByteBuffer compressed = compressor.compress(ByteBuffer.wrap(new byte[1000]));
+
+		compressor.close();
+		decompressor.close();
+		// closing twice does nothing
+		compressor.close();
+		decompressor.close();
+		assertNull(compressor.compress(ByteBuffer.wrap(new byte[1000])));
+		assertThrows(TCPException.class, () -> decompressor.inflate(packet(compressed), ByteBuffer.allocate(1000)));
+	}
+
+	private static ByteBuffer packet(ByteBuffer compressed) {
+		ByteBuffer pkt = ByteBuffer.allocate(PacketManager.HEADER_LENGTH + compressed.remaining());
+		PacketManager.encode(pkt, (byte)16, 1, 0, 0, compressed.duplicate());
+		pkt.flip();
+		return pkt;
+	}
+}
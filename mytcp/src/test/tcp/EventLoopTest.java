@@ -0,0 +1,204 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import pktmngr.PacketManager;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+import tcp.transport.DatagramTransport;
+
+/*
+ * What the server's event loop does with datagrams that are no packets,
+ * and with a connection that throws: only the culprit goes.
+ */
+@Timeout(60)
+class EventLoopTest {
+
+	// connection events as "<event> <peer>"
+	private static class RecordingTracer implements Tracer {
+		private List<String> events = new CopyOnWriteArrayList<String>();
+		private List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+
+		@Override
+		public Level getLevel() {
+			return Level.CONNECTIONS;
+		}
+
+		@Override
+		public void connectionEvent(TraceEvent event, SocketAddress peer) {
+			events.add(event + " " + peer);
+		}
+
+		@Override
+		public void connectionError(SocketAddress peer, Exception e) {
+			errors.add(e);
+			Tracer.super.connectionError(peer, e);
+		}
+
+		@Override
+		public void packetEvent(TraceEvent event, SocketAddress peer, ByteBuffer packet) {
+		}
+
+		private long count(TraceEvent event, SocketAddress peer) {
+			return events.stream().filter((e) -> e.equals(event + " " + peer)).count();
+		}
+	}
+
+	// fails every send to target, once it is set
+	private static class FailingTransport implements DatagramTransport {
+		private DatagramTransport transport;
+		private volatile SocketAddress target;
+
+		private FailingTransport(DatagramTransport transport) {
+			this.transport = transport;
+		}
+
+		@Override
+		public DatagramChannel getChannel() {
+			return transport.getChannel();
+		}
+
+		@Override
+		public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+			if (target.equals(this.target)) {
+				throw new IOException("Refused to send.");
+			}
+			transport.send(packet, target);
+		}
+
+		@Override
+		public SocketAddress receive(ByteBuffer dst) throws IOException {
+			return transport.receive(dst);
+		}
+
+		@Override
+		public long process(long now) throws IOException {
+			return transport.process(now);
+		}
+
+		@Override
+		public void close() throws IOException {
+			transport.close();
+		}
+	}
+
+	private TCPServerSocket server;
+
+	@AfterEach
+	void stop() {
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	@Test
+	void malformedDatagramsAreDropped() throws Exception {
+		RecordingTracer tracer = new RecordingTracer();
+		server = new TCPServerSocket(0);
+		server.setTracer(tracer);
+		server.listen(0);
+
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			SocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			ByteBuffer tooManySackBlocks = header((byte)0, 0);
+			tooManySackBlocks.put(13, (byte)(PacketManager.MAX_SACK_BLOCKS + 1));
+			ByteBuffer negativeSackBlocks = header((byte)0, 0);
+			negativeSackBlocks.put(13, (byte)-1);
+			ByteBuffer[] datagrams = {
+					ByteBuffer.allocate(5),
+					header((byte)7, 0),
+					tooManySackBlocks,
+					negativeSackBlocks,
+					// the data is shorter and longer than the header says
+					ByteBuffer.allocate(PacketManager.HEADER_LENGTH + 10).put(header((byte)1, 20)).rewind(),
+					ByteBuffer.allocate(PacketManager.HEADER_LENGTH + 30).put(header((byte)1, 20)).rewind(),
+			};
+			for (ByteBuffer datagram : datagrams) {
+				socket.send(new DatagramPacket(datagram.array(), datagram.limit(), serverAddress));
+			}
+
+			// the server still serves
+			byte[] data = new byte[100 * 1024];
+			new Random(1).nextBytes(data);
+			TCPSocket client = new TCPSocket();
+			client.connect("localhost", server.getLocalPort());
+			TCPConnection connection = server.accept();
+			CompletableFuture<Void> sent = client.sendAsync(ByteBuffer.wrap(data));
+			ByteBuffer received = ByteBuffer.allocate(data.length);
+			while (received.hasRemaining() && connection.receive(received) >= 0) {
+			}
+			sent.join();
+			client.disconnect();
+			assertArrayEquals(data, received.array());
+			assertEquals(datagrams.length, tracer.count(TraceEvent.MALFORMED, socket.getLocalSocketAddress()));
+		}
+	}
+
+	@Test
+	void aFailingConnectionIsAbortedAlone() throws Exception {
+		RecordingTracer tracer = new RecordingTracer();
+		FailingTransport[] transport = new FailingTransport[1];
+		server = new TCPServerSocket(0);
+		server.setTracer(tracer);
+		server.setTransport((udp) -> transport[0] = new FailingTransport(udp));
+		server.listen(0);
+		byte[] data = new byte[100 * 1024];
+		new Random(2).nextBytes(data);
+
+		TCPSocket failing = new TCPSocket();
+		failing.connect("localhost", server.getLocalPort());
+		// it only receives, it can be closed whenever
+		failing.shutdownOutput();
+		TCPConnection failed = server.accept();
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", server.getLocalPort());
+		TCPConnection connection = server.accept();
+
+		transport[0].target = failed.getRemoteSocketAddress();
+		CompletableFuture<Void> lost = failed.sendAsync(ByteBuffer.wrap(data));
+		CompletableFuture<Void> sent = connection.sendAsync(ByteBuffer.wrap(data));
+		byte[] received = new byte[data.length];
+		ByteBuffer buffer = ByteBuffer.wrap(received);
+		while (buffer.hasRemaining() && client.receive(buffer) >= 0) {
+		}
+		sent.join();
+		assertArrayEquals(data, received);
+
+		CompletionException e = assertThrows(CompletionException.class, lost::join);
+		assertTrue(e.getCause().getMessage().contains("Refused to send."));
+		assertEquals(1, tracer.count(TraceEvent.ERROR, failed.getRemoteSocketAddress()));
+		assertEquals(1, tracer.errors.size());
+		assertTrue(tracer.errors.get(0) instanceof IOException);
+		failing.disconnect();
+		client.disconnect();
+	}
+
+	// the header of a packet that announces dataLength bytes of data
+	private static ByteBuffer header(byte flag, int dataLength) {
+		ByteBuffer header = ByteBuffer.allocate(PacketManager.HEADER_LENGTH);
+		header.put(flag).putInt(1).putInt(0).putInt(0).put((byte)0).putInt(dataLength);
+		header.flip();
+		return header;
+	}
+}
@@ -0,0 +1,127 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * sendFile() and receiveFile(), from the server's connection to the
+ * client. The connection maps small regions, so that a file of a few
+ * hundred KB crosses many of them.
+ */
+@Timeout(60)
+class FileTransferTest {
+	private static final int REGION_SIZE = 64 * 1024;
+
+	@TempDir
+	Path directory;
+
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	private TCPServerSocket server;
+	private int port;
+
+	@BeforeEach
+	void listen() throws Exception {
+		port = freePort();
+		server = new TCPServerSocket(0);
+		server.listen(port);
+	}
+
+	@AfterEach
+	void stop() {
+		server.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	void fileCrossesMappedRegions() throws Exception {
+		// not a whole number of regions nor of packets
+		byte[] data = new byte[5 * REGION_SIZE + REGION_SIZE / 3 + 7];
+		new Random(1).nextBytes(data);
+		Path source = Files.write(directory.resolve("source"), data);
+		// an older, longer file is replaced
+		Path target = Files.write(directory.resolve("target"), new byte[2 * data.length]);
+
+		Future<?> sent = executor.submit(() -> sendFile(source));
+		TCPSocket client = connect();
+		assertEquals(data.length, client.receiveFile(target));
+		sent.get();
+		client.disconnect();
+
+		assertArrayEquals(data, Files.readAllBytes(target));
+	}
+
+	@Test
+	void receiveFileGoesOnWhereReceiveStopped() throws Exception {
+		byte[] data = new byte[2 * REGION_SIZE + 100];
+		new Random(2).nextBytes(data);
+		Path source = Files.write(directory.resolve("source"), data);
+		Path target = directory.resolve("target");
+
+		// the first bytes are read from the middle of the first packet, the
+		// rest of it goes to the start of the file
+		Future<?> sent = executor.submit(() -> sendFile(source));
+		TCPSocket client = connect();
+		ByteBuffer head = ByteBuffer.allocate(10);
+		while (head.hasRemaining()) {
+			client.receive(head);
+		}
+		client.receiveFile(target);
+		sent.get();
+		client.disconnect();
+
+		assertArrayEquals(Arrays.copyOf(data, 10), head.array());
+		assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), Files.readAllBytes(target));
+	}
+
+	@Test
+	void emptyFile() throws Exception {
+		Path source = Files.createFile(directory.resolve("source"));
+		Path target = directory.resolve("target");
+
+		Future<?> sent = executor.submit(() -> sendFile(source));
+		TCPSocket client = connect();
+		assertEquals(0, client.receiveFile(target));
+		sent.get();
+		client.disconnect();
+
+		assertEquals(0, Files.size(target));
+	}
+
+	private TCPSocket connect() throws Exception {
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", port);
+		return client;
+	}
+
+	// sends the file to the next client, the FIN ends it
+	private Void sendFile(Path source) throws Exception {
+		TCPConnection connection = server.accept();
+		connection.mappedRegionSize = REGION_SIZE;
+		connection.sendFile(source);
+		connection.shutdownOutput();
+		return null;
+	}
+
+	private static int freePort() throws Exception {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+}
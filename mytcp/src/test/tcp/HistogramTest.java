@@ -0,0 +1,110 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Percentiles are exact for small values and at most 1/8 too low for the
+ * others, recording from many threads loses nothing.
+ */
+class HistogramTest {
+
+	@Test
+	void nothingRecorded() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMedian());
+		assertEquals(0, histogram.get99thPercentile());
+	}
+
+	@Test
+	void smallValuesAreExact() {
+		Histogram histogram = new Histogram();
+		for (int value = 1; value <= 10; ++value) {
+			histogram.record(value);
+		}
+		// negative values count as 0
+		histogram.record(-5);
+		assertEquals(11, histogram.getCount());
+		assertEquals(5, histogram.getMean());
+		assertEquals(10, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(0));
+		assertEquals(5, histogram.getMedian());
+		assertEquals(9, histogram.get90thPercentile());
+		assertEquals(10, histogram.getPercentile(100));
+	}
+
+	@Test
+	void largeValuesAreWithinTheBucketWidth() {
+		Random random = new Random(1);
+		long[] values = {16, 17, 1000, 123456789, Long.MAX_VALUE};
+		for (int i = 0; i < 200; ++i) {
+			long value = (i < values.length) ? values[i] : (random.nextLong() >>> 1) >>> random.nextInt(63);
+			Histogram histogram = new Histogram();
+			histogram.record(value);
+			long percentile = histogram.getMedian();
+			assertTrue(percentile <= value, value + ": " + percentile);
+			assertTrue(percentile >= value - value / 8, value + ": " + percentile);
+			assertEquals(value, histogram.getMax());
+		}
+	}
+
+	@Test
+	void percentilesFollowTheDistribution() {
+		Histogram histogram = new Histogram();
+		for (int value = 1; value <= 10000; ++value) {
+			histogram.record(value);
+		}
+		assertWithin(5000, histogram.getMedian());
+		assertWithin(9000, histogram.get90thPercentile());
+		assertWithin(9900, histogram.get99thPercentile());
+		assertEquals(5000.5, histogram.getMean());
+	}
+
+	@Test
+	void aSnapshotDoesNotChange() {
+		Histogram histogram = new Histogram();
+		histogram.record(100);
+		Histogram snapshot = histogram.snapshot();
+		histogram.record(100000);
+		assertEquals(1, snapshot.getCount());
+		assertEquals(100, snapshot.getMax());
+		assertEquals(2, histogram.getCount());
+	}
+
+	@Test
+	void concurrentRecordsAreAllCounted() throws Exception {
+		Histogram histogram = new Histogram();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; ++t) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 10000; ++i) {
+					histogram.record(thread * 10000 + i);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, histogram.getCount());
+		assertEquals(39999, histogram.getMax());
+		assertEquals(19999.5, histogram.getMean());
+	}
+
+	// a percentile is the lower bound of its bucket
+	private static void assertWithin(long expected, long percentile) {
+		assertTrue(percentile <= expected && percentile >= expected - expected / 8, expected + ": " + percentile);
+	}
+}
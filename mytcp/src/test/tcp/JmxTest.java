@@ -0,0 +1,86 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/*
+ * A connection of a server with JMX enabled can be looked up by its name
+ * while it is open and shows its statistics.
+ */
+@Timeout(60)
+class JmxTest {
+	private MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+	private TCPServerSocket server;
+	private int port;
+
+	@BeforeEach
+	void listen() throws Exception {
+		port = freePort();
+		server = new TCPServerSocket(0);
+		server.setJmxEnabled(true);
+		server.listen(port);
+	}
+
+	@AfterEach
+	void stop() {
+		server.close();
+	}
+
+	@Test
+	void connectionsAreRegisteredWhileOpen() throws Exception {
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", port);
+		TCPConnection connection = server.accept();
+		byte[] data = new byte[10000];
+		client.send(data);
+		ByteBuffer received = ByteBuffer.allocate(data.length);
+		while (received.hasRemaining()) {
+			connection.receive(received);
+		}
+
+		ObjectName pattern = new ObjectName("tcp:type=TCPConnection,local=" + port + ",*");
+		Set<ObjectName> names = mbeanServer.queryNames(pattern, null);
+		assertEquals(1, names.size());
+		ObjectName name = names.iterator().next();
+		assertEquals(
+				ObjectName.quote(connection.getRemoteSocketAddress().toString()),
+				name.getKeyProperty("remote")
+		);
+		assertEquals(true, mbeanServer.getAttribute(name, "Connected"));
+		assertEquals(connection.getRemotePort(), mbeanServer.getAttribute(name, "RemotePort"));
+		assertEquals(connection.getMaxSegmentSize(), mbeanServer.getAttribute(name, "MaxSegmentSize"));
+		assertTrue((Integer)mbeanServer.getAttribute(name, "CongestionWindow") > 0);
+
+		CompositeData stats = (CompositeData)mbeanServer.getAttribute(name, "Stats");
+		assertEquals((long)data.length, stats.get("bytesReceived"));
+		assertTrue((Long)stats.get("segmentsReceived") > 0);
+		CompositeData occupancy = (CompositeData)stats.get("receiveWindowOccupancy");
+		assertTrue((Long)occupancy.get("count") > 0);
+
+		// gone once the connection is closed
+		client.disconnect();
+		connection.close();
+		assertTrue(mbeanServer.queryNames(pattern, null).isEmpty());
+	}
+
+	private static int freePort() throws Exception {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+}
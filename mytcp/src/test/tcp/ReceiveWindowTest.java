@@ -0,0 +1,104 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class ReceiveWindowTest {
+
+	@Test
+	void packetNumbersWrapAround() {
+		int base = Integer.MAX_VALUE - 5;
+		ReceiveWindow window = new ReceiveWindow(10, base);
+		for (int i = 0; i < 20; ++i) {
+			int seq = base + i;
+			assertTrue(window.contains(seq));
+			assertFalse(window.contains(seq + 10));
+			ByteBuffer pkt = ByteBuffer.allocate(1);
+			window.put(seq, pkt);
+			assertEquals(seq + 1, window.getNextExpected());
+			assertSame(pkt, window.poll());
+		}
+		assertEquals(base + 20, window.getBase());
+		assertTrue(window.getBase() < 0);
+	}
+
+	@Test
+	void outOfOrderPacketsAreSackedUntilTheHoleIsFilled() {
+		int base = Integer.MAX_VALUE - 2;
+		ReceiveWindow window = new ReceiveWindow(100, base);
+		window.put(base + 2, ByteBuffer.allocate(1));
+		window.put(base + 3, ByteBuffer.allocate(1));
+		window.put(base + 7, ByteBuffer.allocate(1));
+		assertEquals(3, window.getBufferedCount());
+		assertEquals(base, window.getNextExpected());
+		assertFalse(window.isFirstBuffered());
+		assertTrue(window.hasOutOfOrderPackets());
+
+		int[] blocks = new int[2 * 8];
+		assertEquals(2, window.collectSackBlocks(window.getNextExpected(), blocks, 8));
+		assertArrayEquals(new int[] {base + 2, base + 4, base + 7, base + 8}, Arrays.copyOf(blocks, 4));
+		// as many blocks as the packet has room for
+		assertEquals(1, window.collectSackBlocks(window.getNextExpected(), blocks, 1));
+
+		window.put(base, ByteBuffer.allocate(1));
+		window.put(base + 1, ByteBuffer.allocate(1));
+		assertEquals(base + 4, window.getNextExpected());
+		assertTrue(window.hasOutOfOrderPackets());
+		assertEquals(1, window.collectSackBlocks(window.getNextExpected(), blocks, 8));
+		assertArrayEquals(new int[] {base + 7, base + 8}, Arrays.copyOf(blocks, 2));
+	}
+
+	@Test
+	void slotsAreReusedAroundTheRing() {
+		// 70 packets take a ring of 128 slots, two bitset words
+		int size = 70;
+		int base = -1000;
+		ReceiveWindow window = new ReceiveWindow(size, base);
+		ByteBuffer[] pkts = new ByteBuffer[size];
+		for (int round = 0; round < 50; ++round) {
+			int first = window.getBase();
+			// the whole window, backwards: every packet but the last one is out of order
+			for (int i = size - 1; i >= 0; --i) {
+				pkts[i] = ByteBuffer.allocate(1);
+				window.put(first + i, pkts[i]);
+				assertEquals((i == 0) ? first + size : first, window.getNextExpected());
+			}
+			assertEquals(size, window.getBufferedCount());
+			for (int i = 0; i < size; ++i) {
+				assertSame(pkts[i], window.get(first + i));
+				assertTrue(window.isBuffered(first + i));
+				assertSame(pkts[i], window.poll());
+			}
+			assertEquals(0, window.getBufferedCount());
+			assertEquals(first + size, window.getBase());
+		}
+		assertEquals(base + 50 * size, window.getBase());
+	}
+
+	@Test
+	void releaseReturnsThePacketsToThePool() {
+		ReceiveWindow window = new ReceiveWindow(10, 0);
+		BufferPool pool = new BufferPool(1, 0);
+		ByteBuffer[] pkts = {ByteBuffer.allocate(1), ByteBuffer.allocate(1), ByteBuffer.allocate(1)};
+		window.put(0, pkts[0]);
+		window.put(1, pkts[1]);
+		window.put(5, pkts[2]);
+		// a packet the reader took is not the window's any more
+		window.poll();
+		window.release(pool);
+
+		assertEquals(0, window.getBufferedCount());
+		assertFalse(window.isFirstBuffered());
+		assertFalse(window.isBuffered(5));
+		assertSame(pkts[1], pool.take());
+		assertSame(pkts[2], pool.take());
+	}
+}
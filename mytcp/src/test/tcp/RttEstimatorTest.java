@@ -0,0 +1,79 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RttEstimatorTest {
+	private static final long MS = 1000000;
+
+	@Test
+	void samplesFollowRfc6298() {
+		RttEstimator estimator = new RttEstimator(1000 * MS, 1 * MS, 60000 * MS);
+		assertFalse(estimator.hasSamples());
+		assertEquals(1000 * MS, estimator.getRto());
+
+		// first sample: SRTT = R, RTTVAR = R / 2
+		estimator.addSample(100 * MS);
+		assertTrue(estimator.hasSamples());
+		assertEquals(100 * MS, estimator.getSmoothedRtt());
+		assertEquals(50 * MS, estimator.getRttVariance());
+		assertEquals(300 * MS, estimator.getRto());
+
+		// RTTVAR = 3/4 * 50 + 1/4 * |100 - 200|, SRTT = 7/8 * 100 + 1/8 * 200
+		estimator.addSample(200 * MS);
+		assertEquals(62500000, estimator.getRttVariance());
+		assertEquals(112500000, estimator.getSmoothedRtt());
+		assertEquals(362500000, estimator.getRto());
+	}
+
+	@Test
+	void varianceNeverGoesBelowTheClockGranularity() {
+		RttEstimator estimator = new RttEstimator(1000 * MS, 0, 60000 * MS);
+		for (int i = 0; i < 200; ++i) {
+			estimator.addSample(20 * MS);
+		}
+		assertEquals(20 * MS, estimator.getSmoothedRtt());
+		assertEquals(21 * MS, estimator.getRto());
+	}
+
+	@Test
+	void timeoutsBackOffUntilAnAckOrASample() {
+		RttEstimator estimator = new RttEstimator(1000 * MS, 1 * MS, 5000 * MS);
+		estimator.addSample(100 * MS);
+		estimator.backoff();
+		assertEquals(600 * MS, estimator.getRto());
+		estimator.backoff();
+		assertEquals(1200 * MS, estimator.getRto());
+		estimator.backoff();
+		estimator.backoff();
+		estimator.backoff();
+		// never above the upper bound
+		assertEquals(5000 * MS, estimator.getRto());
+
+		// an ACK for new data (its packets can not be sampled, Karn's rule)
+		// ends the backoff, the estimate is as it was
+		estimator.resetBackoff();
+		assertEquals(300 * MS, estimator.getRto());
+		assertEquals(100 * MS, estimator.getSmoothedRtt());
+
+		estimator.backoff();
+		estimator.addSample(100 * MS);
+		assertTrue(estimator.getRto() < 600 * MS);
+	}
+
+	@Test
+	void boundsApplyAtOnce() {
+		RttEstimator estimator = new RttEstimator();
+		assertEquals(RttEstimator.DEFAULT_INITIAL_RTO, estimator.getRto());
+		estimator.addSample(1 * MS);
+		assertEquals(RttEstimator.DEFAULT_MIN_RTO, estimator.getRto());
+		estimator.setMinRto(200 * MS);
+		assertEquals(200 * MS, estimator.getRto());
+		estimator.setMinRto(RttEstimator.DEFAULT_MIN_RTO);
+		estimator.setMaxRto(100 * MS);
+		assertEquals(100 * MS, estimator.getRto());
+	}
+}
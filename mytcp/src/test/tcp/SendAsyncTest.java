@@ -0,0 +1,134 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/*
+ * The futures of sendAsync(): completed in order once the peer has acked
+ * their data, completed exceptionally when the connection goes away first.
+ */
+@Timeout(60)
+class SendAsyncTest {
+	private static final int MESSAGE_SIZE = 50 * 1024;
+
+	private TCPServerSocket server;
+	private int port;
+
+	@BeforeEach
+	void listen() throws Exception {
+		port = freePort();
+		server = new TCPServerSocket(0);
+		server.listen(port);
+	}
+
+	@AfterEach
+	void stop() {
+		server.close();
+	}
+
+	@Test
+	void futuresCompleteInOrderOnAck() throws Exception {
+		// the client buffers 10 packets and reads nothing for now
+		TCPSocket client = new TCPSocket();
+		client.setWindowSize(10);
+		client.connect("localhost", port);
+		TCPConnection connection = server.accept();
+
+		byte[] data = new byte[10 * MESSAGE_SIZE];
+		new Random(1).nextBytes(data);
+		List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 10; ++i) {
+			int message = i;
+			CompletableFuture<Void> future = connection.sendAsync(ByteBuffer.wrap(data, i * MESSAGE_SIZE, MESSAGE_SIZE));
+			futures.add(future.thenRun(() -> completed.add(message)));
+		}
+		// a full window is not enough for the messages: they are not all acked
+		Thread.sleep(200);
+		assertFalse(futures.get(9).isDone());
+
+		byte[] received = new byte[data.length];
+		ByteBuffer dst = ByteBuffer.wrap(received);
+		while (dst.hasRemaining()) {
+			client.receive(dst);
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+		assertArrayEquals(data, received);
+		List<Integer> inOrder = new ArrayList<Integer>();
+		for (int i = 0; i < 10; ++i) {
+			inOrder.add(i);
+		}
+		assertEquals(inOrder, completed);
+		client.disconnect();
+	}
+
+	@Test
+	void futuresFailWhenThePeerIsGone() throws Exception {
+		TCPSocket client = new TCPSocket();
+		// give up quickly
+		client.setMaxRetransmissionTimeout(20);
+		client.connect("localhost", port);
+		server.accept();
+		server.close();
+
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 5; ++i) {
+			futures.add(client.sendAsync(ByteBuffer.allocate(MESSAGE_SIZE)));
+		}
+		for (CompletableFuture<Void> future : futures) {
+			ExecutionException e = assertThrows(ExecutionException.class, future::get);
+			assertInstanceOf(TCPException.class, e.getCause());
+		}
+	}
+
+	@Test
+	void futuresFailWhenTheConnectionIsClosed() throws Exception {
+		TCPSocket client = new TCPSocket();
+		client.setWindowSize(10);
+		client.setMaxRetransmissionTimeout(20);
+		client.connect("localhost", port);
+		TCPConnection connection = server.accept();
+
+		// far more than the client's window, which is never read
+		CompletableFuture<Void> pending = connection.sendAsync(ByteBuffer.allocate(20 * MESSAGE_SIZE));
+		Thread.sleep(100);
+		assertFalse(pending.isDone());
+		connection.close();
+
+		ExecutionException failure = assertThrows(ExecutionException.class, pending::get);
+		assertInstanceOf(TCPException.class, failure.getCause());
+		CompletableFuture<Void> late = connection.sendAsync(ByteBuffer.allocate(10));
+		assertTrue(late.isCompletedExceptionally());
+		try {
+			client.disconnect();
+		}
+		catch (TCPException e) {
+			// the server may have forgotten the connection already
+		}
+	}
+
+	private static int freePort() throws Exception {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+}
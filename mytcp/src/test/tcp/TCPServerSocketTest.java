@@ -0,0 +1,248 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import pktmngr.PacketManager;
+import tcp.trace.TraceEvent;
+import tcp.trace.Tracer;
+import tcp.transport.DatagramTransport;
+import tcp.transport.NetworkEmulator;
+
+/*
+ * How connections of the server begin and end: a full backlog holds new
+ * clients back, serve() shuts the output down when the handler returns
+ * and reports what it throws, a connection closed before or after the
+ * client's FIN still acks it.
+ */
+@Timeout(60)
+class TCPServerSocketTest {
+
+	// the exceptions of connectionError()
+	private static class ErrorTracer implements Tracer {
+		private List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+
+		@Override
+		public Level getLevel() {
+			return Level.CONNECTIONS;
+		}
+
+		@Override
+		public void connectionEvent(TraceEvent event, SocketAddress peer) {
+		}
+
+		@Override
+		public void connectionError(SocketAddress peer, Exception e) {
+			errors.add(e);
+		}
+
+		@Override
+		public void packetEvent(TraceEvent event, SocketAddress peer, ByteBuffer packet) {
+		}
+	}
+
+	// drops the first ACKs the server sends after a FIN has come
+	private static class AckDroppingTransport implements DatagramTransport {
+		private DatagramTransport transport;
+		private boolean finReceived;
+		private AtomicInteger toDrop;
+
+		private AckDroppingTransport(DatagramTransport transport, int count) {
+			this.transport = transport;
+			toDrop = new AtomicInteger(count);
+		}
+
+		@Override
+		public DatagramChannel getChannel() {
+			return transport.getChannel();
+		}
+
+		@Override
+		public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+			if (finReceived && PacketManager.getFlag(packet) == 0 && PacketManager.getDataLength(packet) == 0
+					&& toDrop.getAndDecrement() > 0) {
+				packet.position(packet.limit());
+				return;
+			}
+			transport.send(packet, target);
+		}
+
+		@Override
+		public SocketAddress receive(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			SocketAddress sender = transport.receive(dst);
+			if (sender != null && dst.position() - start >= PacketManager.HEADER_LENGTH
+					&& dst.get(start) == 2) {
+				finReceived = true;
+			}
+			return sender;
+		}
+
+		@Override
+		public long process(long now) throws IOException {
+			return transport.process(now);
+		}
+
+		@Override
+		public void close() throws IOException {
+			transport.close();
+		}
+	}
+
+	private ExecutorService executor;
+	private TCPServerSocket server;
+
+	@BeforeEach
+	void start() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterEach
+	void stop() {
+		if (server != null) {
+			server.close();
+		}
+		executor.shutdownNow();
+	}
+
+	@Test
+	void synsBeyondTheBacklogWaitForAccept() throws Exception {
+		server = new TCPServerSocket(0);
+		server.setBacklog(1);
+		server.listen(0);
+		TCPSocket first = new TCPSocket();
+		first.connect("localhost", server.getLocalPort());
+		TCPSocket second = new TCPSocket();
+		Future<?> connected = executor.submit(() -> {
+			second.connect("localhost", server.getLocalPort());
+			return null;
+		});
+
+		// the SYN of the second client is dropped until the first is accepted
+		Thread.sleep(300);
+		assertFalse(connected.isDone());
+		SocketAddress firstAddress = server.accept().getRemoteSocketAddress();
+		connected.get();
+		assertNotEquals(firstAddress, server.accept().getRemoteSocketAddress());
+		first.disconnect();
+		second.disconnect();
+	}
+
+	@Test
+	void serveShutsTheOutputDownWhenTheHandlerReturns() throws Exception {
+		server = new TCPServerSocket(0);
+		server.setTransport((udp) -> new NetworkEmulator(
+				udp, new NetworkEmulator.Impairments().setLossRate(0.05), new NetworkEmulator.Impairments(), 1
+		));
+		server.listen(0);
+		byte[] data = new byte[200 * 1024];
+		new Random(3).nextBytes(data);
+		// the data is only queued when the handler returns
+		executor.submit(() -> {
+			server.serve((connection) -> connection.sendAsync(ByteBuffer.wrap(data)));
+			return null;
+		});
+
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", server.getLocalPort());
+		// room for more than the data: the end of the stream comes after it
+		ByteBuffer received = ByteBuffer.allocate(data.length + 1);
+		while (client.receive(received) >= 0) {
+		}
+		client.disconnect();
+		assertEquals(data.length, received.position());
+		assertArrayEquals(data, Arrays.copyOf(received.array(), data.length));
+	}
+
+	@Test
+	void serveReportsWhatTheHandlerThrows() throws Exception {
+		ErrorTracer tracer = new ErrorTracer();
+		server = new TCPServerSocket(0);
+		server.setTracer(tracer);
+		server.listen(0);
+		executor.submit(() -> {
+			server.serve((connection) -> {
+				while (connection.receive(ByteBuffer.allocate(100)) >= 0) {
+				}
+				throw new IllegalStateException("Handler failed.");
+			});
+			return null;
+		});
+
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", server.getLocalPort());
+		client.send("request");
+		client.disconnect();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (tracer.errors.isEmpty() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, tracer.errors.size());
+		assertEquals("Handler failed.", tracer.errors.get(0).getMessage());
+	}
+
+	@Test
+	void aClosedConnectionStillAcksTheClientsFin() throws Exception {
+		server = new TCPServerSocket(0);
+		server.listen(0);
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", server.getLocalPort());
+		TCPConnection connection = server.accept();
+		connection.shutdownOutput();
+		connection.close();
+
+		// the client's FIN comes after the close: it is acked, the client
+		// does not resend it until it gives up
+		assertEquals(-1, client.receive(ByteBuffer.allocate(100)));
+		long start = System.nanoTime();
+		client.disconnect();
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+	}
+
+	@Test
+	void aClosedConnectionStillAcksTheResentFin() throws Exception {
+		AckDroppingTransport[] transport = new AckDroppingTransport[1];
+		server = new TCPServerSocket(0);
+		server.setTransport((udp) -> transport[0] = new AckDroppingTransport(udp, 1));
+		server.listen(0);
+
+		TCPSocket client = new TCPSocket();
+		client.connect("localhost", server.getLocalPort());
+		TCPConnection connection = server.accept();
+		client.send("request");
+		executor.submit(() -> {
+			while (connection.receive(ByteBuffer.allocate(100)) >= 0) {
+			}
+			connection.close();
+			return null;
+		});
+		// the ACK of the FIN is lost, the client resends the FIN to the
+		// closed connection: it does not wait for the idle timeout
+		long start = System.nanoTime();
+		client.disconnect();
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		assertTrue(transport[0].toDrop.get() < 0);
+	}
+}
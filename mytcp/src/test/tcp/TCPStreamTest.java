@@ -0,0 +1,157 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/*
+ * The client's output stream against the server's input stream. The send
+ * buffers are small, so that a payload takes many turns of the two buffers.
+ */
+@Timeout(60)
+class TCPStreamTest {
+	private static final int BUFFER_SIZE = 4096;
+
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	private TCPServerSocket server;
+	private int port;
+
+	@BeforeEach
+	void listen() throws Exception {
+		port = freePort();
+		server = new TCPServerSocket(0);
+		server.listen(port);
+	}
+
+	@AfterEach
+	void stop() {
+		server.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	void writesOfAnySizeArriveInOrder() throws Exception {
+		byte[] data = new byte[5 * BUFFER_SIZE + 123];
+		new Random(1).nextBytes(data);
+		Future<byte[]> received = executor.submit(() -> readAll(server.accept()));
+
+		TCPSocket client = connect();
+		OutputStream out = client.getOutputStream();
+		// single bytes, pieces across the buffers, and flushes of half full ones
+		Random random = new Random(2);
+		int off = 0;
+		while (off < data.length) {
+			int len = Math.min(data.length - off, random.nextInt(3 * BUFFER_SIZE / 2));
+			if (len < 10) {
+				out.write(data[off]);
+				len = 1;
+			}
+			else {
+				out.write(data, off, len);
+			}
+			off += len;
+			if (random.nextInt(4) == 0) {
+				out.flush();
+			}
+		}
+		// close() sends everything before the FIN
+		out.close();
+
+		assertArrayEquals(data, received.get());
+		assertThrows(IOException.class, () -> out.write(1));
+	}
+
+	@Test
+	void flushSendsAPartialBuffer() throws Exception {
+		TCPSocket client = connect();
+		TCPConnection connection = server.accept();
+		InputStream in = connection.getInputStream();
+		OutputStream out = client.getOutputStream();
+
+		// far less than a buffer: nothing is sent until the flush
+		byte[] hello = "hello".getBytes();
+		out.write(hello);
+		out.flush();
+		byte[] read = new byte[hello.length];
+		int count = 0;
+		while (count < read.length) {
+			count += in.read(read, count, read.length - count);
+		}
+		assertArrayEquals(hello, read);
+
+		out.write('!');
+		out.close();
+		assertEquals('!', in.read());
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	void aFailedSendFailsTheStream() throws Exception {
+		TCPSocket client = connect();
+		// give up quickly once the server is gone
+		client.setMaxRetransmissionTimeout(20);
+		TCPConnection connection = server.accept();
+		InputStream in = connection.getInputStream();
+		OutputStream out = client.getOutputStream();
+
+		byte[] data = new byte[BUFFER_SIZE];
+		out.write(data);
+		out.write(data);
+		// the server reads the first buffer and goes away mid-transfer
+		byte[] read = new byte[BUFFER_SIZE];
+		int count = 0;
+		while (count < read.length) {
+			count += in.read(read, count, read.length - count);
+		}
+		server.close();
+
+		// some write sees that the sender has failed
+		assertThrows(IOException.class, () -> {
+			while (true) {
+				out.write(data);
+			}
+		});
+		assertThrows(IOException.class, out::flush);
+		assertThrows(IOException.class, out::close);
+	}
+
+	private TCPSocket connect() throws Exception {
+		TCPSocket client = new TCPSocket();
+		client.setSendBufferSize(BUFFER_SIZE);
+		client.connect("localhost", port);
+		return client;
+	}
+
+	private static byte[] readAll(TCPConnection connection) throws IOException {
+		InputStream in = connection.getInputStream();
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			all.write(buffer, 0, count);
+		}
+		return all.toByteArray();
+	}
+
+	private static int freePort() throws Exception {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+}
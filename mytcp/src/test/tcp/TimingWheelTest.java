@@ -0,0 +1,202 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The wheel is driven with made-up times: now starts at the clock's
+ * current time (the wheel starts there) and moves only when a test says so.
+ */
+class TimingWheelTest {
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	void timeoutsExpireInDeadlineOrder() {
+		TimingWheel wheel = new TimingWheel(TICK, 16);
+		long now = System.nanoTime();
+		TimingWheel.Timeout a = new TimingWheel.Timeout(1);
+		TimingWheel.Timeout b = new TimingWheel.Timeout(2);
+		TimingWheel.Timeout c = new TimingWheel.Timeout(3);
+		wheel.schedule(a, now + 5 * TICK);
+		wheel.schedule(b, now + 1 * TICK);
+		wheel.schedule(c, now + 3 * TICK);
+
+		assertEquals(now + TICK, wheel.nextDeadline());
+		assertNull(wheel.poll(now));
+		assertSame(b, wheel.poll(now + 10 * TICK));
+		assertSame(c, wheel.poll(now + 10 * TICK));
+		assertSame(a, wheel.poll(now + 10 * TICK));
+		assertNull(wheel.poll(now + 10 * TICK));
+		assertTrue(wheel.isEmpty());
+		assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+		assertFalse(a.isScheduled());
+	}
+
+	@Test
+	void cancelledTimeoutsNeverExpire() {
+		TimingWheel wheel = new TimingWheel(TICK, 16);
+		long now = System.nanoTime();
+		TimingWheel.Timeout a = new TimingWheel.Timeout(1);
+		TimingWheel.Timeout b = new TimingWheel.Timeout(2);
+		wheel.schedule(a, now + 2 * TICK);
+		wheel.schedule(b, now + 2 * TICK);
+		wheel.cancel(a);
+		// twice does no harm
+		wheel.cancel(a);
+		assertFalse(a.isScheduled());
+		assertEquals(now + 2 * TICK, wheel.nextDeadline());
+		assertSame(b, wheel.poll(now + 2 * TICK));
+		assertNull(wheel.poll(now + 100 * TICK));
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void overdueTimeoutsExpireAtOnce() {
+		TimingWheel wheel = new TimingWheel(TICK, 16);
+		long now = System.nanoTime();
+		TimingWheel.Timeout a = new TimingWheel.Timeout(1);
+		wheel.schedule(a, now - 50 * TICK);
+		assertTrue(wheel.nextDeadline() <= now);
+		assertSame(a, wheel.poll(now));
+	}
+
+	@Test
+	void timeoutsWaitForTheirRevolution() {
+		// 8 slots: deadlines 3 and 43 ticks away share a slot
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		long now = System.nanoTime();
+		TimingWheel.Timeout near = new TimingWheel.Timeout(1);
+		TimingWheel.Timeout far = new TimingWheel.Timeout(2);
+		wheel.schedule(far, now + 43 * TICK);
+		wheel.schedule(near, now + 3 * TICK);
+
+		assertEquals(now + 3 * TICK, wheel.nextDeadline());
+		assertSame(near, wheel.poll(now + 3 * TICK));
+		assertNull(wheel.poll(now + 3 * TICK));
+		assertEquals(now + 43 * TICK, wheel.nextDeadline());
+		// the wheel goes round a few times, far stays until its time
+		for (long t = 4; t < 43; ++t) {
+			assertNull(wheel.poll(now + t * TICK));
+		}
+		assertEquals(now + 43 * TICK, wheel.nextDeadline());
+		assertSame(far, wheel.poll(now + 43 * TICK));
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void reschedulingMovesTheTimeoutAcrossRevolutions() {
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		long now = System.nanoTime();
+		TimingWheel.Timeout a = new TimingWheel.Timeout(1);
+		wheel.schedule(a, now + 2 * TICK);
+		wheel.schedule(a, now + 100 * TICK);
+		assertTrue(a.isScheduled());
+		assertEquals(now + 100 * TICK, a.getDeadline());
+		assertEquals(now + 100 * TICK, wheel.nextDeadline());
+		assertNull(wheel.poll(now + 10 * TICK));
+		assertNull(wheel.poll(now + 99 * TICK));
+
+		// and back closer than it was
+		wheel.schedule(a, now + 120 * TICK);
+		wheel.schedule(a, now + 105 * TICK);
+		assertEquals(now + 105 * TICK, wheel.nextDeadline());
+		assertNull(wheel.poll(now + 104 * TICK));
+		assertSame(a, wheel.poll(now + 105 * TICK));
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void longPausesSkipWholeRevolutions() {
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		long now = System.nanoTime();
+		TimingWheel.Timeout a = new TimingWheel.Timeout(1);
+		TimingWheel.Timeout b = new TimingWheel.Timeout(2);
+		wheel.schedule(a, now + 5 * TICK);
+		wheel.schedule(b, now + 1000 * TICK);
+		// the loop was away for many revolutions
+		assertSame(a, wheel.poll(now + 500 * TICK));
+		assertNull(wheel.poll(now + 500 * TICK));
+		assertEquals(now + 1000 * TICK, wheel.nextDeadline());
+		assertSame(b, wheel.poll(now + 2000 * TICK));
+	}
+
+	@Test
+	void farTimeoutsCascadeDownInOrder() {
+		// 60 s idle timers of a 512 slot wheel are two levels up
+		TimingWheel wheel = new TimingWheel(TICK, 512);
+		long now = System.nanoTime();
+		TimingWheel.Timeout idle = new TimingWheel.Timeout(1);
+		TimingWheel.Timeout later = new TimingWheel.Timeout(2);
+		TimingWheel.Timeout cancelled = new TimingWheel.Timeout(3);
+		TimingWheel.Timeout near = new TimingWheel.Timeout(4);
+		wheel.schedule(later, now + 61_000 * TICK);
+		wheel.schedule(idle, now + 60_000 * TICK);
+		wheel.schedule(cancelled, now + 59_000 * TICK);
+		wheel.schedule(near, now + 7 * TICK);
+		wheel.cancel(cancelled);
+
+		assertEquals(now + 7 * TICK, wheel.nextDeadline());
+		assertSame(near, wheel.poll(now + 7 * TICK));
+		assertEquals(now + 60_000 * TICK, wheel.nextDeadline());
+		assertNull(wheel.poll(now + 59_999 * TICK));
+		assertEquals(now + 60_000 * TICK, wheel.nextDeadline());
+		assertSame(idle, wheel.poll(now + 60_500 * TICK));
+		assertNull(wheel.poll(now + 60_500 * TICK));
+		assertEquals(now + 61_000 * TICK, wheel.nextDeadline());
+		assertSame(later, wheel.poll(now + 61_000 * TICK));
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void randomTimeoutsExpireWhenTheirDeadlineComes() {
+		// near and far deadlines over three levels, polled at random steps
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		Random random = new Random(7);
+		long now = System.nanoTime();
+		List<TimingWheel.Timeout> timeouts = new ArrayList<TimingWheel.Timeout>();
+		for (int i = 0; i < 200; ++i) {
+			TimingWheel.Timeout timeout = new TimingWheel.Timeout(i);
+			wheel.schedule(timeout, now + random.nextInt(i % 2 == 0 ? 20 : 2000) * TICK + random.nextInt((int)TICK));
+			timeouts.add(timeout);
+		}
+		int cancelled = 0;
+		for (int i = 0; i < 50; ++i) {
+			TimingWheel.Timeout timeout = timeouts.get(random.nextInt(timeouts.size()));
+			if (timeout.isScheduled()) {
+				wheel.cancel(timeout);
+				cancelled++;
+			}
+		}
+
+		int expired = 0;
+		while (!wheel.isEmpty()) {
+			long nearest = Long.MAX_VALUE;
+			for (TimingWheel.Timeout timeout : timeouts) {
+				if (timeout.isScheduled()) {
+					nearest = Math.min(nearest, timeout.getDeadline());
+				}
+			}
+			assertEquals(nearest, wheel.nextDeadline());
+			now += random.nextInt(30) * TICK / 3;
+			TimingWheel.Timeout timeout;
+			while ((timeout = wheel.poll(now)) != null) {
+				assertTrue(timeout.getDeadline() <= now);
+				expired++;
+			}
+			for (TimingWheel.Timeout t : timeouts) {
+				assertTrue(!t.isScheduled() || t.getDeadline() > now);
+			}
+		}
+		assertEquals(timeouts.size() - cancelled, expired);
+	}
+}
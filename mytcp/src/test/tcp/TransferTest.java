@@ -0,0 +1,440 @@
+package tcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import tcp.transport.NetworkEmulator;
+
+/*
+ * Whole transfers from a client to a server over loopback, through seeded
+ * NetworkEmulators: the same losses, reorderings and duplicates on every
+ * run. The data must arrive intact whatever the network does to it.
+ */
+@Timeout(120)
+class TransferTest {
+	private static final int SIZE = 300 * 1024;
+
+	// what the server's connection read, and its statistics at the end
+	private static class Received {
+		private byte[] data;
+		private ConnectionStats stats;
+		// the client's side, taken before it disconnected
+		private ConnectionStats clientStats;
+		private boolean clientCompression;
+		private int clientFecGroupSize;
+	}
+
+	private ExecutorService executor;
+	private TCPServerSocket server;
+
+	@BeforeEach
+	void start() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterEach
+	void stop() {
+		if (server != null) {
+			server.close();
+		}
+		executor.shutdownNow();
+	}
+
+	@Test
+	void lossInBothDirections() throws Exception {
+		server = listen(new TCPServerSocket(0), none(), new NetworkEmulator.Impairments().setLossRate(0.05));
+		TCPSocket client = client(none(), new NetworkEmulator.Impairments().setLossRate(0.05));
+		byte[] data = randomData(SIZE);
+
+		Received received = transfer(client, data);
+		assertArrayEquals(data, received.data);
+		assertTrue(received.clientStats.getRetransmits() > 0);
+	}
+
+	@Test
+	void burstLoss() throws Exception {
+		server = listen(new TCPServerSocket(0), none(), new NetworkEmulator.Impairments().setBurstLoss(0.02, 0.3, 0.001, 0.5));
+		TCPSocket client = client(none(), none());
+		byte[] data = randomData(SIZE);
+
+		assertArrayEquals(data, transfer(client, data).data);
+	}
+
+	@Test
+	void reorderingAndDuplicates() throws Exception {
+		server = listen(
+				new TCPServerSocket(0),
+				none(),
+				new NetworkEmulator.Impairments()
+						.setReordering(0.1, 3, TimeUnit.MILLISECONDS)
+						.setDuplicateRate(0.05)
+		);
+		TCPSocket client = client(none(), new NetworkEmulator.Impairments().setDuplicateRate(0.05));
+		byte[] data = randomData(SIZE);
+
+		Received received = transfer(client, data);
+		assertArrayEquals(data, received.data);
+		assertTrue(received.stats.getOutOfOrderSegments() > 0);
+		assertTrue(received.stats.getDuplicateSegments() > 0);
+	}
+
+	@Test
+	void parityRecoversLostPackets() throws Exception {
+		TCPServerSocket s = new TCPServerSocket(0);
+		s.setFecGroupSize(4);
+		server = listen(s, none(), new NetworkEmulator.Impairments().setLossRate(0.03));
+		TCPSocket client = client(none(), none());
+		client.setFecGroupSize(4);
+		byte[] data = randomData(SIZE);
+
+		Received received = transfer(client, data);
+		assertEquals(4, received.clientFecGroupSize);
+		assertArrayEquals(data, received.data);
+		assertTrue(received.stats.getSegmentsRecovered() > 0);
+	}
+
+	@Test
+	void compressedTransfer() throws Exception {
+		TCPServerSocket s = new TCPServerSocket(0);
+		s.setCompression(true);
+		server = listen(s, none(), new NetworkEmulator.Impairments().setLossRate(0.02));
+		TCPSocket client = client(none(), none());
+		client.setCompression(true);
+		byte[] data = textData(SIZE);
+
+		Received received = transfer(client, data);
+		assertTrue(received.clientCompression);
+		assertArrayEquals(data, received.data);
+		ConnectionStats stats = received.clientStats;
+		assertEquals(SIZE, stats.getBytesBeforeCompression());
+		assertTrue(stats.getBytesAfterCompression() < SIZE / 3);
+	}
+
+	@Test
+	void compressionNeedsTheSameDictionary() throws Exception {
+		TCPServerSocket s = new TCPServerSocket(0);
+		s.setCompression(true);
+		s.setCompressionDictionary("one dictionary".getBytes(StandardCharsets.US_ASCII));
+		server = listen(s, none(), none());
+		TCPSocket client = client(none(), none());
+		client.setCompression(true);
+		client.setCompressionDictionary("another dictionary".getBytes(StandardCharsets.US_ASCII));
+		byte[] data = textData(SIZE);
+
+		Received received = transfer(client, data);
+		assertFalse(received.clientCompression);
+		assertArrayEquals(data, received.data);
+	}
+
+	@Test
+	void fastOpenSendsTheRequestInTheSyn() throws Exception {
+		TCPServerSocket s = new TCPServerSocket(0);
+		s.setFastOpen(true);
+		server = listen(s, none(), none());
+		Future<?> echo = executor.submit(() -> echo(server, 3));
+		byte[] request = randomData(500);
+
+		// the first connection gets a token, the next ones use it
+		for (int i = 0; i < 3; ++i) {
+			TCPSocket client = client(none(), none());
+			client.setFastOpen(true);
+			client.connect("localhost", server.getLocalPort(), ByteBuffer.wrap(request));
+			assertArrayEquals(request, receive(client, request.length));
+			long bytesSent = client.getStats().getBytesSent();
+			client.disconnect();
+			assertEquals((i == 0) ? request.length : 0, bytesSent);
+		}
+		echo.get();
+	}
+
+	@Test
+	void fastOpenFallsBackWhenTheTokenIsStale() throws Exception {
+		TCPServerSocket s = new TCPServerSocket(0);
+		s.setFastOpen(true);
+		server = listen(s, none(), none());
+		int port = server.getLocalPort();
+		Future<?> echo = executor.submit(() -> echo(server, 1));
+		byte[] request = randomData(500);
+		TCPSocket client = client(none(), none());
+		client.setFastOpen(true);
+		client.connect("localhost", port, ByteBuffer.wrap(request));
+		assertArrayEquals(request, receive(client, request.length));
+		client.disconnect();
+		echo.get();
+
+		// the same port, another key: the token the client has is no good
+		server.close();
+		s = new TCPServerSocket(0);
+		s.setFastOpen(true);
+		s.setFastOpenKey("a key of the new server".getBytes(StandardCharsets.US_ASCII));
+		server = s;
+		server.listen(port);
+		Future<?> newEcho = executor.submit(() -> echo(server, 1));
+		client = client(none(), none());
+		client.setFastOpen(true);
+		client.connect("localhost", port, ByteBuffer.wrap(request));
+		assertArrayEquals(request, receive(client, request.length));
+		assertEquals(request.length, client.getStats().getBytesSent());
+		client.disconnect();
+		newEcho.get();
+	}
+
+	@Test
+	void smallWritesShareSegments() throws Exception {
+		NetworkEmulator.Impairments delay = new NetworkEmulator.Impairments().setDelay(5, 0, TimeUnit.MILLISECONDS);
+		server = listen(new TCPServerSocket(0), none(), delay);
+		TCPSocket client = client(none(), delay);
+		byte[] data = randomData(3000);
+
+		Future<Received> received = receiveAll();
+		client.connect("localhost", server.getLocalPort());
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < data.length; i += 10) {
+			futures.add(client.sendAsync(ByteBuffer.wrap(data, i, 10)));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		ConnectionStats stats = client.getStats();
+		client.disconnect();
+
+		assertArrayEquals(data, received.get().data);
+		// 300 writes, a short packet per RTT
+		long dataSegments = stats.getSegmentsSent() - stats.getAcksSent();
+		assertTrue(dataSegments < 50, dataSegments + " data segments");
+	}
+
+	@Test
+	void noDelaySendsEveryWrite() throws Exception {
+		server = listen(new TCPServerSocket(0), none(), none());
+		TCPSocket client = client(none(), none());
+		client.setNoDelay(true);
+		byte[] data = randomData(3000);
+
+		Future<Received> received = receiveAll();
+		client.connect("localhost", server.getLocalPort());
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < data.length; i += 10) {
+			futures.add(client.sendAsync(ByteBuffer.wrap(data, i, 10)));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		ConnectionStats stats = client.getStats();
+		client.disconnect();
+
+		assertArrayEquals(data, received.get().data);
+		assertTrue(stats.getSegmentsSent() - stats.getAcksSent() >= 300);
+	}
+
+	@Test
+	void corkHoldsShortPacketsBack() throws Exception {
+		server = listen(new TCPServerSocket(0), none(), none());
+		TCPSocket client = client(none(), none());
+		client.setNoDelay(true);
+		byte[] data = randomData(200);
+
+		Future<Received> received = receiveAll();
+		client.connect("localhost", server.getLocalPort());
+		client.cork();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < data.length; i += 10) {
+			futures.add(client.sendAsync(ByteBuffer.wrap(data, i, 10)));
+		}
+		Thread.sleep(50);
+		assertEquals(0, client.getStats().getBytesSent());
+		client.uncork();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		ConnectionStats stats = client.getStats();
+		client.disconnect();
+
+		assertArrayEquals(data, received.get().data);
+		assertEquals(1, stats.getSegmentsSent() - stats.getAcksSent());
+	}
+
+	@Test
+	void pacingKeepsToTheMaxRate() throws Exception {
+		server = listen(new TCPServerSocket(0), none(), none());
+		TCPSocket client = client(none(), none());
+		client.setMaxPacingRate(1024 * 1024);
+		byte[] data = randomData(SIZE);
+
+		Received received = transfer(client, data);
+		assertArrayEquals(data, received.data);
+		// 300 KB at 1 MB/s, less the first bursts
+		assertTrue(received.clientStats.getElapsedMillis() >= 250);
+		assertTrue(received.clientStats.getPacingDelays() > 0);
+	}
+
+	/*
+	 * The server sends to every client at a paced rate and every other
+	 * handler closes its connection half way through, while the event loop
+	 * runs the timers of the rest: those must get all of their data.
+	 */
+	@Test
+	void closeDuringPacedSends() throws Exception {
+		TCPServerSocket s = new TCPServerSocket(0);
+		s.setMaxPacingRate(2 * 1024 * 1024);
+		server = listen(s, none(), none());
+		byte[] data = randomData(SIZE);
+
+		List<Future<Boolean>> handlers = new ArrayList<Future<Boolean>>();
+		List<Future<byte[]>> clients = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < 8; ++i) {
+			boolean closeEarly = i % 2 == 0;
+			TCPSocket client = client(none(), none());
+			client.connect("localhost", server.getLocalPort());
+			// the client only receives, it can be closed whenever
+			client.shutdownOutput();
+			TCPConnection connection = server.accept();
+			Future<Boolean> handler = executor.submit(() -> {
+				while (connection.receive(ByteBuffer.allocate(100)) >= 0) {
+				}
+				CompletableFuture<Void> sent = connection.sendAsync(ByteBuffer.wrap(data));
+				if (closeEarly) {
+					Thread.sleep(10);
+					connection.close();
+					return sent.isCompletedExceptionally();
+				}
+				sent.join();
+				connection.close();
+				return true;
+			});
+			handlers.add(handler);
+			clients.add(executor.submit(() -> {
+				byte[] received = null;
+				if (closeEarly) {
+					handler.get();
+				}
+				else {
+					received = receive(client, SIZE);
+				}
+				client.disconnect();
+				return received;
+			}));
+		}
+
+		for (int i = 0; i < handlers.size(); ++i) {
+			assertTrue(handlers.get(i).get());
+			if (i % 2 != 0) {
+				assertArrayEquals(data, clients.get(i).get());
+			}
+			else {
+				clients.get(i).get();
+			}
+		}
+	}
+
+	private static NetworkEmulator.Impairments none() {
+		return new NetworkEmulator.Impairments();
+	}
+
+	private static TCPServerSocket listen(
+			TCPServerSocket server,
+			NetworkEmulator.Impairments outbound,
+			NetworkEmulator.Impairments inbound
+	) throws Exception {
+		server.setTransport(udp -> new NetworkEmulator(udp, outbound, inbound, 1));
+		server.listen(0);
+		return server;
+	}
+
+	private static TCPSocket client(NetworkEmulator.Impairments outbound, NetworkEmulator.Impairments inbound) throws Exception {
+		TCPSocket client = new TCPSocket();
+		client.setTransport(udp -> new NetworkEmulator(udp, outbound, inbound, 2));
+		return client;
+	}
+
+	// the client sends data and disconnects, the server reads all of it
+	private Received transfer(TCPSocket client, byte[] data) throws Exception {
+		Future<Received> future = receiveAll();
+		client.connect("localhost", server.getLocalPort());
+		client.send(data);
+		ConnectionStats clientStats = client.getStats();
+		boolean clientCompression = client.isCompressionEnabled();
+		int clientFecGroupSize = client.getFecGroupSize();
+		client.disconnect();
+		Received received = future.get();
+		received.clientStats = clientStats;
+		received.clientCompression = clientCompression;
+		received.clientFecGroupSize = clientFecGroupSize;
+		return received;
+	}
+
+	private Future<Received> receiveAll() {
+		return executor.submit(() -> {
+			TCPConnection connection = server.accept();
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while (true) {
+				buffer.clear();
+				int count = connection.receive(buffer);
+				if (count < 0) {
+					break;
+				}
+				data.write(buffer.array(), 0, count);
+			}
+			Received received = new Received();
+			received.data = data.toByteArray();
+			received.stats = connection.getStats();
+			connection.close();
+			return received;
+		});
+	}
+
+	// answers each of the next connections with its first 500 bytes
+	private static Void echo(TCPServerSocket server, int connections) throws Exception {
+		for (int i = 0; i < connections; ++i) {
+			TCPConnection connection = server.accept();
+			ByteBuffer request = ByteBuffer.allocate(500);
+			while (request.hasRemaining() && connection.receive(request) >= 0) {
+			}
+			request.flip();
+			connection.send(request);
+			// until the client is gone
+			while (connection.receive(ByteBuffer.allocate(100)) >= 0) {
+			}
+			connection.close();
+		}
+		return null;
+	}
+
+	private static byte[] receive(TCPSocket client, int length) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining() && client.receive(buffer) >= 0) {
+		}
+		return buffer.array();
+	}
+
+	private static byte[] randomData(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	// words from a small vocabulary, compresses well
+	private static byte[] textData(int size) {
+		String[] words = {"packet", "window", "segment", "ack", "timer", "loss", "the", "of", "and"};
+		Random random = new Random(size);
+		StringBuilder text = new StringBuilder(size);
+		while (text.length() < size) {
+			text.append(words[random.nextInt(words.length)]).append(random.nextInt(10) == 0 ? ".\n" : " ");
+		}
+		return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,136 @@
+package tcp.congestion;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class CongestionControlTest {
+	private static final long RTT = 1000000;
+
+	@Test
+	void renoSlowStartStopsAtTheThreshold() {
+		RenoCongestionControl reno = new RenoCongestionControl();
+		assertEquals(10, reno.getCongestionWindow());
+		assertEquals(Integer.MAX_VALUE, reno.getSlowStartThreshold());
+		reno.onAck(5, 10, RTT);
+		assertEquals(15, reno.getCongestionWindow());
+
+		// timeout: threshold = flight / 2, window = 1
+		reno.onTimeout(30);
+		assertEquals(15, reno.getSlowStartThreshold());
+		assertEquals(1, reno.getCongestionWindow());
+		reno.onAck(4, 1, RTT);
+		assertEquals(5, reno.getCongestionWindow());
+		reno.onAck(40, 5, RTT);
+		assertEquals(15, reno.getCongestionWindow());
+	}
+
+	@Test
+	void renoCongestionAvoidanceGrowsByAPacketPerWindow() {
+		RenoCongestionControl reno = new RenoCongestionControl();
+		reno.onTimeout(20);
+		reno.onAck(9, 1, RTT);
+		assertEquals(10, reno.getCongestionWindow());
+		assertEquals(10, reno.getSlowStartThreshold());
+		reno.onAck(10, 10, RTT);
+		assertEquals(11, reno.getCongestionWindow());
+		for (int i = 0; i < 11; ++i) {
+			reno.onAck(1, 11, RTT);
+		}
+		assertEquals(11, reno.getCongestionWindow());
+		reno.onAck(11, 11, RTT);
+		assertEquals(12, reno.getCongestionWindow());
+	}
+
+	@Test
+	void renoFastRecovery() {
+		RenoCongestionControl reno = new RenoCongestionControl();
+		reno.onAck(10, 10, RTT);
+		reno.onDuplicateAck(1, 20);
+		reno.onDuplicateAck(2, 20);
+		assertFalse(reno.isInRecovery());
+		assertEquals(20, reno.getCongestionWindow());
+
+		// the third one: threshold = flight / 2, window = threshold + 3
+		reno.onDuplicateAck(3, 20);
+		assertTrue(reno.isInRecovery());
+		assertEquals(10, reno.getSlowStartThreshold());
+		assertEquals(13, reno.getCongestionWindow());
+		// every next one inflates the window
+		reno.onDuplicateAck(4, 20);
+		assertEquals(14, reno.getCongestionWindow());
+
+		// ACK for new data: back to the threshold
+		reno.onAck(1, 20, RTT);
+		assertFalse(reno.isInRecovery());
+		assertEquals(10, reno.getCongestionWindow());
+	}
+
+	@Test
+	void renoThresholdHasAFloor() {
+		RenoCongestionControl reno = new RenoCongestionControl();
+		reno.onTimeout(1);
+		assertEquals(2, reno.getSlowStartThreshold());
+	}
+
+	@Test
+	void cubicBacksOffByBeta() {
+		CubicCongestionControl cubic = new CubicCongestionControl();
+		cubic.onAck(90, 10, RTT);
+		assertEquals(100, cubic.getCongestionWindow());
+
+		for (int i = 1; i <= 3; ++i) {
+			cubic.onDuplicateAck(i, 100);
+		}
+		assertTrue(cubic.isInRecovery());
+		assertEquals(70, cubic.getSlowStartThreshold());
+		assertEquals(73, cubic.getCongestionWindow());
+		cubic.onAck(1, 100, RTT);
+		assertEquals(70, cubic.getCongestionWindow());
+
+		cubic.onTimeout(70);
+		assertEquals(1, cubic.getCongestionWindow());
+		assertEquals(49, cubic.getSlowStartThreshold());
+	}
+
+	@Test
+	void cubicGrowsBackToTheLastMaximum() {
+		CubicCongestionControl cubic = new CubicCongestionControl();
+		cubic.onAck(90, 10, RTT);
+		for (int i = 1; i <= 3; ++i) {
+			cubic.onDuplicateAck(i, 100);
+		}
+		cubic.onAck(1, 100, RTT);
+		assertEquals(70, cubic.getCongestionWindow());
+
+		// K = cbrt((100 - 70) / 0.4) seconds after the loss W(t) is back at
+		// Wmax; with an RTT that long the window gets there in one window of
+		// ACKs, where Reno would add one packet
+		long k = (long)(Math.cbrt(30 / 0.4) * 1e9);
+		cubic.onAck(70, 70, k);
+		int window = cubic.getCongestionWindow();
+		assertTrue(window >= 99 && window <= 101, "window " + window);
+
+		// on the plateau around Wmax it grows very slowly
+		cubic.onAck(window, window, RTT);
+		assertTrue(cubic.getCongestionWindow() <= window + 1);
+	}
+
+	@Test
+	void cubicIsNeverSlowerThanItsRenoEstimate() {
+		CubicCongestionControl cubic = new CubicCongestionControl();
+		cubic.onAck(90, 10, RTT);
+		for (int i = 1; i <= 3; ++i) {
+			cubic.onDuplicateAck(i, 100);
+		}
+		cubic.onAck(1, 100, RTT);
+		// right after the loss W(t) is below the window, the TCP-friendly
+		// estimate (3 * (1 - beta) / (1 + beta) packets per RTT) still grows
+		for (int round = 0; round < 10; ++round) {
+			cubic.onAck(70, 70, RTT);
+		}
+		assertTrue(cubic.getCongestionWindow() >= 74, "window " + cubic.getCongestionWindow());
+	}
+}
@@ -0,0 +1,152 @@
+package tcp.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import pktmngr.PacketManager;
+
+/*
+ * Records written by many threads at once reach the file whole and in the
+ * order each thread wrote them; what does not fit in the ring is dropped
+ * and counted, never torn.
+ */
+@Timeout(60)
+class RingBufferTracerTest {
+	private static final int THREADS = 4;
+	private static final int EVENTS = 20000;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void recordsOfConcurrentProducersAreWrittenWhole() throws Exception {
+		Path path = directory.resolve("trace");
+		// room for all of them, nothing is dropped
+		RingBufferTracer tracer = new RingBufferTracer(path, THREADS * EVENTS, Tracer.Level.PACKETS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; ++t) {
+			int thread = t;
+			producers.add(new Thread(() -> {
+				ByteBuffer packet = ByteBuffer.allocate(PacketManager.HEADER_LENGTH);
+				InetSocketAddress peer = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1000 + thread);
+				try {
+					start.await();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < EVENTS; ++i) {
+					trace(tracer, peer, packet, thread, i);
+				}
+			}));
+		}
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		// all at once
+		start.countDown();
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		tracer.close();
+
+		assertEquals(0, tracer.getDroppedRecords());
+		int[] next = new int[THREADS];
+		for (ByteBuffer record : readRecords(path)) {
+			int thread = checkRecord(record);
+			// the records of a thread are in the order it traced them
+			assertEquals(next[thread], record.getInt(16) & 0xFFFFFF);
+			next[thread]++;
+		}
+		for (int t = 0; t < THREADS; ++t) {
+			assertEquals(EVENTS, next[t]);
+		}
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		RingBufferTracer.decode(path, new PrintStream(decoded, true, "UTF-8"));
+		assertEquals(1 + THREADS * EVENTS, decoded.toString("UTF-8").split("\n").length);
+	}
+
+	@Test
+	void aFullRingDropsNewRecords() throws Exception {
+		Path path = directory.resolve("trace");
+		// two slots go round many times, and the writer cannot keep up
+		RingBufferTracer tracer = new RingBufferTracer(path, 2, Tracer.Level.PACKETS);
+		ByteBuffer packet = ByteBuffer.allocate(PacketManager.HEADER_LENGTH);
+		InetSocketAddress peer = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1000);
+		for (int i = 0; i < EVENTS; ++i) {
+			trace(tracer, peer, packet, 0, i);
+		}
+		tracer.close();
+		// nothing is traced once the tracer is closed
+		trace(tracer, peer, packet, 0, EVENTS);
+
+		List<ByteBuffer> records = readRecords(path);
+		assertTrue(tracer.getDroppedRecords() > 0);
+		assertEquals(EVENTS + 1, records.size() + tracer.getDroppedRecords());
+		int previous = -1;
+		for (ByteBuffer record : records) {
+			assertEquals(0, checkRecord(record));
+			int i = record.getInt(16) & 0xFFFFFF;
+			assertTrue(i > previous);
+			previous = i;
+		}
+	}
+
+	/*
+	 * Every field of event i of thread is derived from both numbers, so that
+	 * a record mixed up from two events does not pass checkRecord().
+	 */
+	private static void trace(RingBufferTracer tracer, InetSocketAddress peer, ByteBuffer packet, int thread, int i) {
+		int seq = (thread << 24) | i;
+		packet.clear();
+		PacketManager.encode(packet, (byte)0, seq, ~seq, i % 1000, ByteBuffer.allocate(0));
+		packet.flip();
+		tracer.packetEvent((i % 2 == 0) ? TraceEvent.SENT : TraceEvent.RECEIVED, peer, packet);
+	}
+
+	// returns the thread of the record
+	private static int checkRecord(ByteBuffer record) {
+		int seq = record.getInt(16);
+		int thread = seq >>> 24;
+		int i = seq & 0xFFFFFF;
+		assertTrue(thread < THREADS);
+		assertEquals((i % 2 == 0) ? TraceEvent.SENT.ordinal() : TraceEvent.RECEIVED.ordinal(), record.get(8));
+		assertEquals(0, record.get(9));
+		assertEquals(1000 + thread, record.getShort(10) & 0xFFFF);
+		assertEquals(InetAddress.getLoopbackAddress().hashCode(), record.getInt(12));
+		assertEquals(~seq, record.getInt(20));
+		assertEquals(i % 1000, record.getInt(24));
+		assertEquals(0, record.getShort(28));
+		assertEquals(0, record.get(30));
+		return thread;
+	}
+
+	private static List<ByteBuffer> readRecords(Path path) throws Exception {
+		ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+		assertEquals(RingBufferTracer.MAGIC, file.getInt(0));
+		assertEquals(RingBufferTracer.RECORD_LENGTH, file.getInt(4));
+		assertEquals(0, (file.limit() - RingBufferTracer.HEADER_LENGTH) % RingBufferTracer.RECORD_LENGTH);
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		for (int off = RingBufferTracer.HEADER_LENGTH; off < file.limit(); off += RingBufferTracer.RECORD_LENGTH) {
+			records.add(file.duplicate().position(off).limit(off + RingBufferTracer.RECORD_LENGTH).slice());
+		}
+		return records;
+	}
+}